@@ -0,0 +1,206 @@
+/*
+ * Copyright 2017, Google Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.google.api.gax.grpc;
+
+import com.google.api.gax.batching.BatchingSettings;
+import com.google.api.gax.batching.PartitionKey;
+import com.google.api.gax.batching.RequestBuilder;
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import org.joda.time.Duration;
+
+/**
+ * Measures the cost of getting batchers from a {@link BatcherFactory} when many threads publish to
+ * thousands of partitions concurrently, both while the partitions are created on first use and once
+ * they all exist.
+ */
+public class BatcherFactoryBenchmark {
+  private static final BatchingDescriptor<Integer, Integer> BATCHING_DESC =
+      new BatchingDescriptor<Integer, Integer>() {
+        @Override
+        public PartitionKey getBatchPartitionKey(Integer request) {
+          return new PartitionKey(request);
+        }
+
+        @Override
+        public RequestBuilder<Integer> getRequestBuilder() {
+          return new RequestBuilder<Integer>() {
+            private int sum;
+
+            @Override
+            public void appendRequest(Integer request) {
+              sum += request;
+            }
+
+            @Override
+            public Integer build() {
+              return sum;
+            }
+          };
+        }
+
+        @Override
+        public void splitResponse(
+            Integer batchResponse, Collection<? extends BatchedRequestIssuer<Integer>> batch) {
+          for (BatchedRequestIssuer<Integer> responder : batch) {
+            responder.setResponse(batchResponse);
+          }
+        }
+
+        @Override
+        public void splitException(
+            Throwable throwable, Collection<? extends BatchedRequestIssuer<Integer>> batch) {
+          for (BatchedRequestIssuer<Integer> responder : batch) {
+            responder.setException(throwable);
+          }
+        }
+
+        @Override
+        public long countElements(Integer request) {
+          return 1;
+        }
+
+        @Override
+        public long countBytes(Integer request) {
+          return 4;
+        }
+      };
+
+  @Param({"1", "4", "16"})
+  int threadCount;
+
+  @Param({"1000", "5000"})
+  int partitionCount;
+
+  // Whether the number of partitions is bounded, which makes the factory track their recency. The
+  // bound is the partition count, so that no batcher is evicted.
+  @Param({"false", "true"})
+  boolean limitPartitions;
+
+  private ExecutorService publishers;
+  private ScheduledExecutorService batchingExecutor;
+  private BatchingSettings batchingSettings;
+  private List<PartitionKey> partitionKeys;
+  private BatcherFactory<Integer, Integer> populatedBatcherFactory;
+
+  @BeforeExperiment
+  void setUp() {
+    publishers = Executors.newFixedThreadPool(threadCount);
+    batchingExecutor = Executors.newSingleThreadScheduledExecutor();
+    BatchingSettings.Builder batchingSettingsBuilder =
+        BatchingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardSeconds(1))
+            .setElementCountThreshold(100L);
+    if (limitPartitions) {
+      batchingSettingsBuilder.setMaxPartitionCount(partitionCount);
+    }
+    batchingSettings = batchingSettingsBuilder.build();
+    partitionKeys = new ArrayList<>(partitionCount);
+    for (int i = 0; i < partitionCount; i++) {
+      partitionKeys.add(new PartitionKey(i));
+    }
+    populatedBatcherFactory =
+        new BatcherFactory<>(BATCHING_DESC, batchingSettings, batchingExecutor);
+    for (PartitionKey partitionKey : partitionKeys) {
+      populatedBatcherFactory.getPushingBatcher(partitionKey);
+    }
+  }
+
+  @AfterExperiment
+  void tearDown() {
+    publishers.shutdownNow();
+    batchingExecutor.shutdownNow();
+  }
+
+  /**
+   * Measures a new factory for each rep, in which each partition is created by the first thread to
+   * visit it.
+   */
+  @Benchmark
+  int timeGetPushingBatcher(int reps) throws Exception {
+    int total = 0;
+    for (int i = 0; i < reps; i++) {
+      total +=
+          visitAllPartitions(
+              new BatcherFactory<>(BATCHING_DESC, batchingSettings, batchingExecutor));
+    }
+    return total;
+  }
+
+  /** Measures the lookup of the batchers of existing partitions, the path taken by most calls. */
+  @Benchmark
+  int timeGetExistingPushingBatcher(int reps) throws Exception {
+    int total = 0;
+    for (int i = 0; i < reps; i++) {
+      total += visitAllPartitions(populatedBatcherFactory);
+    }
+    return total;
+  }
+
+  private int visitAllPartitions(final BatcherFactory<Integer, Integer> batcherFactory)
+      throws Exception {
+    List<Future<Integer>> results = new ArrayList<>(threadCount);
+    for (int t = 0; t < threadCount; t++) {
+      // Every thread visits every partition, starting at a different offset, so that threads work
+      // on different partitions at the same time.
+      final int offset = t * partitionCount / threadCount;
+      results.add(
+          publishers.submit(
+              new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                  int found = 0;
+                  for (int k = 0; k < partitionCount; k++) {
+                    PartitionKey key = partitionKeys.get((offset + k) % partitionCount);
+                    if (batcherFactory.getPushingBatcher(key) != null) {
+                      found++;
+                    }
+                  }
+                  return found;
+                }
+              }));
+    }
+    int total = 0;
+    for (Future<Integer> result : results) {
+      total += result.get();
+    }
+    return total;
+  }
+}
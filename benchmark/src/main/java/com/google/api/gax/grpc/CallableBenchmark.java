@@ -29,13 +29,12 @@
  */
 package com.google.api.gax.grpc;
 
+import com.google.api.gax.core.ApiFuture;
+import com.google.api.gax.core.ApiFutures;
 import com.google.api.gax.core.RetrySettings;
-import com.google.api.gax.core.RpcFuture;
-import com.google.api.gax.grpc.FutureCallable;
 import com.google.caliper.Benchmark;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.util.concurrent.Futures;
 import com.google.protobuf.ByteString;
 import com.google.pubsub.v1.PublishRequest;
 import com.google.pubsub.v1.PubsubMessage;
@@ -52,8 +51,8 @@ public class CallableBenchmark {
   private static final FutureCallable<PublishRequest, Integer> RETURN_ONE_CALLABLE =
       new FutureCallable<PublishRequest, Integer>() {
         @Override
-        public RpcFuture<Integer> futureCall(PublishRequest request, CallContext context) {
-          return new ListenableFutureDelegate<Integer>(Futures.immediateFuture(1));
+        public ApiFuture<Integer> futureCall(PublishRequest request, CallContext context) {
+          return ApiFutures.immediateFuture(1);
         }
       };
   private static final RetrySettings RETRY_SETTINGS =
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2017, Google Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.google.api.gax.batching;
+
+import com.google.api.gax.core.ApiClock;
+import com.google.common.base.Preconditions;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.joda.time.Duration;
+
+/**
+ * Tunes the element count threshold and the delay of batches from the observed arrival rate of
+ * elements and the observed latency of processing batches, aiming for elements to complete within
+ * a given latency budget.
+ *
+ * <p>
+ * The time an element may wait in an open batch is the latency budget minus the recent latency of
+ * processing a batch, bounded by the maximum delay. The element count threshold is the number of
+ * elements expected to arrive within that time, bounded by the maximum element count. Under light
+ * load, batches are therefore sent after a short wait with few elements, while under heavy load
+ * they grow, reducing the number of batches without exceeding the budget. Until an arrival rate has
+ * been measured, the element count threshold is the maximum element count.
+ *
+ * <p>
+ * An AdaptiveBatchSizer is thread-safe. It is meant to be shared between the thresholds created by
+ * {@link BatchingThresholds#adaptive} and the ThresholdBatcher using them, see
+ * {@link ThresholdBatcher.Builder#setAdaptiveBatchSizer}.
+ */
+public final class AdaptiveBatchSizer {
+  // The weight of a new measurement in the moving averages of arrival rate and latency.
+  private static final double SMOOTHING_FACTOR = 0.2;
+  private static final long RATE_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final long MIN_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final long latencyBudgetNanos;
+  private final long maxElementCount;
+  private final long maxDelayNanos;
+  private final ApiClock clock;
+
+  private final AtomicLong windowElementCount = new AtomicLong();
+  private volatile long windowStartNanos;
+
+  // Guarded by this. Negative until a first measurement has been made.
+  private double elementsPerNano = -1;
+  private double batchLatencyNanos = -1;
+
+  private volatile long elementCountThreshold;
+  private volatile long delayNanos;
+
+  /**
+   * Constructs an AdaptiveBatchSizer.
+   *
+   * @param latencyBudget The time within which an element should be processed after being added.
+   * @param maxElementCount The upper bound of the element count threshold.
+   * @param maxDelay The upper bound of the delay of a batch.
+   * @param clock The clock used to measure arrival rate and latency.
+   */
+  public AdaptiveBatchSizer(
+      Duration latencyBudget, long maxElementCount, Duration maxDelay, ApiClock clock) {
+    Preconditions.checkArgument(
+        latencyBudget.compareTo(Duration.ZERO) > 0, "latencyBudget must be positive");
+    Preconditions.checkArgument(maxElementCount > 0, "maxElementCount must be positive");
+    Preconditions.checkArgument(maxDelay.compareTo(Duration.ZERO) > 0, "maxDelay must be positive");
+    this.latencyBudgetNanos = TimeUnit.MILLISECONDS.toNanos(latencyBudget.getMillis());
+    this.maxElementCount = maxElementCount;
+    this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelay.getMillis());
+    this.clock = Preconditions.checkNotNull(clock);
+    this.windowStartNanos = clock.nanoTime();
+    synchronized (this) {
+      update();
+    }
+  }
+
+  /** Returns the current element count threshold. */
+  public long getElementCountThreshold() {
+    return elementCountThreshold;
+  }
+
+  /** Returns the current delay after which a batch is sent. */
+  public Duration getDelay() {
+    return Duration.millis(TimeUnit.NANOSECONDS.toMillis(delayNanos));
+  }
+
+  /** Records the arrival of elements. */
+  public void recordElements(long elementCount) {
+    windowElementCount.addAndGet(elementCount);
+    long now = clock.nanoTime();
+    if (now - windowStartNanos < RATE_WINDOW_NANOS) {
+      return;
+    }
+    synchronized (this) {
+      long elapsed = now - windowStartNanos;
+      if (elapsed < RATE_WINDOW_NANOS) {
+        return;
+      }
+      windowStartNanos = now;
+      double rate = (double) windowElementCount.getAndSet(0) / elapsed;
+      elementsPerNano = elementsPerNano < 0 ? rate : smooth(elementsPerNano, rate);
+      update();
+    }
+  }
+
+  /** Records the time it took to process a batch. */
+  public void recordBatchLatency(Duration latency) {
+    recordBatchLatencyNanos(TimeUnit.MILLISECONDS.toNanos(latency.getMillis()));
+  }
+
+  synchronized void recordBatchLatencyNanos(long latencyNanos) {
+    batchLatencyNanos =
+        batchLatencyNanos < 0 ? latencyNanos : smooth(batchLatencyNanos, latencyNanos);
+    update();
+  }
+
+  long getDelayNanos() {
+    return delayNanos;
+  }
+
+  long nanoTime() {
+    return clock.nanoTime();
+  }
+
+  /** Must be called with the lock held. */
+  private void update() {
+    long waitNanos = latencyBudgetNanos - (batchLatencyNanos < 0 ? 0 : (long) batchLatencyNanos);
+    waitNanos = Math.max(MIN_DELAY_NANOS, Math.min(maxDelayNanos, waitNanos));
+    delayNanos = waitNanos;
+    if (elementsPerNano < 0) {
+      elementCountThreshold = maxElementCount;
+    } else {
+      long expectedElements = Math.round(elementsPerNano * waitNanos);
+      elementCountThreshold = Math.max(1, Math.min(maxElementCount, expectedElements));
+    }
+  }
+
+  private static double smooth(double average, double measurement) {
+    return average + SMOOTHING_FACTOR * (measurement - average);
+  }
+}
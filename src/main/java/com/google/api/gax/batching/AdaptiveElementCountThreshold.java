@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017, Google Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.google.api.gax.batching;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A threshold on the number of elements, whose value is taken from an {@link AdaptiveBatchSizer}
+ * each time it is checked. Accumulated elements are reported to the AdaptiveBatchSizer as arrivals.
+ *
+ * <p>
+ * Package-private for internal use.
+ */
+final class AdaptiveElementCountThreshold<E> implements BatchingThreshold<E> {
+  private final AdaptiveBatchSizer batchSizer;
+  private final ElementCounter<E> elementCounter;
+  private long sum;
+
+  AdaptiveElementCountThreshold(AdaptiveBatchSizer batchSizer, ElementCounter<E> elementCounter) {
+    this.batchSizer = Preconditions.checkNotNull(batchSizer);
+    this.elementCounter = Preconditions.checkNotNull(elementCounter);
+  }
+
+  @Override
+  public void accumulate(E e) {
+    long count = elementCounter.count(e);
+    sum += count;
+    batchSizer.recordElements(count);
+  }
+
+  @Override
+  public boolean isThresholdReached() {
+    return sum >= batchSizer.getElementCountThreshold();
+  }
+
+  @Override
+  public BatchingThreshold<E> copyWithZeroedValue() {
+    return new AdaptiveElementCountThreshold<>(batchSizer, elementCounter);
+  }
+}
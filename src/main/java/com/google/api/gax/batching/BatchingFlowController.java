@@ -29,12 +29,21 @@
  */
 package com.google.api.gax.batching;
 
+import com.google.api.gax.core.ApiFuture;
 import com.google.api.gax.core.FlowController;
 import com.google.api.gax.core.FlowController.FlowControlException;
 import com.google.common.base.Preconditions;
 import com.google.common.primitives.Ints;
 
-/** Wraps a {@link FlowController} for use by batching. */
+/**
+ * Wraps a {@link FlowController} for use by batching.
+ *
+ * <p>
+ * Besides reserving and releasing resources for a batch, which counts its elements and bytes on
+ * every call, the counts can be taken once with {@link #countElements} and {@link #countBytes} and
+ * passed to the count-based methods, so that a merged batch does not need to be counted again when
+ * its resources are released.
+ */
 public class BatchingFlowController<T> {
 
   private final FlowController flowController;
@@ -50,17 +59,35 @@ public class BatchingFlowController<T> {
     this.byteCounter = byteCounter;
   }
 
+  public long countElements(T batch) {
+    return elementCounter.count(Preconditions.checkNotNull(batch));
+  }
+
+  public long countBytes(T batch) {
+    return byteCounter.count(Preconditions.checkNotNull(batch));
+  }
+
   public void reserve(T batch) throws FlowControlException {
-    Preconditions.checkNotNull(batch);
-    int elements = Ints.checkedCast(elementCounter.count(batch));
-    int bytes = Ints.checkedCast(byteCounter.count(batch));
-    flowController.reserve(elements, bytes);
+    reserve(countElements(batch), countBytes(batch));
+  }
+
+  public void reserve(long elements, long bytes) throws FlowControlException {
+    flowController.reserve(Ints.checkedCast(elements), Ints.checkedCast(bytes));
+  }
+
+  public ApiFuture<Void> reserveAsync(T batch) {
+    return reserveAsync(countElements(batch), countBytes(batch));
+  }
+
+  public ApiFuture<Void> reserveAsync(long elements, long bytes) {
+    return flowController.reserveAsync(Ints.checkedCast(elements), Ints.checkedCast(bytes));
   }
 
   public void release(T batch) {
-    Preconditions.checkNotNull(batch);
-    int elements = Ints.checkedCast(elementCounter.count(batch));
-    int bytes = Ints.checkedCast(byteCounter.count(batch));
-    flowController.release(elements, bytes);
+    release(countElements(batch), countBytes(batch));
+  }
+
+  public void release(long elements, long bytes) {
+    flowController.release(Ints.checkedCast(elements), Ints.checkedCast(bytes));
   }
 }
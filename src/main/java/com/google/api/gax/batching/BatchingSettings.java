@@ -92,6 +92,40 @@ import org.joda.time.Duration;
  * accumulating messages without limit, resulting eventually in an OutOfMemory exception. This can
  * occur if messages are created and added to batching faster than they can be processed. The flow
  * control behavior is controlled using FlowControlSettings.
+ *
+ * <p>
+ * By default all elements of a partition are accumulated into a single open batch. When many
+ * threads publish to the same partition, the stripe count can be raised so that several batches
+ * are open at once and publishers do not serialize on a single lock. Each open batch applies the
+ * thresholds above independently.
+ *
+ * <p>
+ * A separate batcher is kept for each partition of the requests. If partitions are short-lived, for
+ * example when the partition key is a resource name, a partition idle timeout and a maximum
+ * partition count can be set. Batchers which are idle for longer than the timeout, or the least
+ * recently used batchers once the maximum count is exceeded, are flushed and discarded.
+ *
+ * <p>
+ * The number of batches of a partition which are sent but have not completed yet can be limited by
+ * setting a maximum number of outstanding batches. While the maximum is reached, a batch which
+ * reaches one of the thresholds above is held back and keeps accumulating elements, so that batches
+ * grow larger under load instead of the number of concurrent RPCs growing. A held batch is sent as
+ * soon as an outstanding batch completes, or once it reaches the held batch element count or
+ * request byte limit, whichever happens first.
+ *
+ * <p>
+ * Instead of using a fixed element count threshold and delay threshold, batching can adapt them to
+ * the load by setting a latency budget. The delay is then tuned so that the time an element waits
+ * in a batch plus the observed latency of sending a batch stays within the budget, and the element
+ * count threshold is tuned to the number of elements expected to arrive in that time. The element
+ * count threshold and delay threshold set in the settings act as upper bounds.
+ *
+ * <p>
+ * Batches of the same partition may complete in any order. If ordered delivery is turned on, the
+ * batches of each partition are instead sent one at a time: while one batch is in flight, the next
+ * one accumulates elements and is sent once the previous batch completes. To preserve the order of
+ * elements per ordering key, the batching descriptor should include the ordering key in the
+ * partition key.
  */
 @AutoValue
 public abstract class BatchingSettings {
@@ -113,11 +147,43 @@ public abstract class BatchingSettings {
   /** Get the flow control settings to use. */
   public abstract FlowControlSettings getFlowControlSettings();
 
+  /** Get the number of batches that can be open concurrently for a single partition. */
+  public abstract Integer getStripeCount();
+
+  /** Get the time after which the batcher of an unused partition is discarded. */
+  @Nullable
+  public abstract Duration getPartitionIdleTimeout();
+
+  /** Get the maximum number of partitions for which a batcher is kept. */
+  @Nullable
+  public abstract Integer getMaxPartitionCount();
+
+  /** Get the maximum number of batches of a single partition which can be outstanding. */
+  @Nullable
+  public abstract Integer getMaxOutstandingBatches();
+
+  /** Get the element count at which a held batch is sent regardless of outstanding batches. */
+  @Nullable
+  public abstract Long getHeldBatchElementCountLimit();
+
+  /** Get the request byte count at which a held batch is sent regardless of outstanding batches. */
+  @Nullable
+  public abstract Long getHeldBatchRequestByteLimit();
+
+  /** Get the latency budget used to adapt the element count and delay thresholds. */
+  @Nullable
+  public abstract Duration getLatencyBudget();
+
+  /** Returns whether the batches of a partition are delivered in order. Default to false. */
+  public abstract Boolean getOrderedDelivery();
+
   /** Get a new builder. */
   public static Builder newBuilder() {
     return new AutoValue_BatchingSettings.Builder()
         .setIsEnabled(true)
-        .setFlowControlSettings(FlowControlSettings.getDefaultInstance());
+        .setFlowControlSettings(FlowControlSettings.getDefaultInstance())
+        .setStripeCount(1)
+        .setOrderedDelivery(false);
   }
 
   /** Get a builder with the same values as this object. */
@@ -170,6 +236,63 @@ public abstract class BatchingSettings {
     /** Set the flow control settings to be used. */
     public abstract Builder setFlowControlSettings(FlowControlSettings flowControlSettings);
 
+    /**
+     * Set the number of batches that can be open concurrently for a single partition. Elements
+     * added concurrently are spread over the open batches, each of which is sent independently
+     * once it reaches a threshold. Default to 1.
+     */
+    public abstract Builder setStripeCount(Integer stripeCount);
+
+    /**
+     * Set the time after which the batcher of a partition that has not received any element is
+     * flushed and discarded. If unset, batchers are kept as long as the batching callable.
+     */
+    public abstract Builder setPartitionIdleTimeout(Duration partitionIdleTimeout);
+
+    /**
+     * Set the maximum number of partitions for which a batcher is kept. When a batcher is needed
+     * for a new partition and the maximum has been reached, the least recently used batcher is
+     * flushed and discarded. If unset, the number of batchers is not limited.
+     */
+    public abstract Builder setMaxPartitionCount(Integer maxPartitionCount);
+
+    /**
+     * Set the maximum number of batches of a single partition which can be sent without having
+     * completed. While the maximum is reached, batches which reach a threshold are held back and
+     * keep growing. If unset, batches are sent as soon as they reach a threshold.
+     */
+    public abstract Builder setMaxOutstandingBatches(Integer maxOutstandingBatches);
+
+    /**
+     * Set the element count at which a batch that is held back because of the maximum number of
+     * outstanding batches is sent anyway. If unset, held batches are only bounded by flow control.
+     */
+    public abstract Builder setHeldBatchElementCountLimit(Long heldBatchElementCountLimit);
+
+    /**
+     * Set the request byte count at which a batch that is held back because of the maximum number
+     * of outstanding batches is sent anyway. If unset, held batches are only bounded by flow
+     * control.
+     */
+    public abstract Builder setHeldBatchRequestByteLimit(Long heldBatchRequestByteLimit);
+
+    /**
+     * Set the latency budget of elements, from being added to a batch until the batch completes.
+     * If set, the element count threshold and the delay threshold are adapted to the observed
+     * arrival rate of elements and latency of batches, bounded by their configured values. If
+     * unset, the configured thresholds are used as they are.
+     */
+    public abstract Builder setLatencyBudget(Duration latencyBudget);
+
+    /**
+     * Set whether the batches of a partition are sent one at a time, in the order in which their
+     * elements were added. The stripe count must be 1, and the maximum number of outstanding
+     * batches and the held batch limits are ignored. Default to false. Ordering is best-effort
+     * after a failure, since the batches after a failed batch are still sent; see
+     * {@link ThresholdBatcher.Builder#setOrdered}.
+     */
+    public abstract Builder setOrderedDelivery(Boolean orderedDelivery);
+
     abstract BatchingSettings autoBuild();
 
     /** Build the BatchingSettings object. */
@@ -185,6 +308,35 @@ public abstract class BatchingSettings {
           settings.getDelayThreshold() == null
               || settings.getDelayThreshold().compareTo(Duration.ZERO) > 0,
           "delayThreshold must be either unset or positive");
+      Preconditions.checkArgument(settings.getStripeCount() > 0, "stripeCount must be positive");
+      Preconditions.checkArgument(
+          settings.getPartitionIdleTimeout() == null
+              || settings.getPartitionIdleTimeout().compareTo(Duration.ZERO) > 0,
+          "partitionIdleTimeout must be either unset or positive");
+      Preconditions.checkArgument(
+          settings.getMaxPartitionCount() == null || settings.getMaxPartitionCount() > 0,
+          "maxPartitionCount must be either unset or positive");
+      Preconditions.checkArgument(
+          settings.getMaxOutstandingBatches() == null || settings.getMaxOutstandingBatches() > 0,
+          "maxOutstandingBatches must be either unset or positive");
+      Preconditions.checkArgument(
+          settings.getHeldBatchElementCountLimit() == null
+              || settings.getHeldBatchElementCountLimit() > 0,
+          "heldBatchElementCountLimit must be either unset or positive");
+      Preconditions.checkArgument(
+          settings.getHeldBatchRequestByteLimit() == null
+              || settings.getHeldBatchRequestByteLimit() > 0,
+          "heldBatchRequestByteLimit must be either unset or positive");
+      Preconditions.checkArgument(
+          settings.getLatencyBudget() == null
+              || settings.getLatencyBudget().compareTo(Duration.ZERO) > 0,
+          "latencyBudget must be either unset or positive");
+      Preconditions.checkArgument(
+          settings.getLatencyBudget() == null || settings.getDelayThreshold() != null,
+          "delayThreshold must be set when latencyBudget is set");
+      Preconditions.checkArgument(
+          !settings.getOrderedDelivery() || settings.getStripeCount() == 1,
+          "stripeCount must be 1 when orderedDelivery is set");
       return settings;
     }
   }
@@ -53,4 +53,17 @@ public final class BatchingThresholds {
             });
     return ImmutableList.<BatchingThreshold<E>>of(batchingThreshold);
   }
+
+  /**
+   * Creates an ImmutableList containing only a single threshold on the number of elements, as
+   * counted by the given ElementCounter, whose value is tuned by the given AdaptiveBatchSizer. The
+   * same AdaptiveBatchSizer should be set on the ThresholdBatcher using the threshold, so that the
+   * batch delay is tuned along with it and batch latencies are reported to it.
+   */
+  public static <E> ImmutableList<BatchingThreshold<E>> adaptive(
+      AdaptiveBatchSizer batchSizer, ElementCounter<E> elementCounter) {
+    BatchingThreshold<E> batchingThreshold =
+        new AdaptiveElementCountThreshold<>(batchSizer, elementCounter);
+    return ImmutableList.<BatchingThreshold<E>>of(batchingThreshold);
+  }
 }
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2017, Google Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.google.api.gax.batching;
+
+import com.google.api.gax.core.ApiClock;
+import com.google.api.gax.core.NanoClock;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.joda.time.Duration;
+
+/**
+ * Runs tasks after a delay, at the granularity of a fixed tick, using a single periodic task on an
+ * executor rather than scheduling each task separately. It is meant for large numbers of short
+ * delays which are usually cancelled before they expire, such as the delay thresholds of batches,
+ * where scheduling and cancelling a task on a ScheduledExecutorService for each of them is costly.
+ *
+ * <p>
+ * New timeouts are queued without locking, and are sorted into a wheel of buckets by the periodic
+ * tick, which also runs the expired timeouts. Cancelling a timeout only marks it, and it is dropped
+ * when the tick reaches it. A timeout runs within one tick after its delay has passed. The periodic
+ * tick only runs while there are timeouts which have neither run nor been cancelled, so an idle
+ * timer does not use the executor.
+ */
+public final class HashedWheelTimer {
+  /** The default granularity at which timeouts run. */
+  public static final Duration DEFAULT_TICK_DURATION = Duration.millis(10);
+
+  /** The default number of buckets of the wheel. */
+  public static final int DEFAULT_WHEEL_SIZE = 512;
+
+  private final ScheduledExecutorService executor;
+  private final long tickNanos;
+  private final ApiClock clock;
+  private final long startNanos;
+
+  private final Runnable tickRunnable =
+      new Runnable() {
+        @Override
+        public void run() {
+          tick();
+        }
+      };
+
+  private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+  // The number of timeouts which have been created but have neither run nor been cancelled.
+  private final AtomicInteger timeoutCount = new AtomicInteger();
+
+  // Only accessed from the tick, or while it is not scheduled.
+  private final List<Queue<Timeout>> wheel;
+  private final int wheelMask;
+  private long currentTick;
+
+  // Written with the lock held, and volatile so that newTimeout can check it without the lock.
+  private final Object lock = new Object();
+  private volatile Future<?> tickFuture;
+
+  public HashedWheelTimer(ScheduledExecutorService executor) {
+    this(executor, DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE, NanoClock.getDefaultClock());
+  }
+
+  /**
+   * Constructs a HashedWheelTimer.
+   *
+   * @param executor The executor on which the tick, and so the timeouts, run.
+   * @param tickDuration The granularity at which timeouts run.
+   * @param wheelSize The number of buckets, rounded up to a power of two. Timeouts with delays
+   *     longer than tickDuration times wheelSize are visited more than once before they run.
+   */
+  public HashedWheelTimer(ScheduledExecutorService executor, Duration tickDuration, int wheelSize) {
+    this(executor, tickDuration, wheelSize, NanoClock.getDefaultClock());
+  }
+
+  @VisibleForTesting
+  HashedWheelTimer(
+      ScheduledExecutorService executor, Duration tickDuration, int wheelSize, ApiClock clock) {
+    Preconditions.checkArgument(
+        tickDuration.compareTo(Duration.ZERO) > 0, "tickDuration must be positive");
+    Preconditions.checkArgument(
+        wheelSize > 0 && wheelSize <= 1 << 30, "wheelSize must be positive and at most 2^30");
+    this.executor = Preconditions.checkNotNull(executor);
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickDuration.getMillis());
+    this.clock = Preconditions.checkNotNull(clock);
+    this.startNanos = clock.nanoTime();
+
+    int bucketCount = Integer.highestOneBit(wheelSize);
+    if (bucketCount < wheelSize) {
+      bucketCount <<= 1;
+    }
+    List<Queue<Timeout>> wheel = new ArrayList<>(bucketCount);
+    for (int i = 0; i < bucketCount; i++) {
+      wheel.add(new ArrayDeque<Timeout>());
+    }
+    this.wheel = wheel;
+    this.wheelMask = bucketCount - 1;
+  }
+
+  /** Runs the given task once the given delay has passed, unless the timeout is cancelled. */
+  public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+    Timeout timeout = new Timeout(this, task, clock.nanoTime() + unit.toNanos(delay));
+    timeoutCount.incrementAndGet();
+    newTimeouts.add(timeout);
+    if (tickFuture == null) {
+      synchronized (lock) {
+        startTickIfNeeded();
+      }
+    }
+    return timeout;
+  }
+
+  /**
+   * Returns the number of timeouts which have neither run nor been cancelled, for use in testing.
+   */
+  @VisibleForTesting
+  int getTimeoutCount() {
+    return timeoutCount.get();
+  }
+
+  /** Returns whether the periodic tick is scheduled, for use in testing. */
+  @VisibleForTesting
+  boolean isTicking() {
+    return tickFuture != null;
+  }
+
+  private void tick() {
+    long nowNanos = clock.nanoTime();
+    long lastTick = elapsedTicks(nowNanos);
+    List<Timeout> expiredTimeouts = new ArrayList<>();
+    for (; currentTick <= lastTick; currentTick++) {
+      transferNewTimeouts();
+      Iterator<Timeout> bucket = wheel.get((int) (currentTick & wheelMask)).iterator();
+      while (bucket.hasNext()) {
+        Timeout timeout = bucket.next();
+        if (timeout.isDone()) {
+          bucket.remove();
+        } else if (timeout.deadlineNanos <= nowNanos) {
+          bucket.remove();
+          if (timeout.markDone()) {
+            expiredTimeouts.add(timeout);
+          }
+        }
+      }
+    }
+    synchronized (lock) {
+      if (timeoutCount.get() == 0 && tickFuture != null) {
+        tickFuture.cancel(false);
+        tickFuture = null;
+        // Only cancelled timeouts are left in the wheel.
+        for (Queue<Timeout> bucket : wheel) {
+          bucket.clear();
+        }
+        // A timeout created concurrently may have seen the tick still running.
+        startTickIfNeeded();
+      }
+    }
+    for (Timeout timeout : expiredTimeouts) {
+      try {
+        timeout.task.run();
+      } catch (RuntimeException e) {
+        // As for tasks run by a ScheduledExecutorService, the failure of a task is not
+        // propagated, and must not stop the tick.
+      }
+    }
+  }
+
+  /** Must be called with the lock held. */
+  private void startTickIfNeeded() {
+    if (tickFuture != null || timeoutCount.get() == 0) {
+      return;
+    }
+    // Skip the ticks which passed while no timeout was pending.
+    currentTick = Math.max(currentTick, elapsedTicks(clock.nanoTime()));
+    tickFuture =
+        executor.scheduleAtFixedRate(tickRunnable, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+  }
+
+  private void transferNewTimeouts() {
+    Timeout timeout;
+    while ((timeout = newTimeouts.poll()) != null) {
+      if (timeout.isDone()) {
+        continue;
+      }
+      // Round up, so that a timeout is only visited once its deadline may have passed.
+      long deadlineTick = (timeout.deadlineNanos - startNanos + tickNanos - 1) / tickNanos;
+      wheel.get((int) (Math.max(deadlineTick, currentTick) & wheelMask)).add(timeout);
+    }
+  }
+
+  private long elapsedTicks(long nowNanos) {
+    return (nowNanos - startNanos) / tickNanos;
+  }
+
+  /** A task registered with a HashedWheelTimer. */
+  public static final class Timeout {
+    private final HashedWheelTimer timer;
+    private final Runnable task;
+    private final long deadlineNanos;
+    // Set once the timeout has expired or has been cancelled, whichever happens first.
+    private final AtomicBoolean done = new AtomicBoolean();
+
+    private Timeout(HashedWheelTimer timer, Runnable task, long deadlineNanos) {
+      this.timer = timer;
+      this.task = Preconditions.checkNotNull(task);
+      this.deadlineNanos = deadlineNanos;
+    }
+
+    /** Prevents the task from running, if it has not run yet. */
+    public void cancel() {
+      markDone();
+    }
+
+    private boolean isDone() {
+      return done.get();
+    }
+
+    /** Returns true if this call marked the timeout done. */
+    private boolean markDone() {
+      if (done.compareAndSet(false, true)) {
+        timer.timeoutCount.decrementAndGet();
+        return true;
+      }
+      return false;
+    }
+  }
+}
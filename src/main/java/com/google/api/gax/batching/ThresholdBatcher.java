@@ -31,69 +31,146 @@ package com.google.api.gax.batching;
 
 import com.google.api.gax.core.ApiFunction;
 import com.google.api.gax.core.ApiFuture;
+import com.google.api.gax.core.ApiFutureCallback;
 import com.google.api.gax.core.ApiFutures;
 import com.google.api.gax.core.FlowController.FlowControlException;
+import com.google.api.gax.core.SettableApiFuture;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 import org.joda.time.Duration;
 
 /**
  * Queues up elements until either a duration of time has passed or any threshold in a given set of
  * thresholds is breached, and then delivers the elements in a batch to the consumer.
+ *
+ * <p>
+ * By default a single batch is open at a time, and all calls to {@link #add} are serialized on it.
+ * If a stripe count greater than one is set, the ThresholdBatcher keeps that many independent open
+ * batches, each with its own lock, thresholds and delay alarm. A call to {@link #add} merges into
+ * the first open batch that is not currently locked by another thread, so concurrent publishers
+ * rarely contend with each other. Thresholds are applied to each open batch separately.
+ *
+ * <p>
+ * {@link #flush} pushes all open batches and returns a future which completes once every batch
+ * pushed so far has been processed by the receiver. {@link #close} additionally makes further calls
+ * to {@link #add} fail, so that it can be used to drain the ThresholdBatcher at shutdown.
+ *
+ * <p>
+ * The number of batches which have been sent to the receiver but not yet processed can be bounded
+ * by setting a maximum number of outstanding batches. While that maximum is reached, a batch which
+ * reaches a threshold or its delay is held open and keeps accumulating elements, until either an
+ * outstanding batch completes or the batch reaches one of the held batch limits. Under load this
+ * results in fewer, larger batches.
+ *
+ * <p>
+ * In ordered mode, batches are delivered strictly one after the other, in the order in which their
+ * elements were added: while a batch is being processed, the next one accumulates, and it is sent
+ * once the previous one completes, even when pushed explicitly. This pipelines batches for
+ * workloads which require ordering, typically with one ThresholdBatcher per ordering key. A failed
+ * batch does not prevent the following batches from being sent.
  */
 public final class ThresholdBatcher<E> {
 
   private class ReleaseResourcesFunction<T> implements ApiFunction<T, Void> {
-    private final E batch;
+    private final long elements;
+    private final long bytes;
 
-    private ReleaseResourcesFunction(E batch) {
-      this.batch = batch;
+    private ReleaseResourcesFunction(long elements, long bytes) {
+      this.elements = elements;
+      this.bytes = bytes;
     }
 
     @Override
     public Void apply(T input) {
-      flowController.release(batch);
+      flowController.release(elements, bytes);
       return null;
     }
   }
 
-  private final Runnable pushCurrentBatchRunnable =
-      new Runnable() {
+  private static final ApiFunction<List<Void>, Void> TO_VOID_FUNCTION =
+      new ApiFunction<List<Void>, Void>() {
         @Override
-        public void run() {
-          pushCurrentBatch();
+        public Void apply(List<Void> input) {
+          return null;
+        }
+      };
+
+  private static final ApiFunction<Throwable, Void> IGNORE_FAILURE_FUNCTION =
+      new ApiFunction<Throwable, Void>() {
+        @Override
+        public Void apply(Throwable input) {
+          return null;
         }
       };
 
-  private final ArrayList<BatchingThreshold<E>> thresholds;
   private final ScheduledExecutorService executor;
   private final Duration maxDelay;
   private final ThresholdBatchReceiver<E> receiver;
   private final BatchingFlowController<E> flowController;
   private final BatchMerger<E> batchMerger;
+  private final List<OpenBatch> openBatches;
+  private final int maxOutstandingBatches;
+  private final boolean ordered;
+  private final AdaptiveBatchSizer adaptiveBatchSizer;
+  private final HashedWheelTimer delayTimer;
+  private final Executor flushExecutor;
+  private final AtomicInteger outstandingBatchCount = new AtomicInteger();
 
-  // Invariant:
-  // - lock gates all accesses to members below
-  // - currentOpenBatch and currentAlarmFuture are either both null or both non-null
-  private final ReentrantLock lock = new ReentrantLock();
-  private E currentOpenBatch;
-  private Future<?> currentAlarmFuture;
+  private final Runnable pushHeldBatchesRunnable =
+      new Runnable() {
+        @Override
+        public void run() {
+          for (OpenBatch openBatch : openBatches) {
+            if (openBatch.held) {
+              openBatch.push(true);
+            }
+          }
+        }
+      };
+
+  // The batches which have been taken from an open batch but have not been processed yet.
+  private final Set<SettableApiFuture<Void>> outstandingBatches =
+      Collections.newSetFromMap(new ConcurrentHashMap<SettableApiFuture<Void>, Boolean>());
+  private volatile boolean closed;
 
   private ThresholdBatcher(Builder<E> builder) {
-    this.thresholds = new ArrayList<>(builder.thresholds);
     this.executor = Preconditions.checkNotNull(builder.executor);
     this.maxDelay = Preconditions.checkNotNull(builder.maxDelay);
     this.receiver = Preconditions.checkNotNull(builder.receiver);
     this.flowController = Preconditions.checkNotNull(builder.flowController);
     this.batchMerger = Preconditions.checkNotNull(builder.batchMerger);
+    Preconditions.checkNotNull(builder.thresholds);
+    Preconditions.checkNotNull(builder.heldBatchLimits);
+    Preconditions.checkArgument(builder.stripeCount > 0, "stripeCount must be positive");
+    Preconditions.checkArgument(
+        builder.maxOutstandingBatches > 0, "maxOutstandingBatches must be positive");
+    Preconditions.checkArgument(
+        !builder.ordered || builder.stripeCount == 1, "stripeCount must be 1 in ordered mode");
+    this.ordered = builder.ordered;
+    this.maxOutstandingBatches = builder.ordered ? 1 : builder.maxOutstandingBatches;
+    this.adaptiveBatchSizer = builder.adaptiveBatchSizer;
+    this.delayTimer = builder.delayTimer;
+    this.flushExecutor = builder.flushExecutor;
 
-    resetThresholds();
+    List<OpenBatch> openBatches = new ArrayList<>(builder.stripeCount);
+    for (int i = 0; i < builder.stripeCount; i++) {
+      openBatches.add(new OpenBatch(builder.thresholds, builder.heldBatchLimits));
+    }
+    this.openBatches = openBatches;
   }
 
   /** Builder for a ThresholdBatcher. */
@@ -104,6 +181,14 @@ public final class ThresholdBatcher<E> {
     private ThresholdBatchReceiver<E> receiver;
     private BatchingFlowController<E> flowController;
     private BatchMerger<E> batchMerger;
+    private int stripeCount = 1;
+    private int maxOutstandingBatches = Integer.MAX_VALUE;
+    private boolean ordered;
+    private Collection<BatchingThreshold<E>> heldBatchLimits =
+        Collections.<BatchingThreshold<E>>emptyList();
+    private AdaptiveBatchSizer adaptiveBatchSizer;
+    private HashedWheelTimer delayTimer;
+    private Executor flushExecutor;
 
     private Builder() {}
 
@@ -143,6 +228,84 @@ public final class ThresholdBatcher<E> {
       return this;
     }
 
+    /**
+     * Set the number of batches that can be open at the same time. Defaults to 1. Values greater
+     * than 1 allow concurrent calls to {@link ThresholdBatcher#add} to proceed without waiting on
+     * each other, at the cost of batches being smaller under light load.
+     */
+    public Builder<E> setStripeCount(int stripeCount) {
+      this.stripeCount = stripeCount;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of batches which can be outstanding with the receiver at the same
+     * time. While the maximum is reached, batches which reach a threshold or their delay are held
+     * open. Batches pushed explicitly, through {@link ThresholdBatcher#pushCurrentBatch} or
+     * {@link ThresholdBatcher#flush}, are not held. Defaults to no limit.
+     */
+    public Builder<E> setMaxOutstandingBatches(int maxOutstandingBatches) {
+      this.maxOutstandingBatches = maxOutstandingBatches;
+      return this;
+    }
+
+    /**
+     * Set the limits for batches which are held open because the maximum number of outstanding
+     * batches has been reached. Once a held batch reaches any of these limits, it is sent anyway.
+     * Defaults to no limits, in which case a held batch is only bounded by flow control.
+     */
+    public Builder<E> setHeldBatchLimits(Collection<BatchingThreshold<E>> heldBatchLimits) {
+      this.heldBatchLimits = heldBatchLimits;
+      return this;
+    }
+
+    /**
+     * Set an AdaptiveBatchSizer which tunes the delay of batches, and to which the latency of
+     * processing each batch is reported. The max delay is then only used if no AdaptiveBatchSizer
+     * is set. To also tune the element count threshold, use the thresholds from
+     * {@link BatchingThresholds#adaptive} with the same AdaptiveBatchSizer.
+     */
+    public Builder<E> setAdaptiveBatchSizer(AdaptiveBatchSizer adaptiveBatchSizer) {
+      this.adaptiveBatchSizer = adaptiveBatchSizer;
+      return this;
+    }
+
+    /**
+     * Set a HashedWheelTimer to run the max delay alarms of batches, instead of scheduling each of
+     * them on the executor. A single timer is meant to be shared by many ThresholdBatchers.
+     */
+    public Builder<E> setDelayTimer(HashedWheelTimer delayTimer) {
+      this.delayTimer = delayTimer;
+      return this;
+    }
+
+    /**
+     * Set an executor from which batches are sent to the receiver. By default, a batch is sent
+     * from the thread which completes it, which for a batch reaching a threshold is the thread
+     * calling {@link ThresholdBatcher#add}. With a flush executor, that call only hands the batch
+     * off, keeping its latency low. If the flush executor rejects a batch, it is sent directly.
+     */
+    public Builder<E> setFlushExecutor(Executor flushExecutor) {
+      this.flushExecutor = flushExecutor;
+      return this;
+    }
+
+    /**
+     * Set whether batches are delivered one at a time, in the order of their elements. In ordered
+     * mode the stripe count must be 1, the maximum number of outstanding batches is 1, and held
+     * batch limits are ignored. Defaults to false.
+     *
+     * <p>
+     * Ordering is best-effort after a failure: a batch is sent once the previous batch has
+     * completed, whether it succeeded or failed, so the elements of a failed batch are not
+     * delivered before those of later batches. Callers which retry failed elements must stop adding
+     * elements until the retry has completed to keep their order.
+     */
+    public Builder<E> setOrdered(boolean ordered) {
+      this.ordered = ordered;
+      return this;
+    }
+
     /** Build the ThresholdBatcher. */
     public ThresholdBatcher<E> build() {
       return new ThresholdBatcher<>(this);
@@ -159,34 +322,78 @@ public final class ThresholdBatcher<E> {
    * thresholds, the batch will be sent to the {@code ThresholdBatchReceiver}.
    *
    * @throws FlowControlException
+   * @throws IllegalStateException if the ThresholdBatcher has been closed
    */
   public void add(E e) throws FlowControlException {
+    checkNotClosed();
     // We need to reserve resources from flowController outside the lock, so that they can be
     // released by pushCurrentBatch().
-    flowController.reserve(e);
-    lock.lock();
-    try {
-      receiver.validateBatch(e);
-      boolean anyThresholdReached = isAnyThresholdReached(e);
+    long elements = flowController.countElements(e);
+    long bytes = flowController.countBytes(e);
+    flowController.reserve(elements, bytes);
+    addReserved(e, elements, bytes);
+  }
 
-      if (currentOpenBatch == null) {
-        currentOpenBatch = e;
-        // Schedule a job only when no thresholds have been exceeded, otherwise it will be
-        // immediately cancelled
-        if (!anyThresholdReached) {
-          currentAlarmFuture =
-              executor.schedule(
-                  pushCurrentBatchRunnable, maxDelay.getMillis(), TimeUnit.MILLISECONDS);
-        }
-      } else {
-        batchMerger.merge(currentOpenBatch, e);
-      }
+  /**
+   * Adds an element to the batcher without blocking the calling thread on flow control. The
+   * returned future completes once the flow controller has granted the resources for the element
+   * and the element has been added to a batch. If the resources are not available at once, the
+   * element is added from the executor of the ThresholdBatcher once they are released. If the flow
+   * controller rejects the element, the future fails with a {@link FlowControlException}, and if
+   * the ThresholdBatcher has been closed by then, with an {@link IllegalStateException}.
+   */
+  public ApiFuture<Void> addAsync(final E e) {
+    if (closed) {
+      return ApiFutures.immediateFailedFuture(newClosedException());
+    }
+    final long elements = flowController.countElements(e);
+    final long bytes = flowController.countBytes(e);
+    final SettableApiFuture<Void> addFuture = SettableApiFuture.create();
+    ApiFutureCallback<Void> reserveCallback =
+        new ApiFutureCallback<Void>() {
+          @Override
+          public void onSuccess(Void result) {
+            try {
+              addReserved(e, elements, bytes);
+            } catch (RuntimeException ex) {
+              addFuture.setException(ex);
+              return;
+            }
+            addFuture.set(null);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            addFuture.setException(t);
+          }
+        };
+    ApiFuture<Void> reserveFuture = flowController.reserveAsync(elements, bytes);
+    if (reserveFuture.isDone()) {
+      ApiFutures.addCallback(reserveFuture, reserveCallback);
+    } else {
+      // A queued reservation is granted inside FlowController.release(), which is called by
+      // completing batches. Adding the element may push and send a batch, so it is done from the
+      // executor rather than recursing into that release.
+      ApiFutures.addCallback(reserveFuture, reserveCallback, executor);
+    }
+    return addFuture;
+  }
 
-      if (anyThresholdReached) {
-        pushCurrentBatch();
+  /**
+   * Adds an element whose flow control resources have been reserved. The resources are released
+   * here if the element is rejected, and otherwise with those of the batch it is added to.
+   */
+  private void addReserved(E e, long elements, long bytes) {
+    OpenBatch openBatch = lockAnyOpenBatch();
+    try {
+      // Checked with the lock held, so that close() cannot miss an element added concurrently.
+      if (closed) {
+        flowController.release(elements, bytes);
+        throw newClosedException();
       }
+      openBatch.add(e, elements, bytes);
     } finally {
-      lock.unlock();
+      openBatch.lock.unlock();
     }
   }
 
@@ -195,62 +402,431 @@ public final class ThresholdBatcher<E> {
    */
   @VisibleForTesting
   boolean isEmpty() {
-    lock.lock();
-    try {
-      return currentOpenBatch == null;
-    } finally {
-      lock.unlock();
+    for (OpenBatch openBatch : openBatches) {
+      openBatch.lock.lock();
+      try {
+        if (openBatch.currentOpenBatch != null) {
+          return false;
+        }
+      } finally {
+        openBatch.lock.unlock();
+      }
     }
+    return true;
   }
 
   /**
-   * Push the current batch to the batch receiver. Returns an ApiFuture that completes once the
-   * batch has been processed by the batch receiver and the flow controller resources have been
-   * released.
+   * Push all currently open batches to the batch receiver. Returns an ApiFuture that completes once
+   * the batches have been processed by the batch receiver and the flow controller resources have
+   * been released.
    *
-   * Note that this future can complete for the current batch before previous batches have
+   * Note that this future can complete for the current batches before previous batches have
    * completed, so it cannot be depended upon for flushing.
    */
   @VisibleForTesting
   public ApiFuture<Void> pushCurrentBatch() {
-    final E batch = removeBatch();
-    if (batch == null) {
-      return ApiFutures.immediateFuture(null);
-    } else {
-      return ApiFutures.transform(
-          receiver.processBatch(batch), new ReleaseResourcesFunction<>(batch));
+    if (openBatches.size() == 1) {
+      return openBatches.get(0).push(false);
     }
+    List<ApiFuture<Void>> pushFutures = new ArrayList<>(openBatches.size());
+    for (OpenBatch openBatch : openBatches) {
+      pushFutures.add(openBatch.push(false));
+    }
+    return ApiFutures.transform(ApiFutures.allAsList(pushFutures), TO_VOID_FUNCTION);
   }
 
-  private E removeBatch() {
-    lock.lock();
-    try {
-      E batch = currentOpenBatch;
-      currentOpenBatch = null;
+  /**
+   * Push all currently open batches to the batch receiver. Returns an ApiFuture that completes once
+   * these batches, and all batches which were pushed before them, have been processed by the batch
+   * receiver. The returned future completes successfully even if processing some of the batches
+   * failed, as failures are reported through the elements of the batches.
+   */
+  public ApiFuture<Void> flush() {
+    if (ordered) {
+      return openBatches.get(0).flushOrdered();
+    }
+    pushCurrentBatch();
+    List<ApiFuture<Void>> batchFutures = new ArrayList<>();
+    for (ApiFuture<Void> batchFuture : outstandingBatches) {
+      batchFutures.add(ApiFutures.catching(batchFuture, Throwable.class, IGNORE_FAILURE_FUNCTION));
+    }
+    return ApiFutures.transform(ApiFutures.allAsList(batchFutures), TO_VOID_FUNCTION);
+  }
+
+  /**
+   * Stops accepting new elements and flushes the ThresholdBatcher. Calls to {@link #add} after
+   * close() throw an {@link IllegalStateException}. Returns an ApiFuture that completes once all
+   * previously added elements have been processed, as described in {@link #flush}. Calling close()
+   * more than once is allowed.
+   */
+  public ApiFuture<Void> close() {
+    closed = true;
+    return flush();
+  }
+
+  /** Returns whether {@link #close} has been called on this ThresholdBatcher. */
+  public boolean isClosed() {
+    return closed;
+  }
+
+  private void checkNotClosed() {
+    if (closed) {
+      throw newClosedException();
+    }
+  }
+
+  private static IllegalStateException newClosedException() {
+    return new IllegalStateException("ThresholdBatcher has been closed");
+  }
+
+  /**
+   * Takes one of the outstanding batch slots if fewer than maxOutstandingBatches batches are
+   * outstanding.
+   */
+  private boolean tryAcquireOutstandingBatch() {
+    while (true) {
+      int count = outstandingBatchCount.get();
+      if (count >= maxOutstandingBatches) {
+        return false;
+      }
+      if (outstandingBatchCount.compareAndSet(count, count + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Releases an outstanding batch slot, and schedules held batches to be sent in its place. The
+   * held batches are not sent directly, since this can be called with the lock of another open
+   * batch held.
+   */
+  private void releaseOutstandingBatch() {
+    outstandingBatchCount.decrementAndGet();
+    for (OpenBatch openBatch : openBatches) {
+      if (openBatch.held) {
+        executor.execute(pushHeldBatchesRunnable);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Locks and returns an open batch, preferring one which is not locked by another thread. The
+   * search starts from a stripe derived from the current thread so that a publisher tends to keep
+   * appending to the same batch.
+   */
+  private OpenBatch lockAnyOpenBatch() {
+    int stripeCount = openBatches.size();
+    int home = (int) (Thread.currentThread().getId() % stripeCount);
+    for (int i = 0; i < stripeCount; i++) {
+      OpenBatch openBatch = openBatches.get((home + i) % stripeCount);
+      if (openBatch.lock.tryLock()) {
+        return openBatch;
+      }
+    }
+    OpenBatch openBatch = openBatches.get(home);
+    openBatch.lock.lock();
+    return openBatch;
+  }
+
+  /** A single stripe, holding one open batch together with its thresholds and delay alarm. */
+  private class OpenBatch {
+    private final Runnable pushRunnable =
+        new Runnable() {
+          @Override
+          public void run() {
+            push(true);
+          }
+        };
+
+    // Invariant:
+    // - lock gates all accesses to members below
+    // - currentAlarmFuture and currentTimeout are non-null only if currentOpenBatch is, and at most
+    //   one of them is non-null
+    // - reservedElements and reservedBytes are the flow control resources held by currentOpenBatch,
+    //   as counted when its elements were added
+    // - held is true if currentOpenBatch has reached a threshold or its delay, but could not be
+    //   sent because maxOutstandingBatches was reached; it is volatile so that completing batches
+    //   can look for held batches without taking the lock
+    // - heldBatchFuture is non-null only if held is, and is the future returned for
+    //   currentOpenBatch by the pushes which held it; it completes once the batch is processed
+    // - in ordered mode, sentBatchCount and completedBatchCount count the batches sent from and
+    //   completed for this open batch, which complete in the order they are sent, and each of
+    //   orderedFlushes completes once completedBatchCount reaches its target
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayList<BatchingThreshold<E>> thresholds;
+    private final ArrayList<BatchingThreshold<E>> heldBatchLimits;
+    private E currentOpenBatch;
+    private Future<?> currentAlarmFuture;
+    private HashedWheelTimer.Timeout currentTimeout;
+    private long reservedElements;
+    private long reservedBytes;
+    private volatile boolean held;
+    private SettableApiFuture<Void> heldBatchFuture;
+    private long sentBatchCount;
+    private long completedBatchCount;
+    private final List<OrderedFlush> orderedFlushes = new ArrayList<>();
+
+    private OpenBatch(
+        Collection<BatchingThreshold<E>> thresholds,
+        Collection<BatchingThreshold<E>> heldBatchLimits) {
+      this.thresholds = new ArrayList<>(thresholds);
+      this.heldBatchLimits = new ArrayList<>(heldBatchLimits);
+      resetThresholds();
+    }
+
+    /**
+     * Must be called with the lock held. Releases the resources of the element if it is rejected by
+     * the receiver. Once the element is part of the open batch, its resources are released together
+     * with those of the batch, even if sending the batch fails.
+     */
+    private void add(E e, long elements, long bytes) {
+      try {
+        receiver.validateBatch(e);
+      } catch (RuntimeException ex) {
+        flowController.release(elements, bytes);
+        throw ex;
+      }
+      boolean anyThresholdReached = isAnyThresholdReached(thresholds, e);
+      boolean anyHeldBatchLimitReached = isAnyThresholdReached(heldBatchLimits, e);
+      reservedElements += elements;
+      reservedBytes += bytes;
+
+      if (currentOpenBatch == null) {
+        currentOpenBatch = e;
+        // Schedule a job only when no thresholds have been exceeded, otherwise it will be
+        // immediately cancelled
+        if (!anyThresholdReached) {
+          scheduleAlarm();
+        }
+      } else {
+        batchMerger.merge(currentOpenBatch, e);
+      }
+
+      if (anyHeldBatchLimitReached && !ordered) {
+        push(false);
+      } else if (anyThresholdReached || held) {
+        push(true);
+      }
+    }
+
+    /**
+     * Returns a future which completes once the current batch, and all batches sent before it, have
+     * completed. Pushes the current batch, unless a previous batch is still outstanding, in which
+     * case the current batch is sent after it.
+     */
+    private ApiFuture<Void> flushOrdered() {
+      SettableApiFuture<Void> flushFuture = SettableApiFuture.create();
+      lock.lock();
+      try {
+        long targetBatchCount = sentBatchCount + (currentOpenBatch != null ? 1 : 0);
+        if (completedBatchCount >= targetBatchCount) {
+          flushFuture.set(null);
+        } else {
+          orderedFlushes.add(new OrderedFlush(targetBatchCount, flushFuture));
+        }
+        push(true);
+      } finally {
+        lock.unlock();
+      }
+      return flushFuture;
+    }
+
+    /**
+     * Sends the current batch to the receiver. If checkOutstandingLimit is true or the batcher is
+     * ordered, and maxOutstandingBatches has been reached, the batch is held open instead.
+     */
+    private ApiFuture<Void> push(boolean checkOutstandingLimit) {
+      checkOutstandingLimit |= ordered;
+      E batch;
+      long elements;
+      long bytes;
+      SettableApiFuture<Void> batchFuture = null;
+      lock.lock();
+      try {
+        batch = currentOpenBatch;
+        if (batch != null) {
+          if (!checkOutstandingLimit) {
+            outstandingBatchCount.incrementAndGet();
+          } else if (!tryAcquireOutstandingBatch()) {
+            held = true;
+            // Try again now that held is set: a batch which completed in between either sees held
+            // and pushes this batch later, or has freed a slot which is taken here.
+            if (!tryAcquireOutstandingBatch()) {
+              cancelAlarm();
+              if (heldBatchFuture == null) {
+                heldBatchFuture = SettableApiFuture.create();
+              }
+              return heldBatchFuture;
+            }
+          }
+          // Registered before the lock is released, so that a concurrent flush() which finds this
+          // batch no longer open still waits for it.
+          batchFuture =
+              heldBatchFuture != null ? heldBatchFuture : SettableApiFuture.<Void>create();
+          outstandingBatches.add(batchFuture);
+          sentBatchCount++;
+        }
+        elements = reservedElements;
+        bytes = reservedBytes;
+        currentOpenBatch = null;
+        reservedElements = 0;
+        reservedBytes = 0;
+        held = false;
+        heldBatchFuture = null;
+        cancelAlarm();
+        resetThresholds();
+      } finally {
+        lock.unlock();
+      }
+      if (batch == null) {
+        return ApiFutures.immediateFuture(null);
+      }
+      if (flushExecutor == null) {
+        send(batch, elements, bytes, batchFuture);
+        return batchFuture;
+      }
+      final E finalBatch = batch;
+      final long finalElements = elements;
+      final long finalBytes = bytes;
+      final SettableApiFuture<Void> finalBatchFuture = batchFuture;
+      Runnable sendRunnable =
+          new Runnable() {
+            @Override
+            public void run() {
+              try {
+                send(finalBatch, finalElements, finalBytes, finalBatchFuture);
+              } catch (RuntimeException e) {
+                // Already reported through finalBatchFuture.
+              }
+            }
+          };
+      try {
+        flushExecutor.execute(sendRunnable);
+      } catch (RejectedExecutionException e) {
+        sendRunnable.run();
+      }
+      return batchFuture;
+    }
+
+    /** Sends a batch taken from this open batch to the receiver, completing batchFuture after. */
+    private void send(
+        E batch, long elements, long bytes, final SettableApiFuture<Void> batchFuture) {
+      final long sentNanos = adaptiveBatchSizer != null ? adaptiveBatchSizer.nanoTime() : 0;
+      ApiFuture<Void> processFuture;
+      try {
+        processFuture =
+            ApiFutures.transform(
+                receiver.processBatch(batch), new ReleaseResourcesFunction<>(elements, bytes));
+      } catch (RuntimeException e) {
+        // The release function never runs, so the resources of the whole batch are released here.
+        flowController.release(elements, bytes);
+        completeBatch(batchFuture, sentNanos, e);
+        throw e;
+      }
+      ApiFutures.addCallback(
+          processFuture,
+          new ApiFutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+              completeBatch(batchFuture, sentNanos, null);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+              completeBatch(batchFuture, sentNanos, t);
+            }
+          });
+    }
+
+    /** Must be called with the lock held. */
+    private void scheduleAlarm() {
+      long delayNanos =
+          adaptiveBatchSizer != null
+              ? adaptiveBatchSizer.getDelayNanos()
+              : TimeUnit.MILLISECONDS.toNanos(maxDelay.getMillis());
+      if (delayTimer != null) {
+        currentTimeout = delayTimer.newTimeout(pushRunnable, delayNanos, TimeUnit.NANOSECONDS);
+      } else {
+        currentAlarmFuture = executor.schedule(pushRunnable, delayNanos, TimeUnit.NANOSECONDS);
+      }
+    }
+
+    /** Must be called with the lock held. */
+    private void cancelAlarm() {
       if (currentAlarmFuture != null) {
         currentAlarmFuture.cancel(false);
         currentAlarmFuture = null;
       }
-      resetThresholds();
-      return batch;
-    } finally {
-      lock.unlock();
+      if (currentTimeout != null) {
+        currentTimeout.cancel();
+        currentTimeout = null;
+      }
     }
-  }
 
-  private boolean isAnyThresholdReached(E e) {
-    for (BatchingThreshold<E> threshold : thresholds) {
-      threshold.accumulate(e);
-      if (threshold.isThresholdReached()) {
-        return true;
+    private void completeBatch(
+        SettableApiFuture<Void> batchFuture, long sentNanos, Throwable throwable) {
+      if (adaptiveBatchSizer != null) {
+        adaptiveBatchSizer.recordBatchLatencyNanos(adaptiveBatchSizer.nanoTime() - sentNanos);
+      }
+      List<SettableApiFuture<Void>> completedFlushes = new ArrayList<>();
+      if (ordered) {
+        lock.lock();
+        try {
+          completedBatchCount++;
+          for (Iterator<OrderedFlush> it = orderedFlushes.iterator(); it.hasNext(); ) {
+            OrderedFlush orderedFlush = it.next();
+            if (orderedFlush.targetBatchCount <= completedBatchCount) {
+              completedFlushes.add(orderedFlush.flushFuture);
+              it.remove();
+            }
+          }
+        } finally {
+          lock.unlock();
+        }
+      }
+      outstandingBatches.remove(batchFuture);
+      releaseOutstandingBatch();
+      if (throwable != null) {
+        batchFuture.setException(throwable);
+      } else {
+        batchFuture.set(null);
+      }
+      for (SettableApiFuture<Void> flushFuture : completedFlushes) {
+        flushFuture.set(null);
+      }
+    }
+
+    private boolean isAnyThresholdReached(List<BatchingThreshold<E>> thresholds, E e) {
+      // All thresholds accumulate the element, since a held batch stays open after reaching one.
+      boolean anyThresholdReached = false;
+      for (BatchingThreshold<E> threshold : thresholds) {
+        threshold.accumulate(e);
+        if (threshold.isThresholdReached()) {
+          anyThresholdReached = true;
+        }
+      }
+      return anyThresholdReached;
+    }
+
+    private void resetThresholds() {
+      for (int i = 0; i < thresholds.size(); i++) {
+        thresholds.set(i, thresholds.get(i).copyWithZeroedValue());
+      }
+      for (int i = 0; i < heldBatchLimits.size(); i++) {
+        heldBatchLimits.set(i, heldBatchLimits.get(i).copyWithZeroedValue());
       }
     }
-    return false;
   }
 
-  private void resetThresholds() {
-    for (int i = 0; i < thresholds.size(); i++) {
-      thresholds.set(i, thresholds.get(i).copyWithZeroedValue());
+  /** A call to flush() in ordered mode, waiting for a number of batches to complete. */
+  private static class OrderedFlush {
+    private final long targetBatchCount;
+    private final SettableApiFuture<Void> flushFuture;
+
+    private OrderedFlush(long targetBatchCount, SettableApiFuture<Void> flushFuture) {
+      this.targetBatchCount = targetBatchCount;
+      this.flushFuture = flushFuture;
     }
   }
 }
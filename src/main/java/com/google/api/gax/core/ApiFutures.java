@@ -31,9 +31,15 @@ package com.google.api.gax.core;
 
 import com.google.api.gax.core.internal.ApiFutureToListenableFuture;
 import com.google.api.gax.core.internal.ListenableFutureToApiFuture;
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.List;
+import java.util.concurrent.Executor;
 import javax.annotation.Nullable;
 
 /**
@@ -44,6 +50,12 @@ public final class ApiFutures {
 
   public static <V> void addCallback(
       final ApiFuture<V> future, final ApiFutureCallback<? super V> callback) {
+    addCallback(future, callback, MoreExecutors.directExecutor());
+  }
+
+  /** Registers a callback to be run on the given executor once the future completes. */
+  public static <V> void addCallback(
+      final ApiFuture<V> future, final ApiFutureCallback<? super V> callback, Executor executor) {
     Futures.addCallback(
         listenableFutureForApiFuture(future),
         new FutureCallback<V>() {
@@ -56,7 +68,8 @@ public final class ApiFutures {
           public void onSuccess(V v) {
             callback.onSuccess(v);
           }
-        });
+        },
+        executor);
   }
 
   public static <V, X extends Throwable> ApiFuture<V> catching(
@@ -71,6 +84,24 @@ public final class ApiFutures {
     return new ListenableFutureToApiFuture<V>(catchingFuture);
   }
 
+  /**
+   * Returns a future whose value is the list of values of the given futures, in order. The returned
+   * future fails as soon as any of the input futures fails.
+   */
+  public static <V> ApiFuture<List<V>> allAsList(
+      Iterable<? extends ApiFuture<? extends V>> futures) {
+    return new ListenableFutureToApiFuture<>(
+        Futures.<V>allAsList(
+            Iterables.transform(
+                futures,
+                new Function<ApiFuture<? extends V>, ListenableFuture<? extends V>>() {
+                  @Override
+                  public ListenableFuture<? extends V> apply(ApiFuture<? extends V> apiFuture) {
+                    return listenableFutureForApiFuture(apiFuture);
+                  }
+                })));
+  }
+
   public static <V> ApiFuture<V> immediateFuture(V value) {
     return new ListenableFutureToApiFuture<>(Futures.<V>immediateFuture(value));
   }
@@ -86,6 +117,24 @@ public final class ApiFutures {
             listenableFutureForApiFuture(input), new GaxFunctionToGuavaFunction<V, X>(function)));
   }
 
+  /**
+   * Returns a future whose value is taken from the future returned by applying the given function
+   * to the value of the input future.
+   */
+  public static <I, O> ApiFuture<O> transformAsync(
+      ApiFuture<I> input, final ApiAsyncFunction<? super I, ? extends O> function) {
+    return new ListenableFutureToApiFuture<>(
+        Futures.transformAsync(
+            listenableFutureForApiFuture(input),
+            new AsyncFunction<I, O>() {
+              @Override
+              @SuppressWarnings("unchecked")
+              public ListenableFuture<O> apply(I input) throws Exception {
+                return listenableFutureForApiFuture((ApiFuture<O>) function.apply(input));
+              }
+            }));
+  }
+
   private static <V> ListenableFuture<V> listenableFutureForApiFuture(ApiFuture<V> apiFuture) {
     ListenableFuture<V> listenableFuture;
     if (apiFuture instanceof AbstractApiFuture) {
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017, Google Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.google.api.gax.core;
+
+import java.util.List;
+
+/**
+ * A Page which can also retrieve the following pages asynchronously, and prefetch them while it is
+ * being iterated.
+ *
+ * <p>
+ * This is a separate interface rather than part of {@link Page}, so that existing implementations
+ * of Page are not broken.
+ */
+public interface AsyncPage<RequestT, ResponseT, ResourceT>
+    extends Page<RequestT, ResponseT, ResourceT> {
+  /**
+   * Retrieves the next Page object asynchronously using the next page token. If there are no more
+   * pages to be retrieved, a NoSuchElementException is thrown. The hasNextPage() method should be
+   * used to check if a Page object is available.
+   */
+  ApiFuture<AsyncPage<RequestT, ResponseT, ResourceT>> getNextPageAsync();
+
+  /**
+   * Return the elements in the response as an unmodifiable list.
+   */
+  List<ResourceT> getPageElements();
+
+  /**
+   * Return an iterator over Page objects, beginning with this object. While a page is being
+   * consumed, up to prefetchPageCount following pages are retrieved in the background.
+   */
+  Iterable<Page<RequestT, ResponseT, ResourceT>> iteratePages(int prefetchPageCount);
+}
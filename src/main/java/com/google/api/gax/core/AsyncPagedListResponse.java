@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017, Google Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.google.api.gax.core;
+
+/**
+ * A PagedListResponse whose pages can be retrieved asynchronously, and prefetched while they are
+ * being iterated.
+ *
+ * <p>
+ * This is a separate interface rather than part of {@link PagedListResponse}, so that existing
+ * implementations of PagedListResponse are not broken.
+ */
+public interface AsyncPagedListResponse<RequestT, ResponseT, ResourceT>
+    extends PagedListResponse<RequestT, ResponseT, ResourceT> {
+  /**
+   * Returns an iterator over the full list of elements. While the elements of a page are being
+   * consumed, up to prefetchPageCount following pages are retrieved in the background. Note: This
+   * method is not thread-safe.
+   */
+  Iterable<ResourceT> iterateAllElements(int prefetchPageCount);
+
+  /**
+   * Returns the current page of results. Note: This method is not thread-safe.
+   */
+  @Override
+  AsyncPage<RequestT, ResponseT, ResourceT> getPage();
+
+  /**
+   * Returns a future for the current page of results, without blocking. Note: This method is not
+   * thread-safe.
+   */
+  ApiFuture<AsyncPage<RequestT, ResponseT, ResourceT>> getPageAsync();
+
+  /**
+   * Returns an iterator over the pages, beginning with the current page. While a page is being
+   * consumed, up to prefetchPageCount following pages are retrieved in the background. Note: This
+   * method is not thread-safe.
+   */
+  Iterable<Page<RequestT, ResponseT, ResourceT>> iteratePages(int prefetchPageCount);
+}
@@ -62,6 +62,9 @@ public abstract class FlowControlSettings {
    * limits are exceeded.
    * <li>Block: the reserve() method of FlowController will block until the quote is available to be
    * reserved.
+   * <li>Enqueue: callers which support it, such as batching, use the reserveAsync() method of
+   * FlowController, which queues the reservation and completes a future once the quota is
+   * available, without blocking the calling thread. The reserve() method blocks as with Block.
    * <li>Ignore: all flow control limits will be ignored; the FlowController is disabled.
    * </ul>
    */
@@ -30,6 +30,10 @@
 package com.google.api.gax.core;
 
 import com.google.common.base.Preconditions;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.Semaphore;
 import javax.annotation.Nullable;
 
@@ -107,9 +111,29 @@ public class FlowController {
   public enum LimitExceededBehavior {
     ThrowException,
     Block,
+    Enqueue,
     Ignore,
   }
 
+  /** A reservation that could not be granted immediately by {@link #reserveAsync}. */
+  private static final class PendingReservation {
+    private final int elements;
+    private final int bytes;
+    private final SettableApiFuture<Void> future = SettableApiFuture.create();
+
+    private PendingReservation(int elements, int bytes) {
+      this.elements = elements;
+      this.bytes = bytes;
+    }
+  }
+
+  private final LimitExceededBehavior limitExceededBehavior;
+  // Reservations are granted in FIFO order. pendingReservations also serves as the lock which
+  // guarantees that a release can never be missed by a reservation which is being enqueued.
+  private final Queue<PendingReservation> pendingReservations = new ArrayDeque<>();
+  // Whether pendingReservations may be non-empty, so that releases only take its lock when a
+  // reservation is waiting.
+  private volatile boolean hasPendingReservations;
   @Nullable private final Semaphore outstandingElementCount;
   @Nullable private final Semaphore outstandingByteCount;
   private final boolean failOnLimits;
@@ -117,11 +141,13 @@ public class FlowController {
   @Nullable private final Integer maxOutstandingRequestBytes;
 
   public FlowController(FlowControlSettings settings) {
+    this.limitExceededBehavior = settings.getLimitExceededBehavior();
     switch (settings.getLimitExceededBehavior()) {
       case ThrowException:
         this.failOnLimits = true;
         break;
       case Block:
+      case Enqueue:
         this.failOnLimits = false;
         break;
       case Ignore:
@@ -167,6 +193,61 @@ public class FlowController {
     }
   }
 
+  /**
+   * Reserves the given number of elements and bytes without blocking the calling thread.
+   *
+   * <p>
+   * The returned future completes once the resources have been reserved. If the limits are
+   * currently exceeded, the reservation is queued and the future completes on the thread which
+   * releases enough resources, in the order in which reservations were requested. With the
+   * ThrowException behavior the future fails immediately with a {@link FlowControlException}
+   * instead. Cancelling the returned future withdraws a queued reservation.
+   *
+   * <p>
+   * Since a queued reservation completes inline on the releasing thread, a listener which is
+   * added directly to the returned future runs inside {@link #release}. If such a listener may
+   * itself reserve, release, or do work which releases in turn, it should be added with an
+   * executor, so that it does not recurse into the releasing caller.
+   */
+  public ApiFuture<Void> reserveAsync(int elements, int bytes) {
+    Preconditions.checkArgument(elements >= 0);
+    Preconditions.checkArgument(bytes >= 0);
+
+    if (outstandingElementCount == null && outstandingByteCount == null) {
+      return ApiFutures.immediateFuture(null);
+    }
+
+    if (failOnLimits) {
+      if (outstandingElementCount != null && !outstandingElementCount.tryAcquire(elements)) {
+        return ApiFutures.immediateFailedFuture(
+            new MaxOutstandingElementCountReachedException(maxOutstandingElementCount));
+      }
+      if (outstandingByteCount != null
+          && !outstandingByteCount.tryAcquire(Math.min(bytes, maxOutstandingRequestBytes))) {
+        if (outstandingElementCount != null) {
+          outstandingElementCount.release(elements);
+        }
+        return ApiFutures.immediateFailedFuture(
+            new MaxOutstandingRequestBytesReachedException(maxOutstandingRequestBytes));
+      }
+      return ApiFutures.immediateFuture(null);
+    }
+
+    PendingReservation reservation;
+    synchronized (pendingReservations) {
+      if (pendingReservations.isEmpty() && tryAcquire(elements, bytes)) {
+        return ApiFutures.immediateFuture(null);
+      }
+      reservation = new PendingReservation(elements, bytes);
+      pendingReservations.add(reservation);
+      hasPendingReservations = true;
+    }
+    // A release which happened after the failed tryAcquire above may have read
+    // hasPendingReservations before it was set, and skipped granting. Check again.
+    grantPendingReservations();
+    return reservation.future;
+  }
+
   public void release(int elements, int bytes) {
     Preconditions.checkArgument(elements >= 0);
     Preconditions.checkArgument(bytes >= 0);
@@ -179,5 +260,63 @@ public class FlowController {
       int permitsToReturn = Math.min(bytes, maxOutstandingRequestBytes);
       outstandingByteCount.release(permitsToReturn);
     }
+    if (hasPendingReservations) {
+      grantPendingReservations();
+    }
+  }
+
+  /** Returns the maximum number of outstanding bytes, or null if bytes are not limited. */
+  @Nullable
+  public Integer getMaxOutstandingRequestBytes() {
+    return maxOutstandingRequestBytes;
+  }
+
+  /** Returns the behavior of this FlowController when the limits are exceeded. */
+  public LimitExceededBehavior getLimitExceededBehavior() {
+    return limitExceededBehavior;
+  }
+
+  private void grantPendingReservations() {
+    List<PendingReservation> granted = null;
+    synchronized (pendingReservations) {
+      while (!pendingReservations.isEmpty()) {
+        PendingReservation reservation = pendingReservations.peek();
+        if (!reservation.future.isCancelled()) {
+          if (!tryAcquire(reservation.elements, reservation.bytes)) {
+            break;
+          }
+          if (granted == null) {
+            granted = new ArrayList<>();
+          }
+          granted.add(reservation);
+        }
+        pendingReservations.remove();
+      }
+      hasPendingReservations = !pendingReservations.isEmpty();
+    }
+    if (granted == null) {
+      return;
+    }
+    // Complete the futures outside of the lock, since their listeners may reserve or release.
+    for (PendingReservation reservation : granted) {
+      if (!reservation.future.set(null)) {
+        // The future was cancelled after the resources were acquired.
+        release(reservation.elements, reservation.bytes);
+      }
+    }
+  }
+
+  private boolean tryAcquire(int elements, int bytes) {
+    if (outstandingElementCount != null && !outstandingElementCount.tryAcquire(elements)) {
+      return false;
+    }
+    if (outstandingByteCount != null
+        && !outstandingByteCount.tryAcquire(Math.min(bytes, maxOutstandingRequestBytes))) {
+      if (outstandingElementCount != null) {
+        outstandingElementCount.release(elements);
+      }
+      return false;
+    }
+    return true;
   }
 }
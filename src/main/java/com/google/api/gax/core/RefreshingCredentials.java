@@ -0,0 +1,251 @@
+/*
+ * Copyright 2017, Google Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.google.api.gax.core;
+
+import com.google.auth.Credentials;
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.OAuth2Credentials;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.joda.time.Duration;
+
+/**
+ * Credentials which wrap OAuth2Credentials, cache their request metadata, and refresh the access
+ * token on an executor ahead of its expiry.
+ *
+ * <p>
+ * OAuth2Credentials refresh an expiring access token inline, while holding a lock, so every call
+ * made at that moment waits for the refresh. With RefreshingCredentials, calls read the cached
+ * request metadata without locking, and the token is refreshed in the background the given refresh
+ * margin before it expires. If a background refresh fails, it is retried after {@link
+ * #RETRY_DELAY_MILLIS}. Only if the cached token is about to expire anyway does a call refresh it
+ * inline. The refresh margin should therefore be longer than a minute.
+ *
+ * <p>
+ * The background refresh stops when {@link #close()} is called, or when the executor is shut down.
+ * Background refreshes do not hold the lock which calls take when they refresh the token inline, so
+ * a slow refresh never blocks them.
+ */
+public final class RefreshingCredentials extends Credentials {
+  static final long RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(10);
+  // Like OAuth2Credentials, do not use a token which expires in less than a minute.
+  private static final long MINIMUM_VALIDITY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  private final OAuth2Credentials credentials;
+  private final ScheduledExecutorService executor;
+  private final long refreshMarginMillis;
+  private final ApiClock clock;
+  private volatile CachedMetadata cachedMetadata;
+
+  // Invariant: - lock gates all accesses to members below
+  private final Object lock = new Object();
+  private URI lastUri;
+  private ScheduledFuture<?> scheduledRefresh;
+  private boolean closed;
+
+  private final Runnable refreshRunnable =
+      new Runnable() {
+        @Override
+        public void run() {
+          refreshInBackground();
+        }
+      };
+
+  public RefreshingCredentials(
+      OAuth2Credentials credentials, ScheduledExecutorService executor, Duration refreshMargin) {
+    this(credentials, executor, refreshMargin, CurrentMillisClock.getDefaultClock());
+  }
+
+  @VisibleForTesting
+  RefreshingCredentials(
+      OAuth2Credentials credentials,
+      ScheduledExecutorService executor,
+      Duration refreshMargin,
+      ApiClock clock) {
+    Preconditions.checkArgument(
+        refreshMargin.getMillis() >= 0, "refreshMargin must not be negative");
+    this.credentials = Preconditions.checkNotNull(credentials);
+    this.executor = Preconditions.checkNotNull(executor);
+    this.refreshMarginMillis = refreshMargin.getMillis();
+    this.clock = clock;
+  }
+
+  @Override
+  public String getAuthenticationType() {
+    return credentials.getAuthenticationType();
+  }
+
+  @Override
+  public Map<String, List<String>> getRequestMetadata(URI uri) throws IOException {
+    CachedMetadata cached = cachedMetadata;
+    if (cached != null && cached.isValid(clock.millisTime())) {
+      return cached.metadata;
+    }
+    synchronized (lock) {
+      cached = cachedMetadata;
+      if (cached != null && cached.isValid(clock.millisTime())) {
+        return cached.metadata;
+      }
+      lastUri = uri;
+      return loadMetadata().metadata;
+    }
+  }
+
+  @Override
+  public boolean hasRequestMetadata() {
+    return credentials.hasRequestMetadata();
+  }
+
+  @Override
+  public boolean hasRequestMetadataOnly() {
+    return credentials.hasRequestMetadataOnly();
+  }
+
+  @Override
+  public void refresh() throws IOException {
+    URI uri;
+    synchronized (lock) {
+      uri = lastUri;
+    }
+    credentials.refresh();
+    CachedMetadata cached = fetchMetadata(uri);
+    synchronized (lock) {
+      publish(cached);
+    }
+  }
+
+  /**
+   * Stops refreshing the access token in the background. The credentials remain usable, and refresh
+   * the token inline once the cached one is about to expire.
+   */
+  public void close() {
+    synchronized (lock) {
+      closed = true;
+      if (scheduledRefresh != null) {
+        scheduledRefresh.cancel(false);
+        scheduledRefresh = null;
+      }
+    }
+  }
+
+  private void refreshInBackground() {
+    URI uri;
+    synchronized (lock) {
+      if (closed) {
+        return;
+      }
+      uri = lastUri;
+    }
+    CachedMetadata cached;
+    try {
+      credentials.refresh();
+      cached = fetchMetadata(uri);
+    } catch (IOException | RuntimeException e) {
+      // Keep serving the cached token while it is valid, and try again later.
+      synchronized (lock) {
+        schedule(RETRY_DELAY_MILLIS);
+      }
+      return;
+    }
+    synchronized (lock) {
+      publish(cached);
+    }
+  }
+
+  // Loads the request metadata inline, for calls which find no valid cached token. Must be called
+  // while holding the lock, so that concurrent calls wait for a single refresh.
+  private CachedMetadata loadMetadata() throws IOException {
+    CachedMetadata cached = fetchMetadata(lastUri);
+    publish(cached);
+    return cached;
+  }
+
+  // Reads the request metadata of the wrapped credentials, which refresh the token if needed.
+  private CachedMetadata fetchMetadata(URI uri) throws IOException {
+    Map<String, List<String>> metadata = credentials.getRequestMetadata(uri);
+    AccessToken accessToken = credentials.getAccessToken();
+    Long expirationMillis = null;
+    if (accessToken != null && accessToken.getExpirationTime() != null) {
+      expirationMillis = accessToken.getExpirationTime().getTime();
+    }
+    return new CachedMetadata(metadata, expirationMillis);
+  }
+
+  // Caches the metadata and schedules the next refresh. Must be called while holding the lock.
+  private void publish(CachedMetadata cached) {
+    cachedMetadata = cached;
+    if (cached.expirationMillis != null) {
+      // Tokens which live shorter than the refresh margin are not refreshed in a busy loop.
+      schedule(
+          Math.max(
+              RETRY_DELAY_MILLIS,
+              cached.expirationMillis - refreshMarginMillis - clock.millisTime()));
+    }
+  }
+
+  // Must be called while holding the lock.
+  private void schedule(long delayMillis) {
+    if (scheduledRefresh != null) {
+      scheduledRefresh.cancel(false);
+      scheduledRefresh = null;
+    }
+    if (closed) {
+      return;
+    }
+    try {
+      scheduledRefresh = executor.schedule(refreshRunnable, delayMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // The executor has been shut down; calls refresh the token inline from now on.
+      scheduledRefresh = null;
+    }
+  }
+
+  private static final class CachedMetadata {
+    private final Map<String, List<String>> metadata;
+    private final Long expirationMillis;
+
+    private CachedMetadata(Map<String, List<String>> metadata, Long expirationMillis) {
+      this.metadata = metadata;
+      this.expirationMillis = expirationMillis;
+    }
+
+    private boolean isValid(long nowMillis) {
+      return expirationMillis == null || nowMillis < expirationMillis - MINIMUM_VALIDITY_MILLIS;
+    }
+  }
+}
@@ -43,31 +43,67 @@ import java.util.List;
  *
  * <p>
  * Additional batches can be merged into an existing batch using the {@link #merge(Batch)} method.
- * Request objects are combined using a {@link RequestBuilder} into a single request.
+ * Merging only collects the original request objects, along with their element and byte counts;
+ * they are combined using a {@link RequestBuilder} into a single request when the batch request is
+ * first needed.
  */
 public class Batch<RequestT, ResponseT> {
+  private final BatchingDescriptor<RequestT, ResponseT> descriptor;
+  private final List<RequestT> requests;
   private final List<BatchedRequestIssuer<ResponseT>> requestIssuerList;
 
-  private final RequestBuilder<RequestT> requestBuilder;
   private UnaryCallable<RequestT, ResponseT> callable;
+  private long elementCount;
   private long byteCount;
+  // The combined request, built lazily and discarded by merge().
+  private RequestT request;
 
   public Batch(
       BatchingDescriptor<RequestT, ResponseT> descriptor,
       RequestT request,
       UnaryCallable<RequestT, ResponseT> callable,
       BatchedFuture<ResponseT> batchedFuture) {
-    this.requestBuilder = descriptor.getRequestBuilder();
+    this(descriptor, request, callable, batchedFuture, true);
+  }
+
+  /**
+   * Creates a batch holding a single request. If countBytes is false, the byte count of the
+   * request is not computed and is reported as zero, which avoids the cost of sizing the request
+   * when no byte based threshold or limit is configured.
+   */
+  public Batch(
+      BatchingDescriptor<RequestT, ResponseT> descriptor,
+      RequestT request,
+      UnaryCallable<RequestT, ResponseT> callable,
+      BatchedFuture<ResponseT> batchedFuture,
+      boolean countBytes) {
+    this.descriptor = descriptor;
+    this.requests = new ArrayList<>();
+    this.requests.add(request);
     this.requestIssuerList = new ArrayList<>();
-    this.requestBuilder.appendRequest(request);
     this.callable = callable;
-    this.requestIssuerList.add(
-        new BatchedRequestIssuer<>(batchedFuture, descriptor.countElements(request)));
-    this.byteCount = descriptor.countBytes(request);
+    this.elementCount = descriptor.countElements(request);
+    this.requestIssuerList.add(new BatchedRequestIssuer<>(batchedFuture, elementCount));
+    this.byteCount = countBytes ? descriptor.countBytes(request) : 0;
   }
 
   public RequestT getRequest() {
-    return requestBuilder.build();
+    if (request == null) {
+      RequestBuilder<RequestT> requestBuilder = descriptor.getRequestBuilder();
+      for (RequestT part : requests) {
+        requestBuilder.appendRequest(part);
+      }
+      request = requestBuilder.build();
+    }
+    return request;
+  }
+
+  /**
+   * Returns the original requests which make up this batch, in the same order as the request
+   * issuers.
+   */
+  List<RequestT> getRequests() {
+    return requests;
   }
 
   public UnaryCallable<RequestT, ResponseT> getCallable() {
@@ -78,16 +114,22 @@ public class Batch<RequestT, ResponseT> {
     return requestIssuerList;
   }
 
+  public long getElementCount() {
+    return elementCount;
+  }
+
   public long getByteCount() {
     return byteCount;
   }
 
   public void merge(Batch<RequestT, ResponseT> batch) {
-    requestBuilder.appendRequest(batch.getRequest());
+    requests.addAll(batch.requests);
     requestIssuerList.addAll(batch.requestIssuerList);
     if (this.callable == null) {
       this.callable = batch.callable;
     }
+    this.elementCount += batch.elementCount;
     this.byteCount += batch.byteCount;
+    this.request = null;
   }
 }
@@ -30,12 +30,23 @@
 package com.google.api.gax.grpc;
 
 import com.google.api.gax.batching.PartitionKey;
+import com.google.api.gax.batching.RequestBuilder;
 import com.google.api.gax.batching.ThresholdBatchReceiver;
 import com.google.api.gax.core.ApiFuture;
 import com.google.api.gax.core.ApiFutureCallback;
 import com.google.api.gax.core.ApiFutures;
+import com.google.api.gax.core.NanoClock;
+import com.google.api.gax.core.RetrySettings;
+import com.google.api.gax.core.SettableApiFuture;
+import com.google.api.gax.retrying.ExponentialRetryAlgorithm;
+import com.google.api.gax.retrying.TimedAttemptSettings;
 import com.google.common.base.Preconditions;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.joda.time.Duration;
 
 /**
  * A ThresholdBatchReceiver which uses a provided BatchingDescriptor to merge the items from the
@@ -54,11 +65,24 @@ class BatchExecutor<RequestT, ResponseT>
 
   private final BatchingDescriptor<RequestT, ResponseT> batchingDescriptor;
   private final PartitionKey partitionKey;
+  private final ScheduledExecutorService executor;
+  private final ExponentialRetryAlgorithm retryAlgorithm;
 
+  /**
+   * Constructs a BatchExecutor. If the batching descriptor is a
+   * {@link PartialFailureBatchingDescriptor}, the failed requests of a batch are sent again on the
+   * executor, after a delay computed from the given retry settings.
+   */
   public BatchExecutor(
-      BatchingDescriptor<RequestT, ResponseT> batchingDescriptor, PartitionKey partitionKey) {
+      BatchingDescriptor<RequestT, ResponseT> batchingDescriptor,
+      PartitionKey partitionKey,
+      ScheduledExecutorService executor,
+      RetrySettings retrySettings) {
     this.batchingDescriptor = Preconditions.checkNotNull(batchingDescriptor);
     this.partitionKey = Preconditions.checkNotNull(partitionKey);
+    this.executor = Preconditions.checkNotNull(executor);
+    this.retryAlgorithm =
+        new ExponentialRetryAlgorithm(retrySettings, NanoClock.getDefaultClock());
   }
 
   @Override
@@ -80,6 +104,14 @@ class BatchExecutor<RequestT, ResponseT>
     UnaryCallable<RequestT, ResponseT> callable = batch.getCallable();
     RequestT request = batch.getRequest();
     final List<BatchedRequestIssuer<ResponseT>> requestIssuerList = batch.getRequestIssuerList();
+    if (batchingDescriptor instanceof PartialFailureBatchingDescriptor) {
+      PartialFailureRetrier retrier =
+          new PartialFailureRetrier(
+              (PartialFailureBatchingDescriptor<RequestT, ResponseT>) batchingDescriptor, callable);
+      retrier.send(
+          batch.getRequests(), requestIssuerList, request, retryAlgorithm.createFirstAttempt());
+      return retrier.result;
+    }
     ApiFuture<ResponseT> future = callable.futureCall(request);
     ApiFutures.addCallback(
         future,
@@ -102,4 +134,165 @@ class BatchExecutor<RequestT, ResponseT>
         });
     return future;
   }
+
+  /**
+   * Sends a batch, and then sends again the requests of the batch which failed with a retryable
+   * error, until none are left or the retry limit is reached. Each retry is scheduled on the
+   * executor after an exponentially growing delay, and no retry is made past the total timeout of
+   * the retry settings. The result completes with the response to the first attempt once all
+   * attempts have completed.
+   */
+  private class PartialFailureRetrier {
+    private final PartialFailureBatchingDescriptor<RequestT, ResponseT> descriptor;
+    private final UnaryCallable<RequestT, ResponseT> callable;
+    private final SettableApiFuture<ResponseT> result = SettableApiFuture.create();
+    private volatile ResponseT firstResponse;
+
+    private PartialFailureRetrier(
+        PartialFailureBatchingDescriptor<RequestT, ResponseT> descriptor,
+        UnaryCallable<RequestT, ResponseT> callable) {
+      this.descriptor = descriptor;
+      this.callable = callable;
+    }
+
+    private void send(
+        final List<RequestT> requests,
+        final List<BatchedRequestIssuer<ResponseT>> requestIssuers,
+        RequestT request,
+        final TimedAttemptSettings attemptSettings) {
+      ApiFuture<ResponseT> future;
+      try {
+        future = callable.futureCall(request);
+      } catch (RuntimeException e) {
+        fail(requestIssuers, e);
+        return;
+      }
+      ApiFutures.addCallback(
+          future,
+          new ApiFutureCallback<ResponseT>() {
+            @Override
+            public void onSuccess(ResponseT response) {
+              try {
+                processResponse(requests, requestIssuers, response, attemptSettings);
+              } catch (RuntimeException e) {
+                fail(requestIssuers, e);
+              }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+              try {
+                descriptor.splitException(t, requestIssuers);
+                sendResults(requestIssuers);
+              } catch (RuntimeException e) {
+                fail(requestIssuers, e);
+                return;
+              }
+              if (attemptSettings.getAttemptCount() == 0) {
+                result.setException(t);
+              } else {
+                result.set(firstResponse);
+              }
+            }
+          });
+    }
+
+    private void processResponse(
+        List<RequestT> requests,
+        List<BatchedRequestIssuer<ResponseT>> requestIssuers,
+        ResponseT response,
+        TimedAttemptSettings attemptSettings) {
+      if (attemptSettings.getAttemptCount() == 0) {
+        firstResponse = response;
+      }
+      final TimedAttemptSettings nextAttemptSettings = createNextAttempt(attemptSettings);
+      if (nextAttemptSettings == null) {
+        descriptor.splitResponse(response, requestIssuers);
+        sendResults(requestIssuers);
+        result.set(firstResponse);
+        return;
+      }
+      List<Integer> failedPositions = descriptor.splitPartialResponse(response, requestIssuers);
+      final List<RequestT> failedRequests = new ArrayList<>(failedPositions.size());
+      final List<BatchedRequestIssuer<ResponseT>> failedRequestIssuers =
+          new ArrayList<>(failedPositions.size());
+      int nextFailedPosition = 0;
+      for (int i = 0; i < requestIssuers.size(); i++) {
+        if (nextFailedPosition < failedPositions.size()
+            && failedPositions.get(nextFailedPosition) == i) {
+          nextFailedPosition++;
+          failedRequests.add(requests.get(i));
+          failedRequestIssuers.add(requestIssuers.get(i));
+        } else {
+          requestIssuers.get(i).sendResult();
+        }
+      }
+      if (failedRequests.isEmpty()) {
+        result.set(firstResponse);
+        return;
+      }
+      RequestBuilder<RequestT> requestBuilder = descriptor.getRequestBuilder();
+      for (RequestT failedRequest : failedRequests) {
+        requestBuilder.appendRequest(failedRequest);
+      }
+      final RequestT retryRequest = requestBuilder.build();
+      Runnable retryRunnable =
+          new Runnable() {
+            @Override
+            public void run() {
+              send(failedRequests, failedRequestIssuers, retryRequest, nextAttemptSettings);
+            }
+          };
+      try {
+        executor.schedule(
+            retryRunnable,
+            nextAttemptSettings.getRandomizedRetryDelay().getMillis(),
+            TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        fail(failedRequestIssuers, e);
+      }
+    }
+
+    /**
+     * Returns the settings of the next attempt, or null if the retry limit of the descriptor or the
+     * total timeout of the retry settings has been reached.
+     */
+    private TimedAttemptSettings createNextAttempt(TimedAttemptSettings attemptSettings) {
+      if (attemptSettings.getAttemptCount() >= descriptor.getMaxPartialFailureRetries()) {
+        return null;
+      }
+      TimedAttemptSettings nextAttemptSettings;
+      if (attemptSettings.getGlobalSettings().getInitialRetryDelay().getMillis() == 0) {
+        // ExponentialRetryAlgorithm cannot randomize a zero delay.
+        nextAttemptSettings =
+            new TimedAttemptSettings(
+                attemptSettings.getGlobalSettings(),
+                Duration.ZERO,
+                attemptSettings.getRpcTimeout(),
+                Duration.ZERO,
+                attemptSettings.getAttemptCount() + 1,
+                attemptSettings.getFirstAttemptStartTime());
+      } else {
+        nextAttemptSettings = retryAlgorithm.createNextAttempt(attemptSettings);
+      }
+      return retryAlgorithm.accept(nextAttemptSettings) ? nextAttemptSettings : null;
+    }
+
+    /**
+     * Fails the requests which have no result yet, and the batch, after the descriptor or the
+     * callable threw.
+     */
+    private void fail(List<BatchedRequestIssuer<ResponseT>> requestIssuers, Throwable throwable) {
+      for (BatchedRequestIssuer<ResponseT> requestIssuer : requestIssuers) {
+        requestIssuer.sendExceptionIfPending(throwable);
+      }
+      result.setException(throwable);
+    }
+
+    private void sendResults(List<BatchedRequestIssuer<ResponseT>> requestIssuers) {
+      for (BatchedRequestIssuer<ResponseT> requestIssuer : requestIssuers) {
+        requestIssuer.sendResult();
+      }
+    }
+  }
 }
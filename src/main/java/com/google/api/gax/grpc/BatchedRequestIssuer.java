@@ -71,4 +71,15 @@ public final class BatchedRequestIssuer<ResponseT> {
           "Neither response nor exception were set in BatchedRequestIssuer");
     }
   }
+
+  /**
+   * Fails the future with the given throwable, unless a result has already been sent. Used when
+   * splitting a batched response failed part way through.
+   *
+   * <p>
+   * Package-private for internal use.
+   */
+  void sendExceptionIfPending(Throwable throwable) {
+    batchedFuture.setException(throwable);
+  }
 }
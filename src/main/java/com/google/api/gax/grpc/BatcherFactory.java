@@ -29,21 +29,43 @@
  */
 package com.google.api.gax.grpc;
 
+import com.google.api.gax.batching.AdaptiveBatchSizer;
 import com.google.api.gax.batching.BatchMerger;
 import com.google.api.gax.batching.BatchingFlowController;
 import com.google.api.gax.batching.BatchingSettings;
 import com.google.api.gax.batching.BatchingThreshold;
+import com.google.api.gax.batching.BatchingThresholds;
 import com.google.api.gax.batching.ElementCounter;
+import com.google.api.gax.batching.HashedWheelTimer;
 import com.google.api.gax.batching.NumericThreshold;
 import com.google.api.gax.batching.PartitionKey;
 import com.google.api.gax.batching.ThresholdBatcher;
+import com.google.api.gax.core.ApiClock;
+import com.google.api.gax.core.ApiFunction;
+import com.google.api.gax.core.ApiFuture;
+import com.google.api.gax.core.ApiFutureCallback;
+import com.google.api.gax.core.ApiFutures;
 import com.google.api.gax.core.FlowControlSettings;
 import com.google.api.gax.core.FlowController;
 import com.google.api.gax.core.FlowController.LimitExceededBehavior;
+import com.google.api.gax.core.NanoClock;
+import com.google.api.gax.core.RetrySettings;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
+import org.joda.time.Duration;
 
 /**
  * A Factory class which, for each unique partitionKey, creates a trio including a ThresholdBatcher,
@@ -51,60 +73,245 @@ import java.util.concurrent.ScheduledExecutorService;
  * the ThresholdBatcher and forwards them to the BatchExecutor for processing.
  *
  * <p>
+ * If the batching settings set a partition idle timeout or a maximum partition count, batchers are
+ * evicted: they are removed from the factory and closed, which pushes their open batches. An
+ * element added concurrently to an evicted batcher is either part of the final batches of that
+ * batcher, or rejected with an {@link IllegalStateException}, in which case {@link
+ * BatchingCallable} adds it to the batcher of the partition which replaced it.
+ *
+ * <p>
+ * The delay thresholds of the batches of all partitions are serviced by a single
+ * {@link HashedWheelTimer} running on the executor, rather than by a scheduled task per batch. Its
+ * tick is a tenth of the delay threshold, and it only runs while a batch is waiting for its delay
+ * threshold.
+ *
+ * <p>
  * This is public only for technical reasons, for advanced usage.
  */
 public final class BatcherFactory<RequestT, ResponseT> {
-  private final Map<PartitionKey, ThresholdBatcher<Batch<RequestT, ResponseT>>> batchers =
-      new ConcurrentHashMap<>();
+  /**
+   * The retry settings used for the failed requests of batches of a
+   * {@link PartialFailureBatchingDescriptor}, unless others are given: retries start after 100
+   * milliseconds, back off by a factor of 1.3 up to 10 seconds, and stop after a minute.
+   */
+  public static final RetrySettings DEFAULT_PARTIAL_FAILURE_RETRY_SETTINGS =
+      RetrySettings.newBuilder()
+          .setInitialRetryDelay(Duration.millis(100))
+          .setRetryDelayMultiplier(1.3)
+          .setMaxRetryDelay(Duration.standardSeconds(10))
+          .setInitialRpcTimeout(Duration.standardMinutes(1))
+          .setRpcTimeoutMultiplier(1)
+          .setMaxRpcTimeout(Duration.standardMinutes(1))
+          .setTotalTimeout(Duration.standardMinutes(1))
+          .build();
+
+  private final ConcurrentMap<PartitionKey, Partition> partitions = new ConcurrentHashMap<>();
   private final ScheduledExecutorService executor;
   private final BatchingDescriptor<RequestT, ResponseT> batchingDescriptor;
   private final FlowController flowController;
   private final BatchingSettings batchingSettings;
-  private final Object lock = new Object();
+  private final Executor flushExecutor;
+  private final RetrySettings partialFailureRetrySettings;
+  private final ApiClock clock;
+  private final HashedWheelTimer delayTimer;
+  private final boolean evictionEnabled;
+  private final boolean byteCountNeeded;
+  // Serializes the evictions of least recently used partitions, so that partitions added
+  // concurrently do not evict more partitions than needed. Only taken when a partition is added.
+  private final Object evictionLock = new Object();
+
+  private static final ApiFunction<List<Void>, Void> TO_VOID_FUNCTION =
+      new ApiFunction<List<Void>, Void>() {
+        @Override
+        public Void apply(List<Void> input) {
+          return null;
+        }
+      };
+
+  private final Runnable evictIdlePartitionsRunnable =
+      new Runnable() {
+        @Override
+        public void run() {
+          evictIdlePartitions();
+        }
+      };
+
+  private final AtomicBoolean idleEvictionScheduled = new AtomicBoolean();
+
+  // The closes of evicted batchers which are still in progress.
+  private final Set<ApiFuture<Void>> evictedBatcherCloses =
+      Collections.newSetFromMap(new ConcurrentHashMap<ApiFuture<Void>, Boolean>());
+  private volatile boolean closed;
 
   public BatcherFactory(
       BatchingDescriptor<RequestT, ResponseT> batchingDescriptor,
       BatchingSettings batchingSettings,
       ScheduledExecutorService executor) {
+    this(batchingDescriptor, batchingSettings, executor, createFlowController(batchingSettings));
+  }
+
+  public BatcherFactory(
+      BatchingDescriptor<RequestT, ResponseT> batchingDescriptor,
+      BatchingSettings batchingSettings,
+      ScheduledExecutorService executor,
+      FlowController flowController) {
+    this(batchingDescriptor, batchingSettings, executor, flowController, null);
+  }
+
+  /**
+   * Constructs a BatcherFactory whose batches are sent from the given flush executor. When a call
+   * fills a batch, building the batched request and starting the RPC then happen on the flush
+   * executor instead of the calling thread, so that the latency of calls stays predictable. If
+   * flushExecutor is null, batches are sent from the thread which completes them.
+   */
+  public BatcherFactory(
+      BatchingDescriptor<RequestT, ResponseT> batchingDescriptor,
+      BatchingSettings batchingSettings,
+      ScheduledExecutorService executor,
+      FlowController flowController,
+      @Nullable Executor flushExecutor) {
     this(
         batchingDescriptor,
         batchingSettings,
         executor,
-        new FlowController(
-            batchingSettings.getFlowControlSettings() != null
-                ? batchingSettings.getFlowControlSettings()
-                : FlowControlSettings.newBuilder()
-                    .setLimitExceededBehavior(LimitExceededBehavior.Ignore)
-                    .build()));
+        flowController,
+        flushExecutor,
+        DEFAULT_PARTIAL_FAILURE_RETRY_SETTINGS);
   }
 
+  /**
+   * Constructs a BatcherFactory which, for a {@link PartialFailureBatchingDescriptor}, waits
+   * between the retries of the failed requests of a batch as described by the given retry
+   * settings. The other constructors use {@link #DEFAULT_PARTIAL_FAILURE_RETRY_SETTINGS}.
+   */
   public BatcherFactory(
       BatchingDescriptor<RequestT, ResponseT> batchingDescriptor,
       BatchingSettings batchingSettings,
       ScheduledExecutorService executor,
-      FlowController flowController) {
+      FlowController flowController,
+      @Nullable Executor flushExecutor,
+      RetrySettings partialFailureRetrySettings) {
+    this(
+        batchingDescriptor,
+        batchingSettings,
+        executor,
+        flowController,
+        flushExecutor,
+        partialFailureRetrySettings,
+        NanoClock.getDefaultClock());
+  }
+
+  @VisibleForTesting
+  BatcherFactory(
+      BatchingDescriptor<RequestT, ResponseT> batchingDescriptor,
+      BatchingSettings batchingSettings,
+      ScheduledExecutorService executor,
+      FlowController flowController,
+      @Nullable Executor flushExecutor,
+      RetrySettings partialFailureRetrySettings,
+      ApiClock clock) {
     this.batchingDescriptor = batchingDescriptor;
     this.batchingSettings = batchingSettings;
     this.executor = executor;
     this.flowController = flowController;
+    this.flushExecutor = flushExecutor;
+    this.partialFailureRetrySettings = Preconditions.checkNotNull(partialFailureRetrySettings);
+    this.clock = clock;
+    this.delayTimer =
+        new HashedWheelTimer(
+            executor,
+            getTickDuration(batchingSettings.getDelayThreshold()),
+            HashedWheelTimer.DEFAULT_WHEEL_SIZE);
+    this.evictionEnabled =
+        batchingSettings.getPartitionIdleTimeout() != null
+            || batchingSettings.getMaxPartitionCount() != null;
+    this.byteCountNeeded =
+        batchingSettings.getRequestByteThreshold() != null
+            || batchingSettings.getHeldBatchRequestByteLimit() != null
+            || flowController.getMaxOutstandingRequestBytes() != null;
   }
 
   /**
    * Provides the ThresholdBatcher corresponding to the given partitionKey, or constructs one if it
-   * doesn't exist yet. The implementation is thread-safe.
+   * doesn't exist yet. The implementation is thread-safe, and does not block: a batcher for a new
+   * partition is constructed without holding a lock, and if another thread installs a batcher for
+   * the same partition first, the one constructed here is dropped unused.
+   *
+   * @throws IllegalStateException if the factory has been closed
    */
   public ThresholdBatcher<Batch<RequestT, ResponseT>> getPushingBatcher(PartitionKey partitionKey) {
-    ThresholdBatcher<Batch<RequestT, ResponseT>> batcher = batchers.get(partitionKey);
-    if (batcher == null) {
-      synchronized (lock) {
-        batcher = batchers.get(partitionKey);
-        if (batcher == null) {
-          batcher = createBatcher(partitionKey);
-          batchers.put(partitionKey, batcher);
+    Preconditions.checkState(!closed, "BatcherFactory has been closed");
+    Partition partition = partitions.get(partitionKey);
+    if (partition == null) {
+      Partition newPartition = new Partition(createBatcher(partitionKey));
+      partition = partitions.putIfAbsent(partitionKey, newPartition);
+      if (partition == null) {
+        partition = newPartition;
+        if (closed) {
+          // close() may have missed the new partition; closing a batcher twice is harmless.
+          newPartition.batcher.close();
         }
+        evictLeastRecentlyUsedIfFull(newPartition);
+        scheduleIdleEvictionIfNeeded();
       }
     }
-    return batcher;
+    if (evictionEnabled) {
+      partition.lastUsedNanos = clock.nanoTime();
+    }
+    return partition.batcher;
+  }
+
+  /**
+   * Pushes the open batches of all partitions. Returns an ApiFuture that completes once every
+   * element added so far, including elements of batchers which have since been evicted, has been
+   * processed. The returned future completes successfully even if some of the batches failed, as
+   * failures are reported to the callers of the individual requests.
+   */
+  public ApiFuture<Void> flush() {
+    List<ApiFuture<Void>> flushFutures = new ArrayList<>();
+    for (Partition partition : partitions.values()) {
+      flushFutures.add(partition.batcher.flush());
+    }
+    flushFutures.addAll(evictedBatcherCloses);
+    return ApiFutures.transform(ApiFutures.allAsList(flushFutures), TO_VOID_FUNCTION);
+  }
+
+  /**
+   * Closes the batchers of all partitions and flushes them, as described in {@link #flush}. After
+   * close(), getPushingBatcher throws an {@link IllegalStateException}, as do the batchers it
+   * returned earlier when elements are added to them.
+   */
+  public ApiFuture<Void> close() {
+    closed = true;
+    List<ApiFuture<Void>> closeFutures = new ArrayList<>();
+    for (Partition partition : partitions.values()) {
+      closeFutures.add(partition.batcher.close());
+    }
+    closeFutures.addAll(evictedBatcherCloses);
+    return ApiFutures.transform(ApiFutures.allAsList(closeFutures), TO_VOID_FUNCTION);
+  }
+
+  /**
+   * Returns whether {@link #close} has been called. If not, a batcher which rejects an element
+   * because it has been closed has been evicted, and the element can be added to the batcher
+   * returned by a new call to getPushingBatcher.
+   *
+   * <p>
+   * Package-private for internal use.
+   */
+  boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Returns the number of partitions for which a batcher is currently kept.
+   *
+   * <p>
+   * Package-private for use in testing.
+   */
+  @VisibleForTesting
+  int getPartitionCount() {
+    return partitions.size();
   }
 
   /**
@@ -117,16 +324,184 @@ public final class BatcherFactory<RequestT, ResponseT> {
     return batchingSettings;
   }
 
+  /**
+   * Returns whether the byte counts of requests are used by any threshold or limit of this factory.
+   * If not, callers can skip {@link BatchingDescriptor#countBytes}.
+   *
+   * <p>
+   * Package-private for internal use.
+   */
+  boolean isByteCountNeeded() {
+    return byteCountNeeded;
+  }
+
+  /**
+   * Returns the behavior of the flow controller shared by the batchers of this factory.
+   *
+   * <p>
+   * Package-private for internal use.
+   */
+  LimitExceededBehavior getLimitExceededBehavior() {
+    return flowController.getLimitExceededBehavior();
+  }
+
+  /**
+   * Returns the flow controller described by the flow control settings of the given batching
+   * settings, which does not limit anything if they have none.
+   *
+   * <p>
+   * Package-private for internal use.
+   */
+  static FlowController createFlowController(BatchingSettings batchingSettings) {
+    return new FlowController(
+        batchingSettings.getFlowControlSettings() != null
+            ? batchingSettings.getFlowControlSettings()
+            : FlowControlSettings.newBuilder()
+                .setLimitExceededBehavior(LimitExceededBehavior.Ignore)
+                .build());
+  }
+
+  /**
+   * Returns a tick of a tenth of the delay threshold, so that the delay timer does not tick more
+   * often than needed to push batches close to their delay threshold.
+   */
+  private static Duration getTickDuration(@Nullable Duration delayThreshold) {
+    if (delayThreshold == null) {
+      return HashedWheelTimer.DEFAULT_TICK_DURATION;
+    }
+    return new Duration(Math.max(1, delayThreshold.getMillis() / 10));
+  }
+
+  /**
+   * Evicts the least recently used partitions other than the given new one while there are more
+   * than the maximum partition count. The recency of partitions is only recorded as their last use
+   * time, without locking, so the victim is found by scanning the partitions here, once per added
+   * partition.
+   */
+  private void evictLeastRecentlyUsedIfFull(Partition newPartition) {
+    Integer maxPartitionCount = batchingSettings.getMaxPartitionCount();
+    if (maxPartitionCount == null) {
+      return;
+    }
+    List<Partition> evictedPartitions = new ArrayList<>();
+    synchronized (evictionLock) {
+      while (partitions.size() > maxPartitionCount) {
+        PartitionKey leastRecentlyUsedKey = null;
+        Partition leastRecentlyUsed = null;
+        for (Map.Entry<PartitionKey, Partition> entry : partitions.entrySet()) {
+          Partition partition = entry.getValue();
+          if (partition != newPartition
+              && (leastRecentlyUsed == null
+                  || partition.lastUsedNanos - leastRecentlyUsed.lastUsedNanos < 0)) {
+            leastRecentlyUsedKey = entry.getKey();
+            leastRecentlyUsed = partition;
+          }
+        }
+        if (leastRecentlyUsed == null) {
+          break;
+        }
+        if (partitions.remove(leastRecentlyUsedKey, leastRecentlyUsed)) {
+          evictedPartitions.add(leastRecentlyUsed);
+        }
+      }
+    }
+    for (Partition partition : evictedPartitions) {
+      closeEvicted(partition);
+    }
+  }
+
+  private void scheduleIdleEvictionIfNeeded() {
+    Duration idleTimeout = batchingSettings.getPartitionIdleTimeout();
+    if (idleTimeout == null
+        || partitions.isEmpty()
+        || !idleEvictionScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    executor.schedule(evictIdlePartitionsRunnable, idleTimeout.getMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  private void evictIdlePartitions() {
+    long idleTimeoutNanos =
+        TimeUnit.MILLISECONDS.toNanos(batchingSettings.getPartitionIdleTimeout().getMillis());
+    long nowNanos = clock.nanoTime();
+    List<Partition> evictedPartitions = new ArrayList<>();
+    for (Map.Entry<PartitionKey, Partition> entry : partitions.entrySet()) {
+      if (nowNanos - entry.getValue().lastUsedNanos >= idleTimeoutNanos
+          && partitions.remove(entry.getKey(), entry.getValue())) {
+        evictedPartitions.add(entry.getValue());
+      }
+    }
+    idleEvictionScheduled.set(false);
+    scheduleIdleEvictionIfNeeded();
+    for (Partition partition : evictedPartitions) {
+      closeEvicted(partition);
+    }
+  }
+
+  /**
+   * Closes the batcher of an evicted partition, keeping track of the close until it completes so
+   * that {@link #flush} and {@link #close} wait for it. A caller which still holds the batcher from
+   * an earlier call to getPushingBatcher is rejected when adding to it, and retries with a new
+   * batcher.
+   */
+  private void closeEvicted(Partition partition) {
+    final ApiFuture<Void> closeFuture = partition.batcher.close();
+    evictedBatcherCloses.add(closeFuture);
+    ApiFutures.addCallback(
+        closeFuture,
+        new ApiFutureCallback<Void>() {
+          @Override
+          public void onSuccess(Void result) {
+            evictedBatcherCloses.remove(closeFuture);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            evictedBatcherCloses.remove(closeFuture);
+          }
+        });
+  }
+
   private ThresholdBatcher<Batch<RequestT, ResponseT>> createBatcher(PartitionKey partitionKey) {
     BatchExecutor<RequestT, ResponseT> processor =
-        new BatchExecutor<>(batchingDescriptor, partitionKey);
+        new BatchExecutor<>(
+            batchingDescriptor, partitionKey, executor, partialFailureRetrySettings);
+    AdaptiveBatchSizer adaptiveBatchSizer = null;
+    if (batchingSettings.getLatencyBudget() != null) {
+      adaptiveBatchSizer =
+          new AdaptiveBatchSizer(
+              batchingSettings.getLatencyBudget(),
+              batchingSettings.getElementCountThreshold() != null
+                  ? batchingSettings.getElementCountThreshold()
+                  : Long.MAX_VALUE,
+              batchingSettings.getDelayThreshold(),
+              clock);
+    }
     return ThresholdBatcher.<Batch<RequestT, ResponseT>>newBuilder()
-        .setThresholds(getThresholds(batchingSettings))
+        .setThresholds(
+            getThresholds(
+                adaptiveBatchSizer,
+                batchingSettings.getElementCountThreshold(),
+                batchingSettings.getRequestByteThreshold()))
+        .setHeldBatchLimits(
+            getThresholds(
+                null,
+                batchingSettings.getHeldBatchElementCountLimit(),
+                batchingSettings.getHeldBatchRequestByteLimit()))
+        .setAdaptiveBatchSizer(adaptiveBatchSizer)
+        .setDelayTimer(delayTimer)
+        .setFlushExecutor(flushExecutor)
         .setExecutor(executor)
         .setMaxDelay(batchingSettings.getDelayThreshold())
         .setReceiver(processor)
         .setFlowController(createBatchingFlowController())
         .setBatchMerger(createBatchMerger())
+        .setStripeCount(batchingSettings.getStripeCount())
+        .setMaxOutstandingBatches(
+            batchingSettings.getMaxOutstandingBatches() != null
+                ? batchingSettings.getMaxOutstandingBatches()
+                : Integer.MAX_VALUE)
+        .setOrdered(batchingSettings.getOrderedDelivery())
         .build();
   }
 
@@ -136,7 +511,7 @@ public final class BatcherFactory<RequestT, ResponseT> {
         new ElementCounter<Batch<RequestT, ResponseT>>() {
           @Override
           public long count(Batch<RequestT, ResponseT> batch) {
-            return batchingDescriptor.countElements(batch.getRequest());
+            return batch.getElementCount();
           }
         },
         new ElementCounter<Batch<RequestT, ResponseT>>() {
@@ -157,25 +532,26 @@ public final class BatcherFactory<RequestT, ResponseT> {
   }
 
   private ImmutableList<BatchingThreshold<Batch<RequestT, ResponseT>>> getThresholds(
-      BatchingSettings batchingSettings) {
+      AdaptiveBatchSizer adaptiveBatchSizer, Long elementCount, Long requestBytes) {
     ImmutableList.Builder<BatchingThreshold<Batch<RequestT, ResponseT>>> listBuilder =
         ImmutableList.builder();
 
-    if (batchingSettings.getElementCountThreshold() != null) {
-      ElementCounter<Batch<RequestT, ResponseT>> elementCounter =
-          new ElementCounter<Batch<RequestT, ResponseT>>() {
-            @Override
-            public long count(Batch<RequestT, ResponseT> batch) {
-              return batchingDescriptor.countElements(batch.getRequest());
-            }
-          };
-
+    ElementCounter<Batch<RequestT, ResponseT>> elementCounter =
+        new ElementCounter<Batch<RequestT, ResponseT>>() {
+          @Override
+          public long count(Batch<RequestT, ResponseT> batch) {
+            return batch.getElementCount();
+          }
+        };
+    if (adaptiveBatchSizer != null) {
+      listBuilder.addAll(BatchingThresholds.adaptive(adaptiveBatchSizer, elementCounter));
+    } else if (elementCount != null) {
       BatchingThreshold<Batch<RequestT, ResponseT>> countThreshold =
-          new NumericThreshold<>(batchingSettings.getElementCountThreshold(), elementCounter);
+          new NumericThreshold<>(elementCount, elementCounter);
       listBuilder.add(countThreshold);
     }
 
-    if (batchingSettings.getRequestByteThreshold() != null) {
+    if (requestBytes != null) {
       ElementCounter<Batch<RequestT, ResponseT>> requestByteCounter =
           new ElementCounter<Batch<RequestT, ResponseT>>() {
             @Override
@@ -185,10 +561,21 @@ public final class BatcherFactory<RequestT, ResponseT> {
           };
 
       BatchingThreshold<Batch<RequestT, ResponseT>> byteThreshold =
-          new NumericThreshold<>(batchingSettings.getRequestByteThreshold(), requestByteCounter);
+          new NumericThreshold<>(requestBytes, requestByteCounter);
       listBuilder.add(byteThreshold);
     }
 
     return listBuilder.build();
   }
+
+  /** The batcher of a partition, along with the time it was last used. */
+  private class Partition {
+    private final ThresholdBatcher<Batch<RequestT, ResponseT>> batcher;
+    private volatile long lastUsedNanos;
+
+    private Partition(ThresholdBatcher<Batch<RequestT, ResponseT>> batcher) {
+      this.batcher = batcher;
+      this.lastUsedNanos = clock.nanoTime();
+    }
+  }
 }
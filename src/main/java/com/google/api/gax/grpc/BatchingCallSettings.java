@@ -37,16 +37,20 @@ import io.grpc.Channel;
 import io.grpc.MethodDescriptor;
 import io.grpc.Status;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
+import javax.annotation.Nullable;
 
 /**
  * A settings class to configure a UnaryCallable for calls to an API method that supports batching.
- * The settings are provided using an instance of {@link BatchingSettings}.
+ * The settings are provided using an instance of {@link BatchingSettings}, and optionally an
+ * executor from which batches are sent.
  */
 public final class BatchingCallSettings<RequestT, ResponseT>
     extends UnaryCallSettingsTyped<RequestT, ResponseT> {
   private final BatchingDescriptor<RequestT, ResponseT> batchingDescriptor;
   private final BatchingSettings batchingSettings;
+  @Nullable private final Executor flushExecutor;
   private BatcherFactory<RequestT, ResponseT> batcherFactory;
 
   /**
@@ -54,7 +58,14 @@ public final class BatchingCallSettings<RequestT, ResponseT>
    */
   UnaryCallable<RequestT, ResponseT> create(Channel channel, ScheduledExecutorService executor) {
     UnaryCallable<RequestT, ResponseT> baseCallable = createBaseCallable(channel, executor);
-    batcherFactory = new BatcherFactory<>(batchingDescriptor, batchingSettings, executor);
+    batcherFactory =
+        new BatcherFactory<>(
+            batchingDescriptor,
+            batchingSettings,
+            executor,
+            BatcherFactory.createFlowController(batchingSettings),
+            flushExecutor,
+            getRetrySettings());
     return baseCallable.batching(batchingDescriptor, batcherFactory);
   }
 
@@ -62,15 +73,23 @@ public final class BatchingCallSettings<RequestT, ResponseT>
     return batcherFactory;
   }
 
+  /** The executor from which batches are sent, or null if they are sent from the calling thread. */
+  @Nullable
+  public Executor getFlushExecutor() {
+    return flushExecutor;
+  }
+
   private BatchingCallSettings(
       ImmutableSet<Status.Code> retryableCodes,
       RetrySettings retrySettings,
       MethodDescriptor<RequestT, ResponseT> methodDescriptor,
       BatchingDescriptor<RequestT, ResponseT> batchingDescriptor,
-      BatchingSettings batchingSettings) {
+      BatchingSettings batchingSettings,
+      @Nullable Executor flushExecutor) {
     super(retryableCodes, retrySettings, methodDescriptor);
     this.batchingDescriptor = batchingDescriptor;
     this.batchingSettings = batchingSettings;
+    this.flushExecutor = flushExecutor;
   }
 
   public static <RequestT, ResponseT> Builder<RequestT, ResponseT> newBuilder(
@@ -89,6 +108,7 @@ public final class BatchingCallSettings<RequestT, ResponseT>
 
     private BatchingDescriptor<RequestT, ResponseT> batchingDescriptor;
     private BatchingSettings.Builder batchingSettingsBuilder;
+    private Executor flushExecutor;
 
     public Builder(
         MethodDescriptor<RequestT, ResponseT> grpcMethodDescriptor,
@@ -102,6 +122,7 @@ public final class BatchingCallSettings<RequestT, ResponseT>
       super(settings);
       this.batchingDescriptor = settings.batchingDescriptor;
       this.batchingSettingsBuilder = settings.batchingSettings.toBuilder();
+      this.flushExecutor = settings.flushExecutor;
     }
 
     public BatchingDescriptor<RequestT, ResponseT> getBatchingDescriptor() {
@@ -118,6 +139,21 @@ public final class BatchingCallSettings<RequestT, ResponseT>
       return this.batchingSettingsBuilder;
     }
 
+    /**
+     * Sets the executor from which batches are sent. When a call fills a batch, building the
+     * batched request and starting the RPC then happen on this executor instead of the calling
+     * thread. If null, which is the default, batches are sent from the thread which completes them.
+     */
+    public Builder<RequestT, ResponseT> setFlushExecutor(@Nullable Executor flushExecutor) {
+      this.flushExecutor = flushExecutor;
+      return this;
+    }
+
+    @Nullable
+    public Executor getFlushExecutor() {
+      return flushExecutor;
+    }
+
     @Override
     public Builder<RequestT, ResponseT> setRetryableCodes(Set<Status.Code> retryableCodes) {
       super.setRetryableCodes(retryableCodes);
@@ -144,7 +180,8 @@ public final class BatchingCallSettings<RequestT, ResponseT>
           getRetrySettingsBuilder().build(),
           getMethodDescriptor(),
           batchingDescriptor,
-          batchingSettingsBuilder.build());
+          batchingSettingsBuilder.build(),
+          flushExecutor);
     }
   }
 }
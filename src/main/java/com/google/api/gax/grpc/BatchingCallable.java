@@ -32,8 +32,11 @@ package com.google.api.gax.grpc;
 import com.google.api.gax.batching.PartitionKey;
 import com.google.api.gax.batching.ThresholdBatcher;
 import com.google.api.gax.core.ApiFuture;
+import com.google.api.gax.core.ApiFutureCallback;
+import com.google.api.gax.core.ApiFutures;
 import com.google.api.gax.core.FlowController.FlowControlException;
 import com.google.api.gax.core.FlowController.FlowControlRuntimeException;
+import com.google.api.gax.core.FlowController.LimitExceededBehavior;
 import com.google.common.base.Preconditions;
 
 /**
@@ -42,9 +45,18 @@ import com.google.common.base.Preconditions;
  * the BatchingDescriptor. An example of a batching partition would be a pubsub topic.
  *
  * <p>
+ * If flow control is configured with {@link LimitExceededBehavior#Enqueue}, requests which exceed
+ * the flow control limits are queued instead of blocking the calling thread, and are added to a
+ * batch once enough outstanding requests have completed.
+ *
+ * <p>
  * Package-private for internal use.
  */
 class BatchingCallable<RequestT, ResponseT> implements FutureCallable<RequestT, ResponseT> {
+  // The number of batchers a request is offered to, if the batchers it was offered to were evicted
+  // and closed in the meantime.
+  private static final int MAX_ADD_ATTEMPTS = 5;
+
   private final FutureCallable<RequestT, ResponseT> callable;
   private final BatchingDescriptor<RequestT, ResponseT> batchingDescriptor;
   private final BatcherFactory<RequestT, ResponseT> batcherFactory;
@@ -65,18 +77,73 @@ class BatchingCallable<RequestT, ResponseT> implements FutureCallable<RequestT,
       UnaryCallable<RequestT, ResponseT> unaryCallable =
           UnaryCallable.<RequestT, ResponseT>create(callable).bind(context.getChannel());
       Batch<RequestT, ResponseT> batchableMessage =
-          new Batch<RequestT, ResponseT>(batchingDescriptor, request, unaryCallable, result);
+          new Batch<RequestT, ResponseT>(
+              batchingDescriptor,
+              request,
+              unaryCallable,
+              result,
+              batcherFactory.isByteCountNeeded());
       PartitionKey partitionKey = batchingDescriptor.getBatchPartitionKey(request);
-      ThresholdBatcher<Batch<RequestT, ResponseT>> batcher =
-          batcherFactory.getPushingBatcher(partitionKey);
-      try {
-        batcher.add(batchableMessage);
+      if (batcherFactory.getLimitExceededBehavior() == LimitExceededBehavior.Enqueue) {
+        addAsync(partitionKey, batchableMessage, result, 1);
         return result;
-      } catch (FlowControlException e) {
-        throw FlowControlRuntimeException.fromFlowControlException(e);
+      }
+      for (int attempt = 1; ; attempt++) {
+        ThresholdBatcher<Batch<RequestT, ResponseT>> batcher =
+            batcherFactory.getPushingBatcher(partitionKey);
+        try {
+          batcher.add(batchableMessage);
+          return result;
+        } catch (FlowControlException e) {
+          throw FlowControlRuntimeException.fromFlowControlException(e);
+        } catch (IllegalStateException e) {
+          if (!shouldRetryAdd(batcher, attempt)) {
+            throw e;
+          }
+        }
       }
     } else {
       return callable.futureCall(request, context);
     }
   }
+
+  private void addAsync(
+      final PartitionKey partitionKey,
+      final Batch<RequestT, ResponseT> batchableMessage,
+      final BatchedFuture<ResponseT> result,
+      final int attempt) {
+    final ThresholdBatcher<Batch<RequestT, ResponseT>> batcher =
+        batcherFactory.getPushingBatcher(partitionKey);
+    ApiFutures.addCallback(
+        batcher.addAsync(batchableMessage),
+        new ApiFutureCallback<Void>() {
+          @Override
+          public void onSuccess(Void ignored) {
+            // The result is set once the batch containing the request completes.
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            if (t instanceof IllegalStateException && shouldRetryAdd(batcher, attempt)) {
+              try {
+                addAsync(partitionKey, batchableMessage, result, attempt + 1);
+              } catch (IllegalStateException e) {
+                result.setException(e);
+              }
+            } else {
+              result.setException(t);
+            }
+          }
+        });
+  }
+
+  /**
+   * Returns whether a request rejected by the given batcher with an IllegalStateException should be
+   * added again. This is only the case if the batcher was evicted and closed after it was looked
+   * up, in which case the request goes to the batcher that replaced it.
+   */
+  private boolean shouldRetryAdd(
+      ThresholdBatcher<Batch<RequestT, ResponseT>> batcher, int attempt) {
+    return attempt < MAX_ADD_ATTEMPTS && batcher.isClosed() && !batcherFactory.isClosed();
+  }
 }
@@ -74,6 +74,11 @@ public interface BatchingDescriptor<RequestT, ResponseT> {
 
   /**
    * Returns the size in bytes of this request.
+   *
+   * <p>
+   * This is called at most once per request, and only if a byte based threshold or limit is
+   * configured. For protobuf messages, {@code getSerializedSize()} is memoized and reused when the
+   * message is serialized, so implementations based on it do not compute the size twice.
    */
   long countBytes(RequestT request);
 }
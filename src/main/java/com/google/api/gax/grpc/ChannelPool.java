@@ -0,0 +1,512 @@
+/*
+ * Copyright 2017, Google Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.google.api.gax.grpc;
+
+import com.google.api.gax.grpc.InstantiatingChannelProvider.ChannelSelectionStrategy;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.CallOptions;
+import io.grpc.ClientCall;
+import io.grpc.ForwardingClientCall.SimpleForwardingClientCall;
+import io.grpc.ForwardingClientCallListener.SimpleForwardingClientCallListener;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import org.joda.time.Duration;
+
+/**
+ * A {@link ManagedChannel} which spreads calls across a pool of underlying channels, so that calls
+ * are not limited by the maximum number of concurrent streams of a single connection.
+ *
+ * <p>
+ * If the maximum pool size is greater than the minimum, the pool is resized every
+ * {@link #RESIZE_INTERVAL_NANOS} by a task on the given executor, so that each channel has about
+ * the target number of outstanding calls, and an idle pool shrinks too. The pool grows to the
+ * target size at once, and shrinks by one channel per resize. If a warm-up timeout is given, the
+ * channels added by a resize are warmed up with {@link ChannelWarmer} before they receive calls,
+ * without blocking the executor; they join the pool once warmed up or when the timeout expires. A
+ * channel removed from the pool receives no new calls, and is shut down as soon as the calls which
+ * picked it have completed.
+ *
+ * <p>
+ * Package-private for internal use.
+ */
+final class ChannelPool extends ManagedChannel {
+  static final long RESIZE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  /** Creates the channels of a pool. */
+  interface ChannelFactory {
+    ManagedChannel createChannel() throws IOException;
+  }
+
+  private final ChannelFactory channelFactory;
+  private final ChannelSelectionStrategy selectionStrategy;
+  private final int minPoolSize;
+  private final int maxPoolSize;
+  private final int targetOutstandingCallsPerChannel;
+  private final boolean countingCalls;
+  private final ScheduledExecutorService executor;
+  @Nullable private final Duration warmUpTimeout;
+  private final AtomicInteger nextIndex = new AtomicInteger();
+
+  private final Runnable resizeRunnable =
+      new Runnable() {
+        @Override
+        public void run() {
+          resize();
+        }
+      };
+
+  // Invariant: - lock gates all modifications of the members below. entries is copied on write, so
+  //              that calls can read it without the lock.
+  private final Object lock = new Object();
+  private volatile List<Entry> entries;
+  private final List<Entry> retiredEntries = new ArrayList<>();
+  // The number of channels being created or warmed up, which count towards the pool size.
+  private int pendingChannelCount;
+  private Future<?> resizeFuture;
+  private boolean shutdown;
+
+  /** Creates a pool with a fixed number of channels. */
+  ChannelPool(
+      int poolSize, ChannelFactory channelFactory, ChannelSelectionStrategy selectionStrategy)
+      throws IOException {
+    this(poolSize, poolSize, 1, channelFactory, selectionStrategy, null, null);
+  }
+
+  /**
+   * Creates a pool whose size varies between minPoolSize and maxPoolSize. The executor runs the
+   * periodic resize and the warm-up of new channels, and is only needed if maxPoolSize is greater
+   * than minPoolSize. If warmUpTimeout is null, new channels are not warmed up.
+   */
+  ChannelPool(
+      int minPoolSize,
+      int maxPoolSize,
+      int targetOutstandingCallsPerChannel,
+      ChannelFactory channelFactory,
+      ChannelSelectionStrategy selectionStrategy,
+      @Nullable ScheduledExecutorService executor,
+      @Nullable Duration warmUpTimeout)
+      throws IOException {
+    Preconditions.checkArgument(minPoolSize > 0, "minPoolSize must be positive");
+    Preconditions.checkArgument(
+        maxPoolSize >= minPoolSize, "maxPoolSize must be at least minPoolSize");
+    Preconditions.checkArgument(
+        targetOutstandingCallsPerChannel > 0, "targetOutstandingCallsPerChannel must be positive");
+    this.channelFactory = channelFactory;
+    this.selectionStrategy = Preconditions.checkNotNull(selectionStrategy);
+    this.minPoolSize = minPoolSize;
+    this.maxPoolSize = maxPoolSize;
+    this.targetOutstandingCallsPerChannel = targetOutstandingCallsPerChannel;
+    this.countingCalls =
+        selectionStrategy == ChannelSelectionStrategy.LeastOutstandingCalls
+            || minPoolSize < maxPoolSize;
+    this.executor = executor;
+    this.warmUpTimeout = warmUpTimeout;
+
+    ImmutableList.Builder<Entry> entries = ImmutableList.builder();
+    for (int i = 0; i < minPoolSize; i++) {
+      entries.add(new Entry(channelFactory.createChannel()));
+    }
+    this.entries = entries.build();
+
+    if (minPoolSize < maxPoolSize) {
+      Preconditions.checkNotNull(executor, "executor is needed to resize the pool");
+      synchronized (lock) {
+        resizeFuture =
+            executor.scheduleAtFixedRate(
+                resizeRunnable,
+                RESIZE_INTERVAL_NANOS,
+                RESIZE_INTERVAL_NANOS,
+                TimeUnit.NANOSECONDS);
+      }
+    }
+  }
+
+  @Override
+  public <ReqT, RespT> ClientCall<ReqT, RespT> newCall(
+      MethodDescriptor<ReqT, RespT> methodDescriptor, CallOptions callOptions) {
+    if (!countingCalls) {
+      return getNextEntry(entries).channel.newCall(methodDescriptor, callOptions);
+    }
+    Entry entry;
+    while (true) {
+      List<Entry> entries = this.entries;
+      entry =
+          selectionStrategy == ChannelSelectionStrategy.LeastOutstandingCalls
+              ? getLeastLoadedEntry(entries)
+              : getNextEntry(entries);
+      // The call counts as outstanding from now on, so that the channel is not shut down before
+      // the call starts. If the entry has been retired in the meantime, pick another one.
+      entry.outstandingCalls.incrementAndGet();
+      if (!entry.retired) {
+        break;
+      }
+      releaseCall(entry);
+    }
+    return new CountingClientCall<>(entry.channel.newCall(methodDescriptor, callOptions), entry);
+  }
+
+  @Override
+  public String authority() {
+    return entries.get(0).channel.authority();
+  }
+
+  @Override
+  public ManagedChannel shutdown() {
+    synchronized (lock) {
+      shutdown = true;
+      cancelResize();
+      for (Entry entry : getAllEntries()) {
+        entry.channel.shutdown();
+      }
+    }
+    return this;
+  }
+
+  @Override
+  public boolean isShutdown() {
+    synchronized (lock) {
+      return shutdown;
+    }
+  }
+
+  @Override
+  public boolean isTerminated() {
+    synchronized (lock) {
+      if (!shutdown) {
+        return false;
+      }
+      for (Entry entry : getAllEntries()) {
+        if (!entry.channel.isTerminated()) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  @Override
+  public ManagedChannel shutdownNow() {
+    synchronized (lock) {
+      shutdown = true;
+      cancelResize();
+      for (Entry entry : getAllEntries()) {
+        entry.channel.shutdownNow();
+      }
+    }
+    return this;
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    List<Entry> allEntries;
+    synchronized (lock) {
+      allEntries = getAllEntries();
+    }
+    long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+    for (Entry entry : allEntries) {
+      long remainingNanos = deadlineNanos - System.nanoTime();
+      if (!entry.channel.awaitTermination(remainingNanos, TimeUnit.NANOSECONDS)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns the channels in this pool which receive new calls. */
+  List<ManagedChannel> getChannels() {
+    ImmutableList.Builder<ManagedChannel> channels = ImmutableList.builder();
+    for (Entry entry : entries) {
+      channels.add(entry.channel);
+    }
+    return channels.build();
+  }
+
+  /** Returns the number of channels in this pool which receive new calls. */
+  @VisibleForTesting
+  int getPoolSize() {
+    return entries.size();
+  }
+
+  /** Returns the number of calls started on the channel at the given index which are not closed. */
+  @VisibleForTesting
+  int getOutstandingCalls(int index) {
+    return entries.get(index).outstandingCalls.get();
+  }
+
+  /** Returns the number of channels removed from this pool which are not shut down yet. */
+  @VisibleForTesting
+  int getRetiredChannelCount() {
+    synchronized (lock) {
+      return retiredEntries.size();
+    }
+  }
+
+  /**
+   * Adjusts the pool size to the number of outstanding calls. Run periodically on the executor.
+   *
+   * <p>
+   * Package-private for use in testing.
+   */
+  @VisibleForTesting
+  void resize() {
+    int addedChannelCount = 0;
+    synchronized (lock) {
+      if (shutdown) {
+        return;
+      }
+      long outstandingCalls = 0;
+      for (Entry entry : entries) {
+        outstandingCalls += entry.outstandingCalls.get();
+      }
+      long targetPoolSize =
+          (outstandingCalls + targetOutstandingCallsPerChannel - 1)
+              / targetOutstandingCallsPerChannel;
+      targetPoolSize = Math.max(minPoolSize, Math.min(maxPoolSize, targetPoolSize));
+
+      if (targetPoolSize > entries.size() + pendingChannelCount) {
+        addedChannelCount = (int) targetPoolSize - entries.size() - pendingChannelCount;
+        pendingChannelCount += addedChannelCount;
+      } else if (targetPoolSize < entries.size()) {
+        Entry retiredEntry = getLeastLoadedEntry(entries);
+        List<Entry> newEntries = new ArrayList<>(entries);
+        newEntries.remove(retiredEntry);
+        entries = ImmutableList.copyOf(newEntries);
+        retiredEntries.add(retiredEntry);
+        // Set after the entry is added to retiredEntries, so that a call which sees it and
+        // releases the last outstanding call finds the entry there.
+        retiredEntry.retired = true;
+        if (retiredEntry.outstandingCalls.get() == 0) {
+          shutdownRetiredEntry(retiredEntry);
+        }
+      }
+    }
+    if (addedChannelCount > 0) {
+      addChannels(addedChannelCount);
+    }
+  }
+
+  /**
+   * Creates the given number of channels without holding the lock, and adds them to the pool. If a
+   * warm-up timeout is given, the channels are only added once their warm-up calls complete or the
+   * timeout expires. The warm-up runs asynchronously, so that it does not hold a thread of the
+   * executor while the channels connect.
+   */
+  private void addChannels(final int count) {
+    final List<ManagedChannel> newChannels = new ArrayList<>(count);
+    try {
+      while (newChannels.size() < count) {
+        newChannels.add(channelFactory.createChannel());
+      }
+    } catch (IOException e) {
+      // Add the channels created so far; growing is attempted again on the next resize.
+    }
+    if (warmUpTimeout == null || newChannels.isEmpty()) {
+      publishChannels(newChannels, count);
+      return;
+    }
+
+    final AtomicBoolean published = new AtomicBoolean();
+    final Runnable publishRunnable =
+        new Runnable() {
+          @Override
+          public void run() {
+            if (published.compareAndSet(false, true)) {
+              publishChannels(newChannels, count);
+            }
+          }
+        };
+    final Future<?> timeoutFuture;
+    try {
+      timeoutFuture =
+          executor.schedule(publishRunnable, warmUpTimeout.getMillis(), TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      publishRunnable.run();
+      return;
+    }
+    ChannelWarmer.startWarmUp(newChannels, warmUpTimeout, executor)
+        .addListener(
+            new Runnable() {
+              @Override
+              public void run() {
+                timeoutFuture.cancel(false);
+                publishRunnable.run();
+              }
+            },
+            MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Adds channels to the pool, or shuts them down if the pool has been shut down in the meantime.
+   * The pending channel count is reduced by the number of channels requested, which may be more
+   * than the number created.
+   */
+  private void publishChannels(List<ManagedChannel> newChannels, int requestedCount) {
+    synchronized (lock) {
+      pendingChannelCount -= requestedCount;
+      if (shutdown) {
+        for (ManagedChannel channel : newChannels) {
+          channel.shutdown();
+        }
+        return;
+      }
+      List<Entry> newEntries = new ArrayList<>(entries);
+      for (ManagedChannel channel : newChannels) {
+        newEntries.add(new Entry(channel));
+      }
+      entries = ImmutableList.copyOf(newEntries);
+    }
+  }
+
+  /**
+   * Releases an outstanding call of an entry, shutting the channel of the entry down if it has
+   * been retired and this was its last outstanding call.
+   */
+  private void releaseCall(Entry entry) {
+    if (entry.outstandingCalls.decrementAndGet() == 0 && entry.retired) {
+      synchronized (lock) {
+        shutdownRetiredEntry(entry);
+      }
+    }
+  }
+
+  /** Must be called with the lock held. Does nothing if the entry has already been shut down. */
+  private void shutdownRetiredEntry(Entry entry) {
+    if (retiredEntries.remove(entry)) {
+      entry.channel.shutdown();
+    }
+  }
+
+  /** Must be called with the lock held. */
+  private void cancelResize() {
+    if (resizeFuture != null) {
+      resizeFuture.cancel(false);
+      resizeFuture = null;
+    }
+  }
+
+  private List<Entry> getAllEntries() {
+    return ImmutableList.<Entry>builder().addAll(entries).addAll(retiredEntries).build();
+  }
+
+  private Entry getNextEntry(List<Entry> entries) {
+    int index = nextIndex.getAndIncrement() % entries.size();
+    // The counter may overflow to negative values.
+    return entries.get(index < 0 ? index + entries.size() : index);
+  }
+
+  private Entry getLeastLoadedEntry(List<Entry> entries) {
+    // Among equally loaded channels, prefer a rotating one so that ties are spread evenly.
+    Entry leastLoaded = getNextEntry(entries);
+    int leastOutstandingCalls = leastLoaded.outstandingCalls.get();
+    for (Entry entry : entries) {
+      int outstandingCalls = entry.outstandingCalls.get();
+      if (outstandingCalls < leastOutstandingCalls) {
+        leastLoaded = entry;
+        leastOutstandingCalls = outstandingCalls;
+      }
+    }
+    return leastLoaded;
+  }
+
+  private static final class Entry {
+    private final ManagedChannel channel;
+    private final AtomicInteger outstandingCalls = new AtomicInteger();
+    private volatile boolean retired;
+
+    private Entry(ManagedChannel channel) {
+      this.channel = channel;
+    }
+  }
+
+  /**
+   * A ClientCall which counts itself as outstanding on its entry until it closes, or until it is
+   * cancelled or fails to start.
+   */
+  private final class CountingClientCall<ReqT, RespT>
+      extends SimpleForwardingClientCall<ReqT, RespT> {
+    private final Entry entry;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private CountingClientCall(ClientCall<ReqT, RespT> delegate, Entry entry) {
+      super(delegate);
+      this.entry = entry;
+    }
+
+    @Override
+    public void start(Listener<RespT> responseListener, Metadata headers) {
+      try {
+        super.start(
+            new SimpleForwardingClientCallListener<RespT>(responseListener) {
+              @Override
+              public void onClose(Status status, Metadata trailers) {
+                release();
+                super.onClose(status, trailers);
+              }
+            },
+            headers);
+      } catch (RuntimeException e) {
+        release();
+        throw e;
+      }
+    }
+
+    @Override
+    public void cancel(@Nullable String message, @Nullable Throwable cause) {
+      try {
+        super.cancel(message, cause);
+      } finally {
+        // A call cancelled before it starts is never closed. A started call may be released before
+        // it closes, which is harmless since shutting the channel down lets the call complete.
+        release();
+      }
+    }
+
+    private void release() {
+      if (released.compareAndSet(false, true)) {
+        releaseCall(entry);
+      }
+    }
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017, Google Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.google.api.gax.grpc;
+
+import com.google.api.gax.core.ApiFuture;
+import com.google.api.gax.core.ApiFutures;
+import com.google.api.gax.core.SettableApiFuture;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.MethodDescriptor.Marshaller;
+import io.grpc.MethodDescriptor.MethodType;
+import io.grpc.Status;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.joda.time.Duration;
+
+/**
+ * Warms up channels by making a health check call on each of them, and either waiting until the
+ * calls complete or a timeout expires, or returning a future of their completion.
+ *
+ * <p>
+ * A channel only connects when its first call is started, and the call interceptors of the channel
+ * acquire the credentials for the call at the same time. A warm-up call therefore moves the
+ * connection handshakes and the credential fetch ahead of the first real call. The status of the
+ * warm-up call is ignored: a server which does not implement health checks still accepted the
+ * connection to reject the call.
+ *
+ * <p>
+ * Package-private for internal use.
+ */
+final class ChannelWarmer {
+  private static final Marshaller<byte[]> BYTES_MARSHALLER =
+      new Marshaller<byte[]>() {
+        @Override
+        public InputStream stream(byte[] value) {
+          return new ByteArrayInputStream(value);
+        }
+
+        @Override
+        public byte[] parse(InputStream stream) {
+          // The response is ignored.
+          return null;
+        }
+      };
+
+  static final MethodDescriptor<byte[], byte[]> HEALTH_CHECK_METHOD =
+      MethodDescriptor.create(
+          MethodType.UNARY, "grpc.health.v1.Health/Check", BYTES_MARSHALLER, BYTES_MARSHALLER);
+
+  private ChannelWarmer() {}
+
+  /**
+   * Warms up the given channels in parallel, starting the warm-up calls on the given executor since
+   * acquiring credentials may block. Returns once all warm-up calls have completed, or the timeout
+   * has expired. The warm-up calls have the timeout as their deadline, so they do not outlive it by
+   * much.
+   */
+  static void warmUp(Collection<? extends Channel> channels, Duration timeout, Executor executor) {
+    ApiFuture<Void> warmUpFuture = startWarmUp(channels, timeout, executor);
+    try {
+      warmUpFuture.get(timeout.getMillis(), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | TimeoutException e) {
+      // Warming up is best effort.
+    }
+  }
+
+  /**
+   * Starts warming up the given channels in parallel, starting the warm-up calls on the given
+   * executor since acquiring credentials may block. Returns an ApiFuture which completes once all
+   * warm-up calls have completed. The warm-up calls have the timeout as their deadline, but callers
+   * which must not wait for longer than the timeout should not rely on that alone, since the
+   * deadline only applies once a call has started.
+   */
+  static ApiFuture<Void> startWarmUp(
+      Collection<? extends Channel> channels, Duration timeout, Executor executor) {
+    if (channels.isEmpty()) {
+      return ApiFutures.immediateFuture(null);
+    }
+    final SettableApiFuture<Void> warmUpFuture = SettableApiFuture.create();
+    final AtomicInteger remainingCalls = new AtomicInteger(channels.size());
+    final Runnable callCompleted =
+        new Runnable() {
+          @Override
+          public void run() {
+            if (remainingCalls.decrementAndGet() == 0) {
+              warmUpFuture.set(null);
+            }
+          }
+        };
+    final CallOptions callOptions =
+        CallOptions.DEFAULT.withDeadlineAfter(timeout.getMillis(), TimeUnit.MILLISECONDS);
+    for (final Channel channel : channels) {
+      Runnable startCall =
+          new Runnable() {
+            @Override
+            public void run() {
+              startWarmUpCall(channel, callOptions, callCompleted);
+            }
+          };
+      try {
+        executor.execute(startCall);
+      } catch (RejectedExecutionException e) {
+        callCompleted.run();
+      }
+    }
+    return warmUpFuture;
+  }
+
+  private static void startWarmUpCall(
+      Channel channel, CallOptions callOptions, final Runnable callCompleted) {
+    ClientCall<byte[], byte[]> call = channel.newCall(HEALTH_CHECK_METHOD, callOptions);
+    try {
+      call.start(
+          new ClientCall.Listener<byte[]>() {
+            @Override
+            public void onClose(Status status, Metadata trailers) {
+              callCompleted.run();
+            }
+          },
+          new Metadata());
+    } catch (RuntimeException e) {
+      // Warming up is best effort; the first real call will surface the problem.
+      callCompleted.run();
+      return;
+    }
+    try {
+      call.request(1);
+      call.sendMessage(new byte[0]);
+      call.halfClose();
+    } catch (RuntimeException e) {
+      // Cancelling closes the call, which counts it as complete.
+      call.cancel("Warm-up failed", e);
+    }
+  }
+}
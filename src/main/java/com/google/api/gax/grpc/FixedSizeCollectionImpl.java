@@ -40,13 +40,15 @@ import java.util.List;
 class FixedSizeCollectionImpl<RequestT, ResponseT, ResourceT>
     implements FixedSizeCollection<ResourceT> {
 
-  private List<Page<RequestT, ResponseT, ResourceT>> pageList;
-  private int collectionSize;
+  private final List<Page<RequestT, ResponseT, ResourceT>> pageList;
+  private final int collectionSize;
+  private final int elementCount;
 
   private FixedSizeCollectionImpl(
-      List<Page<RequestT, ResponseT, ResourceT>> pageList, int collectionSize) {
+      List<Page<RequestT, ResponseT, ResourceT>> pageList, int collectionSize, int elementCount) {
     this.pageList = pageList;
     this.collectionSize = collectionSize;
+    this.elementCount = elementCount;
   }
 
   /**
@@ -64,8 +66,13 @@ class FixedSizeCollectionImpl<RequestT, ResponseT, ResourceT>
           "Cannot construct a FixedSizeCollection with collectionSize less than the number of "
               + "elements in the first page");
     }
-    return new FixedSizeCollectionImpl<>(
-        createPageArray(firstPage, collectionSize), collectionSize);
+    List<Page<RequestT, ResponseT, ResourceT>> pageList =
+        createPageArray(firstPage, collectionSize);
+    int elementCount = 0;
+    for (Page<RequestT, ResponseT, ResourceT> page : pageList) {
+      elementCount += page.getPageElementCount();
+    }
+    return new FixedSizeCollectionImpl<>(pageList, collectionSize, elementCount);
   }
 
   @Override
@@ -85,11 +92,7 @@ class FixedSizeCollectionImpl<RequestT, ResponseT, ResourceT>
 
   @Override
   public int getCollectionSize() {
-    int size = 0;
-    for (Page<RequestT, ResponseT, ResourceT> page : pageList) {
-      size += page.getPageElementCount();
-    }
-    return size;
+    return elementCount;
   }
 
   @Override
@@ -36,19 +36,40 @@ import io.grpc.ClientInterceptor;
 import io.grpc.ForwardingClientCall.SimpleForwardingClientCall;
 import io.grpc.Metadata;
 import io.grpc.MethodDescriptor;
+import java.util.Collections;
+import java.util.Map;
 
 /**
  * An intercepter to handle custom header.
  *
+ * <p>
+ * The headers are serialized into a {@link Metadata} once, when the interceptor is constructed,
+ * and merged into the headers of each call, so calls do not re-encode the header values. The
+ * precomputed Metadata is never modified, so one interceptor can be shared by many channels.
+ *
  * Package-private for internal usage.
  */
 class HeaderInterceptor implements ClientInterceptor {
   private static final Metadata.Key<String> HEADER_KEY =
       Metadata.Key.of("x-goog-api-client", Metadata.ASCII_STRING_MARSHALLER);
-  private final String header;
+  private final Metadata headers;
 
   public HeaderInterceptor(String header) {
-    this.header = header;
+    this(header, Collections.<String, String>emptyMap());
+  }
+
+  /**
+   * Creates an interceptor which adds the x-goog-api-client header with the given value, and the
+   * given additional ASCII headers, to every call.
+   */
+  public HeaderInterceptor(String header, Map<String, String> additionalHeaders) {
+    Metadata headers = new Metadata();
+    headers.put(HEADER_KEY, header);
+    for (Map.Entry<String, String> entry : additionalHeaders.entrySet()) {
+      headers.put(
+          Metadata.Key.of(entry.getKey(), Metadata.ASCII_STRING_MARSHALLER), entry.getValue());
+    }
+    this.headers = headers;
   }
 
   @Override
@@ -57,9 +78,9 @@ class HeaderInterceptor implements ClientInterceptor {
     ClientCall<ReqT, RespT> call = next.newCall(method, callOptions);
     return new SimpleForwardingClientCall<ReqT, RespT>(call) {
       @Override
-      public void start(ClientCall.Listener<RespT> responseListener, Metadata headers) {
-        headers.put(HEADER_KEY, header);
-        super.start(responseListener, headers);
+      public void start(ClientCall.Listener<RespT> responseListener, Metadata callHeaders) {
+        callHeaders.merge(headers);
+        super.start(responseListener, callHeaders);
       }
     };
   }
@@ -31,17 +31,26 @@ package com.google.api.gax.grpc;
 
 import com.google.api.gax.core.CredentialsProvider;
 import com.google.api.gax.core.PropertiesProvider;
+import com.google.api.gax.core.RefreshingCredentials;
 import com.google.auth.Credentials;
+import com.google.auth.oauth2.OAuth2Credentials;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import io.grpc.ClientInterceptor;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.auth.ClientAuthInterceptor;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import javax.annotation.Nullable;
+import org.joda.time.Duration;
 
 /**
  * InstantiatingChannelProvider is a ChannelProvider which constructs a gRPC ManagedChannel with a
@@ -51,14 +60,40 @@ import java.util.concurrent.Executor;
  * <p>
  * The credentials can either be supplied directly (by providing a FixedCredentialsProvider to
  * Builder.setCredentialsProvider()) or acquired implicitly from Application Default Credentials (by
- * providing a GoogleCredentialsProvider to Builder.setCredentialsProvider()).
+ * providing a GoogleCredentialsProvider to Builder.setCredentialsProvider()). The credentials are
+ * acquired once for each provided channel, and shared by its underlying channels. If a credentials
+ * refresh margin is set, OAuth2 credentials are wrapped in {@link RefreshingCredentials}, so that
+ * their access token is refreshed in the background instead of inline on the call path, until the
+ * provided channel is shut down.
  *
  * <p>
  * The client lib header and generator header values are used to form a value that goes into the
- * http header of requests to the service.
+ * http header of requests to the service. Additional static headers can be set with
+ * Builder.setHeaders(). The headers are encoded once for each provided channel, rather than for
+ * each call.
+ *
+ * <p>
+ * By default, each channel uses a single connection. A pool size greater than one makes the
+ * provider return a channel which spreads calls across that many underlying channels, selected
+ * according to the configured {@link ChannelSelectionStrategy}. If a maximum pool size greater than
+ * the pool size is set, the number of underlying channels grows and shrinks between the two with
+ * the number of outstanding calls, aiming for the target number of outstanding calls per channel.
+ *
+ * <p>
+ * If a warm-up timeout is set, getChannel(...) connects all channels and acquires the credentials
+ * before returning, so that the first calls do not pay for the connection handshakes and the
+ * credential fetch. It waits at most for the warm-up timeout. Channels added to a pool when it
+ * grows are warmed up in the same way before they receive calls.
  */
 public final class InstantiatingChannelProvider implements ChannelProvider {
+  /** Enumeration of the ways a pooled channel can pick the underlying channel for a call. */
+  public enum ChannelSelectionStrategy {
+    RoundRobin,
+    LeastOutstandingCalls,
+  }
+
   private static final String DEFAULT_VERSION = "";
+  private static final int DEFAULT_TARGET_OUTSTANDING_CALLS_PER_CHANNEL = 50;
   private static Properties gaxProperties = new Properties();
 
   private final ExecutorProvider executorProvider;
@@ -69,6 +104,14 @@ public final class InstantiatingChannelProvider implements ChannelProvider {
   private final String clientLibVersion;
   private final String generatorName;
   private final String generatorVersion;
+  private final int poolSize;
+  private final int maxPoolSize;
+  private final int targetOutstandingCallsPerChannel;
+  private final ChannelSelectionStrategy channelSelectionStrategy;
+  @Nullable private final Duration warmUpTimeout;
+  @Nullable private final Duration credentialsRefreshMargin;
+  private final Map<String, String> headers;
+  private final String serviceHeader;
 
   private InstantiatingChannelProvider(
       ExecutorProvider executorProvider,
@@ -78,7 +121,14 @@ public final class InstantiatingChannelProvider implements ChannelProvider {
       String clientLibName,
       String clientLibVersion,
       String generatorName,
-      String generatorVersion) {
+      String generatorVersion,
+      int poolSize,
+      int maxPoolSize,
+      int targetOutstandingCallsPerChannel,
+      ChannelSelectionStrategy channelSelectionStrategy,
+      @Nullable Duration warmUpTimeout,
+      @Nullable Duration credentialsRefreshMargin,
+      Map<String, String> headers) {
     this.executorProvider = executorProvider;
     this.credentialsProvider = credentialsProvider;
     this.serviceAddress = serviceAddress;
@@ -87,6 +137,14 @@ public final class InstantiatingChannelProvider implements ChannelProvider {
     this.clientLibVersion = clientLibVersion;
     this.generatorName = generatorName;
     this.generatorVersion = generatorVersion;
+    this.poolSize = poolSize;
+    this.maxPoolSize = maxPoolSize;
+    this.targetOutstandingCallsPerChannel = targetOutstandingCallsPerChannel;
+    this.channelSelectionStrategy = channelSelectionStrategy;
+    this.warmUpTimeout = warmUpTimeout;
+    this.credentialsRefreshMargin = credentialsRefreshMargin;
+    this.headers = headers;
+    this.serviceHeader = formatServiceHeader();
   }
 
   @Override
@@ -113,9 +171,73 @@ public final class InstantiatingChannelProvider implements ChannelProvider {
   }
 
   private ManagedChannel createChannel(Executor executor) throws IOException {
+    // The headers are encoded once, and shared by all underlying channels.
+    HeaderInterceptor headerInterceptor = new HeaderInterceptor(serviceHeader, headers);
+    Credentials credentials = createCredentials(executor);
+    ManagedChannel channel;
+    if (maxPoolSize == 1) {
+      channel = createSingleChannel(executor, credentials, headerInterceptor);
+      if (warmUpTimeout != null) {
+        ChannelWarmer.warmUp(Collections.singletonList(channel), warmUpTimeout, executor);
+      }
+    } else {
+      ChannelPool pool = createChannelPool(executor, credentials, headerInterceptor);
+      if (warmUpTimeout != null) {
+        ChannelWarmer.warmUp(pool.getChannels(), warmUpTimeout, executor);
+      }
+      channel = pool;
+    }
+    if (credentials instanceof RefreshingCredentials) {
+      // The background refresh of the token stops when the channel is shut down.
+      return new RefreshingCredentialsChannel(channel, (RefreshingCredentials) credentials);
+    }
+    return channel;
+  }
+
+  private Credentials createCredentials(Executor executor) throws IOException {
+    Credentials credentials = credentialsProvider.getCredentials();
+    if (credentialsRefreshMargin != null && credentials instanceof OAuth2Credentials) {
+      if (!(executor instanceof ScheduledExecutorService)) {
+        throw new IllegalArgumentException(
+            "A credentials refresh margin requires a ScheduledExecutorService");
+      }
+      return new RefreshingCredentials(
+          (OAuth2Credentials) credentials,
+          (ScheduledExecutorService) executor,
+          credentialsRefreshMargin);
+    }
+    return credentials;
+  }
+
+  private ChannelPool createChannelPool(
+      final Executor executor,
+      final Credentials credentials,
+      final HeaderInterceptor headerInterceptor)
+      throws IOException {
+    if (maxPoolSize > poolSize && !(executor instanceof ScheduledExecutorService)) {
+      throw new IllegalArgumentException(
+          "A maximum pool size greater than the pool size requires a ScheduledExecutorService");
+    }
+    return new ChannelPool(
+        poolSize,
+        maxPoolSize,
+        targetOutstandingCallsPerChannel,
+        new ChannelPool.ChannelFactory() {
+          @Override
+          public ManagedChannel createChannel() throws IOException {
+            return createSingleChannel(executor, credentials, headerInterceptor);
+          }
+        },
+        channelSelectionStrategy,
+        maxPoolSize > poolSize ? (ScheduledExecutorService) executor : null,
+        warmUpTimeout);
+  }
+
+  private ManagedChannel createSingleChannel(
+      Executor executor, Credentials credentials, HeaderInterceptor headerInterceptor) {
     List<ClientInterceptor> interceptors = Lists.newArrayList();
-    interceptors.add(new ClientAuthInterceptor(credentialsProvider.getCredentials(), executor));
-    interceptors.add(new HeaderInterceptor(serviceHeader()));
+    interceptors.add(new ClientAuthInterceptor(credentials, executor));
+    interceptors.add(headerInterceptor);
 
     return ManagedChannelBuilder.forAddress(serviceAddress, port)
         .intercept(interceptors)
@@ -163,6 +285,46 @@ public final class InstantiatingChannelProvider implements ChannelProvider {
     return serviceAddress + ':' + port;
   }
 
+  /** The number of underlying channels each channel provided by this ChannelProvider uses. */
+  public int getPoolSize() {
+    return poolSize;
+  }
+
+  /** The maximum number of underlying channels each provided channel grows to. */
+  public int getMaxPoolSize() {
+    return maxPoolSize;
+  }
+
+  /** The number of outstanding calls per underlying channel that pool resizing aims for. */
+  public int getTargetOutstandingCallsPerChannel() {
+    return targetOutstandingCallsPerChannel;
+  }
+
+  /** The strategy used to pick the underlying channel for a call. */
+  public ChannelSelectionStrategy getChannelSelectionStrategy() {
+    return channelSelectionStrategy;
+  }
+
+  /**
+   * How long before their expiry access tokens are refreshed in the background, or null if they
+   * are refreshed inline by the credentials.
+   */
+  @Nullable
+  public Duration getCredentialsRefreshMargin() {
+    return credentialsRefreshMargin;
+  }
+
+  /** The static headers added to every call, besides the x-goog-api-client header. */
+  public Map<String, String> getHeaders() {
+    return headers;
+  }
+
+  /** The maximum time to wait for channels to warm up, or null if channels are not warmed up. */
+  @Nullable
+  public Duration getWarmUpTimeout() {
+    return warmUpTimeout;
+  }
+
   @Override
   public boolean shouldAutoClose() {
     return true;
@@ -170,6 +332,10 @@ public final class InstantiatingChannelProvider implements ChannelProvider {
 
   @VisibleForTesting
   String serviceHeader() {
+    return serviceHeader;
+  }
+
+  private String formatServiceHeader() {
     if (clientLibName != null && clientLibVersion != null) {
       return String.format(
           "gl-java/%s %s/%s %s/%s gax/%s grpc/%s",
@@ -234,10 +400,21 @@ public final class InstantiatingChannelProvider implements ChannelProvider {
     private String clientLibVersion;
     private String generatorName;
     private String generatorVersion;
+    private int poolSize;
+    private Integer maxPoolSize;
+    private int targetOutstandingCallsPerChannel;
+    private ChannelSelectionStrategy channelSelectionStrategy;
+    private Duration warmUpTimeout;
+    private Duration credentialsRefreshMargin;
+    private Map<String, String> headers;
 
     private Builder() {
       generatorName = DEFAULT_GENERATOR_NAME;
       generatorVersion = DEFAULT_VERSION;
+      poolSize = 1;
+      targetOutstandingCallsPerChannel = DEFAULT_TARGET_OUTSTANDING_CALLS_PER_CHANNEL;
+      channelSelectionStrategy = ChannelSelectionStrategy.RoundRobin;
+      headers = ImmutableMap.of();
     }
 
     private Builder(InstantiatingChannelProvider provider) {
@@ -248,6 +425,13 @@ public final class InstantiatingChannelProvider implements ChannelProvider {
       this.clientLibVersion = provider.clientLibVersion;
       this.generatorName = provider.generatorName;
       this.generatorVersion = provider.generatorVersion;
+      this.poolSize = provider.poolSize;
+      this.maxPoolSize = provider.maxPoolSize != provider.poolSize ? provider.maxPoolSize : null;
+      this.targetOutstandingCallsPerChannel = provider.targetOutstandingCallsPerChannel;
+      this.channelSelectionStrategy = provider.channelSelectionStrategy;
+      this.warmUpTimeout = provider.warmUpTimeout;
+      this.credentialsRefreshMargin = provider.credentialsRefreshMargin;
+      this.headers = provider.headers;
     }
 
     /**
@@ -382,7 +566,127 @@ public final class InstantiatingChannelProvider implements ChannelProvider {
       return generatorVersion;
     }
 
+    /**
+     * Sets the number of underlying channels, each with its own connection, that a provided
+     * channel spreads its calls across. The default is 1, which provides a plain channel. If a
+     * maximum pool size is set, this is the minimum number of underlying channels.
+     */
+    public Builder setPoolSize(int poolSize) {
+      Preconditions.checkArgument(poolSize > 0, "poolSize must be positive");
+      this.poolSize = poolSize;
+      return this;
+    }
+
+    /** The pool size provided previously. */
+    public int getPoolSize() {
+      return poolSize;
+    }
+
+    /**
+     * Sets the maximum number of underlying channels. If this is greater than the pool size, the
+     * number of underlying channels of a provided channel is adjusted to the number of outstanding
+     * calls, and channels which are no longer needed are shut down once their calls complete. The
+     * pool is resized by a periodic task on the executor of the channel, which must then be a
+     * ScheduledExecutorService, as it is when the channel is created by ClientSettings. By
+     * default, the number of underlying channels is fixed to the pool size.
+     */
+    public Builder setMaxPoolSize(int maxPoolSize) {
+      Preconditions.checkArgument(maxPoolSize > 0, "maxPoolSize must be positive");
+      this.maxPoolSize = maxPoolSize;
+      return this;
+    }
+
+    /** The maximum pool size provided previously, or null if the pool size is fixed. */
+    public Integer getMaxPoolSize() {
+      return maxPoolSize;
+    }
+
+    /**
+     * Sets the number of outstanding calls per underlying channel that pool resizing aims for. This
+     * should be below the maximum number of concurrent streams the service allows per connection.
+     * The default is 50.
+     */
+    public Builder setTargetOutstandingCallsPerChannel(int targetOutstandingCallsPerChannel) {
+      Preconditions.checkArgument(
+          targetOutstandingCallsPerChannel > 0,
+          "targetOutstandingCallsPerChannel must be positive");
+      this.targetOutstandingCallsPerChannel = targetOutstandingCallsPerChannel;
+      return this;
+    }
+
+    /** The target number of outstanding calls per channel provided previously. */
+    public int getTargetOutstandingCallsPerChannel() {
+      return targetOutstandingCallsPerChannel;
+    }
+
+    /**
+     * Sets the strategy used to pick the underlying channel for a call when the pool size is
+     * greater than one. The default is {@link ChannelSelectionStrategy#RoundRobin}.
+     */
+    public Builder setChannelSelectionStrategy(ChannelSelectionStrategy channelSelectionStrategy) {
+      this.channelSelectionStrategy = Preconditions.checkNotNull(channelSelectionStrategy);
+      return this;
+    }
+
+    /** The channel selection strategy provided previously. */
+    public ChannelSelectionStrategy getChannelSelectionStrategy() {
+      return channelSelectionStrategy;
+    }
+
+    /**
+     * Sets the maximum time getChannel(...) waits for the provided channel to connect and acquire
+     * credentials before returning it. Warming up is best effort: if it fails or times out, the
+     * channel is returned anyway. By default, channels are not warmed up, and connect on their
+     * first call.
+     */
+    public Builder setWarmUpTimeout(Duration warmUpTimeout) {
+      Preconditions.checkArgument(
+          warmUpTimeout == null || warmUpTimeout.getMillis() > 0,
+          "warmUpTimeout must be positive");
+      this.warmUpTimeout = warmUpTimeout;
+      return this;
+    }
+
+    /** The warm-up timeout provided previously. */
+    public Duration getWarmUpTimeout() {
+      return warmUpTimeout;
+    }
+
+    /**
+     * Sets how long before their expiry the access tokens of OAuth2 credentials are refreshed on
+     * the executor of the channel, so that calls never wait for a token refresh. This should be
+     * longer than a minute, as credentials refresh tokens inline during their last minute. The
+     * executor must then be a ScheduledExecutorService, as it is when the channel is created by
+     * ClientSettings, and the background refresh stops when the channel is shut down. By default,
+     * tokens are refreshed inline by the credentials.
+     */
+    public Builder setCredentialsRefreshMargin(Duration credentialsRefreshMargin) {
+      this.credentialsRefreshMargin = credentialsRefreshMargin;
+      return this;
+    }
+
+    /** The credentials refresh margin provided previously. */
+    public Duration getCredentialsRefreshMargin() {
+      return credentialsRefreshMargin;
+    }
+
+    /**
+     * Sets static ASCII headers which are added to every call, besides the x-goog-api-client
+     * header.
+     */
+    public Builder setHeaders(Map<String, String> headers) {
+      this.headers = ImmutableMap.copyOf(headers);
+      return this;
+    }
+
+    /** The static headers provided previously. */
+    public Map<String, String> getHeaders() {
+      return headers;
+    }
+
     public InstantiatingChannelProvider build() {
+      Preconditions.checkArgument(
+          maxPoolSize == null || maxPoolSize >= poolSize, "maxPoolSize must be at least poolSize");
       return new InstantiatingChannelProvider(
           executorProvider,
           credentialsProvider,
@@ -391,7 +695,14 @@ public final class InstantiatingChannelProvider implements ChannelProvider {
           clientLibName,
           clientLibVersion,
           generatorName,
-          generatorVersion);
+          generatorVersion,
+          poolSize,
+          maxPoolSize != null ? maxPoolSize : poolSize,
+          targetOutstandingCallsPerChannel,
+          channelSelectionStrategy,
+          warmUpTimeout,
+          credentialsRefreshMargin,
+          headers);
     }
   }
 }
@@ -29,12 +29,15 @@
  */
 package com.google.api.gax.grpc;
 
+import com.google.api.gax.core.RetrySettings;
+import com.google.common.base.Preconditions;
 import com.google.longrunning.Operation;
 import com.google.longrunning.OperationsClient;
 import com.google.protobuf.Message;
 import io.grpc.Channel;
 import io.grpc.MethodDescriptor;
 import java.util.concurrent.ScheduledExecutorService;
+import javax.annotation.Nullable;
 import org.joda.time.Duration;
 
 /**
@@ -46,6 +49,8 @@ public final class OperationCallSettings<RequestT, ResponseT extends Message> {
   private final SimpleCallSettings<RequestT, Operation> initialCallSettings;
   private final Class<ResponseT> responseClass;
   private final Duration pollingInterval;
+  @Nullable private final RetrySettings pollingSettings;
+  @Nullable private final Integer maxConcurrentPolls;
 
   public final SimpleCallSettings<RequestT, Operation> getInitialCallSettings() {
     return initialCallSettings;
@@ -55,24 +60,61 @@ public final class OperationCallSettings<RequestT, ResponseT extends Message> {
     return pollingInterval;
   }
 
+  /**
+   * Returns the backoff settings used to poll the operation, or null if the operation is polled at
+   * the fixed polling interval.
+   */
+  @Nullable
+  public final RetrySettings getPollingSettings() {
+    return pollingSettings;
+  }
+
+  /**
+   * Returns the maximum number of concurrent GetOperation calls issued on behalf of the operations
+   * started through this method, or null if each operation is polled independently.
+   */
+  @Nullable
+  public final Integer getMaxConcurrentPolls() {
+    return maxConcurrentPolls;
+  }
+
   // package-private for internal use.
   OperationCallable<RequestT, ResponseT> createOperationCallable(
       Channel channel, ScheduledExecutorService executor, OperationsClient operationsClient) {
     UnaryCallable<RequestT, Operation> initialCallable =
         initialCallSettings.create(channel, executor);
+    OperationPoller operationPoller = null;
+    if (maxConcurrentPolls != null) {
+      operationPoller =
+          new OperationPoller(
+              operationsClient,
+              executor,
+              OperationPoller.DEFAULT_TICK_INTERVAL,
+              maxConcurrentPolls);
+    }
     OperationCallable<RequestT, ResponseT> operationCallable =
         new OperationCallable<>(
-            initialCallable, channel, executor, operationsClient, responseClass, this);
+            initialCallable,
+            channel,
+            executor,
+            operationsClient,
+            operationPoller,
+            responseClass,
+            this);
     return operationCallable;
   }
 
   private OperationCallSettings(
       SimpleCallSettings<RequestT, Operation> initialCallSettings,
       Class<ResponseT> responseClass,
-      Duration pollingInterval) {
+      Duration pollingInterval,
+      RetrySettings pollingSettings,
+      Integer maxConcurrentPolls) {
     this.initialCallSettings = initialCallSettings;
     this.responseClass = responseClass;
     this.pollingInterval = pollingInterval;
+    this.pollingSettings = pollingSettings;
+    this.maxConcurrentPolls = maxConcurrentPolls;
   }
 
   /**
@@ -91,6 +133,8 @@ public final class OperationCallSettings<RequestT, ResponseT extends Message> {
     private SimpleCallSettings.Builder<RequestT, Operation> initialCallSettings;
     private Class<ResponseT> responseClass;
     private Duration pollingInterval = OperationFuture.DEFAULT_POLLING_INTERVAL;
+    private RetrySettings pollingSettings;
+    private Integer maxConcurrentPolls;
 
     public Builder(
         MethodDescriptor<RequestT, Operation> grpcMethodDescriptor,
@@ -102,6 +146,9 @@ public final class OperationCallSettings<RequestT, ResponseT extends Message> {
     public Builder(OperationCallSettings<RequestT, ResponseT> settings) {
       this.initialCallSettings = settings.initialCallSettings.toBuilder();
       this.responseClass = settings.responseClass;
+      this.pollingInterval = settings.pollingInterval;
+      this.pollingSettings = settings.pollingSettings;
+      this.maxConcurrentPolls = settings.maxConcurrentPolls;
     }
 
     /**
@@ -119,6 +166,43 @@ public final class OperationCallSettings<RequestT, ResponseT extends Message> {
       return pollingInterval;
     }
 
+    /**
+     * Set the backoff settings used to poll the operation. If set, these take precedence over the
+     * polling interval: the first poll happens after the initial retry delay, each following delay
+     * is multiplied by the retry delay multiplier up to the max retry delay and randomized, and the
+     * operation fails with DEADLINE_EXCEEDED once the total timeout has passed. The RPC timeout
+     * settings are not used.
+     */
+    public Builder<RequestT, ResponseT> setPollingSettings(RetrySettings pollingSettings) {
+      this.pollingSettings = pollingSettings;
+      return this;
+    }
+
+    /**
+     * Get the backoff settings used to poll the operation.
+     */
+    public RetrySettings getPollingSettings() {
+      return pollingSettings;
+    }
+
+    /**
+     * Set the maximum number of concurrent GetOperation calls. If set, the operations started
+     * through this method are polled by a shared {@link OperationPoller}, which wakes up once per
+     * tick for all of them and coalesces polls of the same operation; if null, each operation
+     * schedules its own polls.
+     */
+    public Builder<RequestT, ResponseT> setMaxConcurrentPolls(Integer maxConcurrentPolls) {
+      this.maxConcurrentPolls = maxConcurrentPolls;
+      return this;
+    }
+
+    /**
+     * Get the maximum number of concurrent GetOperation calls.
+     */
+    public Integer getMaxConcurrentPolls() {
+      return maxConcurrentPolls;
+    }
+
     /**
      * Set the call settings which are used on the call to initiate the operation.
      */
@@ -136,8 +220,18 @@ public final class OperationCallSettings<RequestT, ResponseT extends Message> {
     }
 
     public OperationCallSettings<RequestT, ResponseT> build() {
+      Preconditions.checkArgument(
+          pollingSettings == null || pollingSettings.getInitialRetryDelay().getMillis() > 0,
+          "the initial retry delay of pollingSettings must be positive");
+      Preconditions.checkArgument(
+          maxConcurrentPolls == null || maxConcurrentPolls > 0,
+          "maxConcurrentPolls must be either unset or positive");
       return new OperationCallSettings<>(
-          initialCallSettings.build(), responseClass, pollingInterval);
+          initialCallSettings.build(),
+          responseClass,
+          pollingInterval,
+          pollingSettings,
+          maxConcurrentPolls);
     }
   }
 }
@@ -30,6 +30,9 @@
 package com.google.api.gax.grpc;
 
 import com.google.api.gax.core.ApiFuture;
+import com.google.api.gax.core.NanoClock;
+import com.google.api.gax.core.RetrySettings;
+import com.google.api.gax.retrying.ExponentialRetryAlgorithm;
 import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.longrunning.GetOperationRequest;
@@ -38,6 +41,7 @@ import com.google.longrunning.OperationsClient;
 import com.google.protobuf.Message;
 import io.grpc.Channel;
 import java.util.concurrent.ScheduledExecutorService;
+import javax.annotation.Nullable;
 import org.joda.time.Duration;
 
 /**
@@ -50,8 +54,9 @@ public final class OperationCallable<RequestT, ResponseT extends Message> {
   private final Channel channel;
   private final ScheduledExecutorService executor;
   private final OperationsClient operationsClient;
+  @Nullable private final OperationPoller operationPoller;
   private final Class<ResponseT> responseClass;
-  private final OperationCallSettings settings;
+  private final OperationCallSettings<RequestT, ResponseT> settings;
 
   /** Package-private for internal use. */
   OperationCallable(
@@ -60,11 +65,24 @@ public final class OperationCallable<RequestT, ResponseT extends Message> {
       ScheduledExecutorService executor,
       OperationsClient operationsClient,
       Class<ResponseT> responseClass,
-      OperationCallSettings settings) {
+      OperationCallSettings<RequestT, ResponseT> settings) {
+    this(initialCallable, channel, executor, operationsClient, null, responseClass, settings);
+  }
+
+  /** Package-private for internal use. */
+  OperationCallable(
+      UnaryCallable<RequestT, Operation> initialCallable,
+      Channel channel,
+      ScheduledExecutorService executor,
+      OperationsClient operationsClient,
+      @Nullable OperationPoller operationPoller,
+      Class<ResponseT> responseClass,
+      OperationCallSettings<RequestT, ResponseT> settings) {
     this.initialCallable = Preconditions.checkNotNull(initialCallable);
     this.channel = channel;
     this.executor = executor;
     this.operationsClient = operationsClient;
+    this.operationPoller = operationPoller;
     this.responseClass = responseClass;
     this.settings = settings;
   }
@@ -78,7 +96,13 @@ public final class OperationCallable<RequestT, ResponseT extends Message> {
    */
   OperationCallable<RequestT, ResponseT> bind(Channel boundChannel) {
     return new OperationCallable<>(
-        initialCallable, boundChannel, executor, operationsClient, responseClass, settings);
+        initialCallable,
+        boundChannel,
+        executor,
+        operationsClient,
+        operationPoller,
+        responseClass,
+        settings);
   }
 
   /**
@@ -116,10 +140,7 @@ public final class OperationCallable<RequestT, ResponseT extends Message> {
     ApiFuture<Operation> initialCallFuture = initialCallable.futureCall(request, context);
     Duration pollingInterval =
         settings != null ? settings.getPollingInterval() : OperationFuture.DEFAULT_POLLING_INTERVAL;
-    OperationFuture<ResponseT> operationFuture =
-        OperationFuture.create(
-            operationsClient, initialCallFuture, executor, responseClass, pollingInterval);
-    return operationFuture;
+    return createOperationFuture(initialCallFuture, pollingInterval);
   }
 
   /**
@@ -174,8 +195,27 @@ public final class OperationCallable<RequestT, ResponseT extends Message> {
         operationsClient
             .getOperationCallable()
             .futureCall(GetOperationRequest.newBuilder().setName(operationName).build());
-    OperationFuture<ResponseT> operationFuture =
-        OperationFuture.create(operationsClient, getOperationFuture, executor, responseClass);
-    return operationFuture;
+    return createOperationFuture(getOperationFuture, OperationFuture.DEFAULT_POLLING_INTERVAL);
+  }
+
+  private OperationFuture<ResponseT> createOperationFuture(
+      ApiFuture<Operation> initialOperationFuture, Duration pollingInterval) {
+    RetrySettings pollingSettings = settings != null ? settings.getPollingSettings() : null;
+    if (pollingSettings != null) {
+      ExponentialRetryAlgorithm pollingAlgorithm =
+          new ExponentialRetryAlgorithm(pollingSettings, NanoClock.getDefaultClock());
+      if (operationPoller != null) {
+        return OperationFuture.create(
+            operationPoller, initialOperationFuture, responseClass, pollingAlgorithm);
+      }
+      return OperationFuture.create(
+          operationsClient, initialOperationFuture, executor, responseClass, pollingAlgorithm);
+    }
+    if (operationPoller != null) {
+      return OperationFuture.create(
+          operationPoller, initialOperationFuture, responseClass, pollingInterval);
+    }
+    return OperationFuture.create(
+        operationsClient, initialOperationFuture, executor, responseClass, pollingInterval);
   }
 }
@@ -31,15 +31,21 @@ package com.google.api.gax.grpc;
 
 import com.google.api.gax.core.AbstractApiFuture;
 import com.google.api.gax.core.ApiFuture;
-import com.google.common.annotations.VisibleForTesting;
+import com.google.api.gax.core.ApiFutureCallback;
+import com.google.api.gax.core.ApiFutures;
+import com.google.api.gax.retrying.TimedAttemptSettings;
+import com.google.api.gax.retrying.TimedRetryAlgorithm;
+import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.longrunning.CancelOperationRequest;
+import com.google.longrunning.GetOperationRequest;
 import com.google.longrunning.Operation;
 import com.google.longrunning.OperationsClient;
 import com.google.protobuf.Any;
+import com.google.protobuf.Empty;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import io.grpc.Status;
-import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
@@ -47,15 +53,32 @@ import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import javax.annotation.Nullable;
 import org.joda.time.Duration;
 
-/** An ApiFuture which polls a service through OperationsApi for the completion of an operation. */
+/**
+ * An ApiFuture which polls a service through OperationsApi for the completion of an operation.
+ *
+ * <p>
+ * Polling does not occupy a thread while waiting: each poll is scheduled on the executor, which
+ * only issues an asynchronous GetOperation call, and the next poll is scheduled from the callback
+ * of that call. A small executor can therefore track a large number of operations. Alternatively,
+ * the polls of many OperationFutures can be coalesced by a shared {@link OperationPoller}.
+ *
+ * <p>
+ * Polls happen either at a fixed interval, or with the delays computed by a
+ * {@link TimedRetryAlgorithm}, such as an exponential backoff which checks short operations soon
+ * after they start and long ones rarely. In the latter case, the first poll happens after the
+ * retry delay of the first attempt, later polls after its randomized retry delay, and the future
+ * fails with a DEADLINE_EXCEEDED {@link ApiException} once the algorithm stops accepting further
+ * polls.
+ */
 public final class OperationFuture<ResponseT extends Message> extends AbstractApiFuture<ResponseT> {
   static final Duration DEFAULT_POLLING_INTERVAL = Duration.standardSeconds(1);
 
   private final ApiFuture<Operation> initialOperationFuture;
   private final SettableFuture<ResponseT> finalResultFuture;
-  private final Future<ResponseT> dataGetterFuture;
+  private final PollingTask<ResponseT> poller;
   private final CountDownLatch asyncCompletionLatch;
 
   /** Creates an OperationFuture with the minimum required inputs, and defaults the rest. */
@@ -81,145 +104,319 @@ public final class OperationFuture<ResponseT extends Message> extends AbstractAp
       Duration pollingInterval) {
     return create(
         operationsClient,
+        null,
         initialOperationFuture,
         executor,
         responseClass,
         pollingInterval,
-        new Waiter());
+        null);
   }
 
-  // package-private for testing
-  @VisibleForTesting
-  static <ResponseT extends Message> OperationFuture<ResponseT> create(
+  /**
+   * Creates an OperationFuture whose polls are issued by a shared {@link OperationPoller}, at the
+   * given polling interval.
+   */
+  public static <ResponseT extends Message> OperationFuture<ResponseT> create(
+      OperationPoller operationPoller,
+      ApiFuture<Operation> initialOperationFuture,
+      Class<ResponseT> responseClass,
+      Duration pollingInterval) {
+    return create(
+        operationPoller.getOperationsClient(),
+        operationPoller,
+        initialOperationFuture,
+        null,
+        responseClass,
+        pollingInterval,
+        null);
+  }
+
+  /** Creates an OperationFuture whose polling delays are computed by the given algorithm. */
+  public static <ResponseT extends Message> OperationFuture<ResponseT> create(
       OperationsClient operationsClient,
       ApiFuture<Operation> initialOperationFuture,
       ScheduledExecutorService executor,
       Class<ResponseT> responseClass,
-      Duration pollingInterval,
-      Waiter waiter) {
+      TimedRetryAlgorithm pollingAlgorithm) {
+    return create(
+        operationsClient,
+        null,
+        initialOperationFuture,
+        executor,
+        responseClass,
+        null,
+        Preconditions.checkNotNull(pollingAlgorithm));
+  }
+
+  /**
+   * Creates an OperationFuture whose polls are issued by a shared {@link OperationPoller}, with
+   * delays computed by the given algorithm.
+   */
+  public static <ResponseT extends Message> OperationFuture<ResponseT> create(
+      OperationPoller operationPoller,
+      ApiFuture<Operation> initialOperationFuture,
+      Class<ResponseT> responseClass,
+      TimedRetryAlgorithm pollingAlgorithm) {
+    return create(
+        operationPoller.getOperationsClient(),
+        operationPoller,
+        initialOperationFuture,
+        null,
+        responseClass,
+        null,
+        Preconditions.checkNotNull(pollingAlgorithm));
+  }
+
+  private static <ResponseT extends Message> OperationFuture<ResponseT> create(
+      OperationsClient operationsClient,
+      @Nullable OperationPoller operationPoller,
+      ApiFuture<Operation> initialOperationFuture,
+      @Nullable ScheduledExecutorService executor,
+      Class<ResponseT> responseClass,
+      @Nullable Duration pollingInterval,
+      @Nullable TimedRetryAlgorithm pollingAlgorithm) {
     SettableFuture<ResponseT> finalResultFuture = SettableFuture.create();
     CountDownLatch asyncCompletionLatch = new CountDownLatch(1);
-    Future<ResponseT> dataGetterFuture =
-        executor.submit(
-            new DataGetterRunnable<ResponseT>(
-                initialOperationFuture,
-                finalResultFuture,
-                operationsClient,
-                responseClass,
-                pollingInterval,
-                waiter,
-                asyncCompletionLatch));
+    PollingTask<ResponseT> poller =
+        new PollingTask<>(
+            initialOperationFuture,
+            finalResultFuture,
+            operationsClient,
+            operationPoller,
+            executor,
+            responseClass,
+            pollingInterval,
+            pollingAlgorithm,
+            asyncCompletionLatch);
     OperationFuture<ResponseT> operationFuture =
         new OperationFuture<>(
-            initialOperationFuture, finalResultFuture, dataGetterFuture, asyncCompletionLatch);
+            initialOperationFuture, finalResultFuture, poller, asyncCompletionLatch);
+    poller.start();
     return operationFuture;
   }
 
   private OperationFuture(
       ApiFuture<Operation> initialOperationFuture,
       SettableFuture<ResponseT> finalResultFuture,
-      Future<ResponseT> dataGetterFuture,
+      PollingTask<ResponseT> poller,
       CountDownLatch asyncCompletionLatch) {
     this.initialOperationFuture = initialOperationFuture;
     this.finalResultFuture = finalResultFuture;
-    this.dataGetterFuture = dataGetterFuture;
+    this.poller = poller;
     this.asyncCompletionLatch = asyncCompletionLatch;
   }
 
-  private static class DataGetterRunnable<ResponseT extends Message>
-      implements Callable<ResponseT> {
+  /**
+   * Drives the polling of a single operation. Each step is either waiting for the initial
+   * operation, a poll scheduled on the executor or registered with the shared poller, or an
+   * in-flight GetOperation call; the pending step is tracked so that it can be cancelled.
+   */
+  private static class PollingTask<ResponseT extends Message>
+      implements ApiFutureCallback<Operation>, Runnable {
     private final ApiFuture<Operation> initialOperationFuture;
     private final SettableFuture<ResponseT> finalResultFuture;
     private final OperationsClient operationsClient;
+    @Nullable private final OperationPoller operationPoller;
+    @Nullable private final ScheduledExecutorService executor;
     private final Class<ResponseT> responseClass;
-    private final Duration pollingInterval;
-    private final Waiter waiter;
+    @Nullable private final Duration pollingInterval;
+    @Nullable private final TimedRetryAlgorithm pollingAlgorithm;
     private final CountDownLatch asyncCompletionLatch;
 
-    public DataGetterRunnable(
+    // Guarded by this.
+    private Operation latestOperation;
+    private Future<?> pendingFuture;
+    private TimedAttemptSettings pollingAttempt;
+
+    private PollingTask(
         ApiFuture<Operation> initialOperationFuture,
         SettableFuture<ResponseT> finalResultFuture,
         OperationsClient operationsClient,
+        @Nullable OperationPoller operationPoller,
+        @Nullable ScheduledExecutorService executor,
         Class<ResponseT> responseClass,
-        Duration pollingInterval,
-        Waiter waiter,
+        @Nullable Duration pollingInterval,
+        @Nullable TimedRetryAlgorithm pollingAlgorithm,
         CountDownLatch asyncCompletionLatch) {
       this.initialOperationFuture = initialOperationFuture;
       this.finalResultFuture = finalResultFuture;
       this.operationsClient = operationsClient;
+      this.operationPoller = operationPoller;
+      this.executor = executor;
       this.responseClass = responseClass;
       this.pollingInterval = pollingInterval;
-      this.waiter = waiter;
+      this.pollingAlgorithm = pollingAlgorithm;
       this.asyncCompletionLatch = asyncCompletionLatch;
     }
 
+    private void start() {
+      if (pollingAlgorithm != null) {
+        synchronized (this) {
+          pollingAttempt = pollingAlgorithm.createFirstAttempt();
+        }
+      }
+      ApiFutures.addCallback(initialOperationFuture, this);
+    }
+
     @Override
-    public ResponseT call() {
-      try {
-        callImpl();
-      } finally {
+    public void onSuccess(Operation operation) {
+      if (!operation.getDone()) {
+        scheduleNextPoll(operation);
+        return;
+      }
+      synchronized (this) {
+        latestOperation = operation;
+        pendingFuture = null;
+      }
+      if (isCancelled(operation)) {
+        finalResultFuture.cancel(true);
+      } else {
+        setResultFromOperation(finalResultFuture, operation, responseClass);
+      }
+      asyncCompletionLatch.countDown();
+    }
+
+    @Override
+    public void onFailure(Throwable t) {
+      // A failure caused by cancel() is handled there.
+      if (!finalResultFuture.isCancelled()) {
+        finalResultFuture.setException(t);
         asyncCompletionLatch.countDown();
       }
-      return null;
     }
 
-    public void callImpl() {
-      Operation latestOperation = null;
-      try {
-        latestOperation = initialOperationFuture.get();
-        if (latestOperation.getDone()) {
-          setResultFromOperation(finalResultFuture, latestOperation, responseClass);
+    private void scheduleNextPoll(Operation operation) {
+      ApiFuture<Operation> nextOperationFuture = null;
+      boolean timedOut;
+      synchronized (this) {
+        latestOperation = operation;
+        pendingFuture = null;
+        if (finalResultFuture.isDone()) {
           return;
         }
-        while (true) {
-          // TODO: switch implementation from polling to scheduled execution
-          // https://github.com/googleapis/gax-java/issues/147
-          waiter.wait(pollingInterval);
-          latestOperation = operationsClient.getOperation(latestOperation.getName());
-          if (latestOperation.getDone()) {
-            if (isCancelled(latestOperation)) {
-              finalResultFuture.cancel(true);
-            } else {
-              setResultFromOperation(finalResultFuture, latestOperation, responseClass);
-            }
-            return;
+        Duration delay = pollingInterval;
+        if (pollingAlgorithm != null) {
+          pollingAttempt = pollingAlgorithm.createNextAttempt(pollingAttempt);
+          if (!pollingAlgorithm.accept(pollingAttempt)) {
+            delay = null;
+          } else if (pollingAttempt.getAttemptCount() > 1) {
+            delay = pollingAttempt.getRandomizedRetryDelay();
+          } else {
+            // The first poll is not randomized, so that it never follows the start call at once.
+            delay = pollingAttempt.getRetryDelay();
           }
         }
-      } catch (InterruptedException e) {
+        if (delay != null && operationPoller != null) {
+          nextOperationFuture = operationPoller.getOperationAfter(operation.getName(), delay);
+          pendingFuture = nextOperationFuture;
+        } else if (delay != null) {
+          pendingFuture = executor.schedule(this, delay.getMillis(), TimeUnit.MILLISECONDS);
+        }
+        timedOut = delay == null;
+      }
+      if (nextOperationFuture != null) {
+        ApiFutures.addCallback(nextOperationFuture, this);
+      } else if (timedOut) {
+        onFailure(
+            new ApiException(
+                "Operation " + operation.getName() + " did not complete before the polling timeout",
+                null,
+                Status.Code.DEADLINE_EXCEEDED,
+                false));
+      }
+    }
+
+    /** Issues the next GetOperation call. Runs on the executor once the polling interval passes. */
+    @Override
+    public void run() {
+      ApiFuture<Operation> getOperationFuture;
+      synchronized (this) {
+        if (finalResultFuture.isDone()) {
+          return;
+        }
         try {
-          if (latestOperation != null) {
-            // TODO: don't cancel the remote operation if cancel was called with
-            // mayInterruptIfRunning = false
-            // https://github.com/googleapis/gax-java/issues/147
-            operationsClient.cancelOperation(latestOperation.getName());
-          }
-          if (!initialOperationFuture.isDone()) {
-            initialOperationFuture.cancel(true);
-          }
-        } catch (Exception e2) {
-          // Ignore - the interruption takes higher precedence
+          getOperationFuture =
+              operationsClient
+                  .getOperationCallable()
+                  .futureCall(
+                      GetOperationRequest.newBuilder().setName(latestOperation.getName()).build());
+        } catch (RuntimeException e) {
+          getOperationFuture = ApiFutures.immediateFailedFuture(e);
         }
-        finalResultFuture.cancel(true);
-        Thread.currentThread().interrupt();
+        pendingFuture = getOperationFuture;
+      }
+      ApiFutures.addCallback(getOperationFuture, this);
+    }
+
+    /**
+     * Stops polling after the result future has been cancelled. If mayInterruptIfRunning is true,
+     * the operation is also cancelled: before it has been started, by cancelling the initial
+     * operation future, and afterwards, on the server. If mayInterruptIfRunning is false, the
+     * initial operation future is left to complete, as before polling was made asynchronous.
+     */
+    private void cancel(boolean mayInterruptIfRunning) {
+      Future<?> futureToCancel;
+      Operation operation;
+      synchronized (this) {
+        futureToCancel = pendingFuture;
+        operation = latestOperation;
+        pendingFuture = null;
+      }
+      if (futureToCancel != null) {
+        futureToCancel.cancel(mayInterruptIfRunning);
+      }
+      if (operation == null) {
+        if (mayInterruptIfRunning) {
+          initialOperationFuture.cancel(true);
+        }
+      } else if (mayInterruptIfRunning && !operation.getDone()) {
+        cancelOperation(operation.getName());
         return;
-      } catch (Throwable e) {
-        finalResultFuture.setException(e);
+      }
+      asyncCompletionLatch.countDown();
+    }
+
+    private void cancelOperation(String operationName) {
+      ApiFuture<Empty> cancelFuture;
+      try {
+        cancelFuture =
+            operationsClient
+                .cancelOperationCallable()
+                .futureCall(CancelOperationRequest.newBuilder().setName(operationName).build());
+      } catch (RuntimeException e) {
+        // Ignore - the local cancellation takes higher precedence
+        asyncCompletionLatch.countDown();
         return;
       }
+      ApiFutures.addCallback(
+          cancelFuture,
+          new ApiFutureCallback<Empty>() {
+            @Override
+            public void onSuccess(Empty result) {
+              asyncCompletionLatch.countDown();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+              // Ignore - the local cancellation takes higher precedence
+              asyncCompletionLatch.countDown();
+            }
+          });
     }
   }
 
   /**
-   * If last Operation's value of `done` is true, returns false; otherwise, issues
-   * Operations.CancelOperation and returns true.
+   * If last Operation's value of `done` is true, returns false; otherwise, stops polling and
+   * returns true. If mayInterruptIfRunning is true, also cancels the call which starts the
+   * operation if it is still in progress, or issues Operations.CancelOperation otherwise.
    */
   @Override
   public final boolean cancel(boolean mayInterruptIfRunning) {
-    dataGetterFuture.cancel(mayInterruptIfRunning);
-    // if the operation was cancelled before the executor could even start
-    // DataGetterRunnable, then finalResultFuture also needs to be canceled here;
-    // It won't break anything if it has already been canceled.
-    return finalResultFuture.cancel(mayInterruptIfRunning);
+    if (!finalResultFuture.cancel(mayInterruptIfRunning)) {
+      return false;
+    }
+    poller.cancel(mayInterruptIfRunning);
+    return true;
   }
 
   /**
@@ -371,10 +568,4 @@ public final class OperationFuture<ResponseT extends Message> extends AbstractAp
     }
     return false;
   }
-
-  static class Waiter {
-    public void wait(Duration duration) throws InterruptedException {
-      Thread.sleep(duration.getMillis());
-    }
-  }
 }
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2017, Google Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.google.api.gax.grpc;
+
+import com.google.api.gax.core.ApiClock;
+import com.google.api.gax.core.ApiFuture;
+import com.google.api.gax.core.ApiFutureCallback;
+import com.google.api.gax.core.ApiFutures;
+import com.google.api.gax.core.NanoClock;
+import com.google.api.gax.core.SettableApiFuture;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.longrunning.GetOperationRequest;
+import com.google.longrunning.Operation;
+import com.google.longrunning.OperationsClient;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.joda.time.Duration;
+
+/**
+ * Polls long-running operations on behalf of many {@link OperationFuture}s.
+ *
+ * <p>
+ * Instead of each future scheduling its own timer, polls are registered with the poller, which
+ * wakes up once per tick while there is work to do and issues GetOperation calls for all operations
+ * which are due. Registrations for the same operation name are coalesced into a single call, and
+ * the number of concurrent GetOperation calls is bounded; polls beyond that limit wait until an
+ * outstanding call completes.
+ *
+ * <p>
+ * This is public only for technical reasons, for advanced usage.
+ */
+public final class OperationPoller {
+  /** The default granularity at which polls are issued. */
+  public static final Duration DEFAULT_TICK_INTERVAL = Duration.millis(100);
+
+  private final OperationsClient operationsClient;
+  private final ScheduledExecutorService executor;
+  private final Duration tickInterval;
+  private final int maxConcurrentPolls;
+  private final ApiClock clock;
+
+  private final Runnable tickRunnable =
+      new Runnable() {
+        @Override
+        public void run() {
+          tick();
+        }
+      };
+
+  // Invariant:
+  // - lock gates all accesses to members below
+  // - every PendingPoll is either in scheduledPolls (and pollsByName) or in readyPolls
+  private final Object lock = new Object();
+  private final Map<String, PendingPoll> pollsByName = new HashMap<>();
+  private final PriorityQueue<PendingPoll> scheduledPolls = new PriorityQueue<>();
+  private final Queue<PendingPoll> readyPolls = new ArrayDeque<>();
+  private int pollsInFlight;
+  private Future<?> tickFuture;
+
+  public OperationPoller(
+      OperationsClient operationsClient,
+      ScheduledExecutorService executor,
+      Duration tickInterval,
+      int maxConcurrentPolls) {
+    this(operationsClient, executor, tickInterval, maxConcurrentPolls, NanoClock.getDefaultClock());
+  }
+
+  @VisibleForTesting
+  OperationPoller(
+      OperationsClient operationsClient,
+      ScheduledExecutorService executor,
+      Duration tickInterval,
+      int maxConcurrentPolls,
+      ApiClock clock) {
+    Preconditions.checkArgument(
+        tickInterval.compareTo(Duration.ZERO) > 0, "tickInterval must be positive");
+    Preconditions.checkArgument(maxConcurrentPolls > 0, "maxConcurrentPolls must be positive");
+    this.operationsClient = Preconditions.checkNotNull(operationsClient);
+    this.executor = Preconditions.checkNotNull(executor);
+    this.tickInterval = tickInterval;
+    this.maxConcurrentPolls = maxConcurrentPolls;
+    this.clock = Preconditions.checkNotNull(clock);
+  }
+
+  /** Returns the client used to issue GetOperation calls. */
+  public OperationsClient getOperationsClient() {
+    return operationsClient;
+  }
+
+  /**
+   * Returns a future for the state of the given operation, fetched no earlier than the given delay
+   * from now. Cancelling the returned future withdraws the registration.
+   */
+  public ApiFuture<Operation> getOperationAfter(String operationName, Duration delay) {
+    SettableApiFuture<Operation> result = SettableApiFuture.create();
+    long dueNanos = clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay.getMillis());
+    synchronized (lock) {
+      PendingPoll poll = pollsByName.get(operationName);
+      if (poll == null) {
+        poll = new PendingPoll(operationName, dueNanos);
+        pollsByName.put(operationName, poll);
+        scheduledPolls.add(poll);
+      } else if (dueNanos < poll.dueNanos) {
+        scheduledPolls.remove(poll);
+        poll.dueNanos = dueNanos;
+        scheduledPolls.add(poll);
+      }
+      poll.results.add(result);
+      if (tickFuture == null) {
+        long tickMillis = tickInterval.getMillis();
+        tickFuture =
+            executor.scheduleAtFixedRate(
+                tickRunnable, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+    return result;
+  }
+
+  /** Returns the number of operations waiting for a poll, for use in testing. */
+  @VisibleForTesting
+  int getPendingPollCount() {
+    synchronized (lock) {
+      return scheduledPolls.size() + readyPolls.size();
+    }
+  }
+
+  private void tick() {
+    long nowNanos = clock.nanoTime();
+    synchronized (lock) {
+      while (!scheduledPolls.isEmpty() && scheduledPolls.peek().dueNanos <= nowNanos) {
+        PendingPoll poll = scheduledPolls.remove();
+        pollsByName.remove(poll.operationName);
+        readyPolls.add(poll);
+      }
+      if (scheduledPolls.isEmpty() && tickFuture != null) {
+        tickFuture.cancel(false);
+        tickFuture = null;
+      }
+    }
+    dispatchReadyPolls();
+  }
+
+  private void dispatchReadyPolls() {
+    List<PendingPoll> pollsToIssue = new ArrayList<>();
+    synchronized (lock) {
+      while (pollsInFlight < maxConcurrentPolls && !readyPolls.isEmpty()) {
+        PendingPoll poll = readyPolls.remove();
+        if (poll.isCancelled()) {
+          continue;
+        }
+        pollsInFlight++;
+        pollsToIssue.add(poll);
+      }
+    }
+    for (PendingPoll poll : pollsToIssue) {
+      issue(poll);
+    }
+  }
+
+  private void issue(final PendingPoll poll) {
+    ApiFuture<Operation> getOperationFuture;
+    try {
+      getOperationFuture =
+          operationsClient
+              .getOperationCallable()
+              .futureCall(GetOperationRequest.newBuilder().setName(poll.operationName).build());
+    } catch (RuntimeException e) {
+      getOperationFuture = ApiFutures.immediateFailedFuture(e);
+    }
+    ApiFutures.addCallback(
+        getOperationFuture,
+        new ApiFutureCallback<Operation>() {
+          @Override
+          public void onSuccess(Operation operation) {
+            complete();
+            for (SettableApiFuture<Operation> result : poll.results) {
+              result.set(operation);
+            }
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            complete();
+            for (SettableApiFuture<Operation> result : poll.results) {
+              result.setException(t);
+            }
+          }
+
+          private void complete() {
+            synchronized (lock) {
+              pollsInFlight--;
+            }
+            dispatchReadyPolls();
+          }
+        });
+  }
+
+  /** All registrations for one operation which are waiting for the same GetOperation call. */
+  private static final class PendingPoll implements Comparable<PendingPoll> {
+    private final String operationName;
+    private final List<SettableApiFuture<Operation>> results = new ArrayList<>(1);
+    private long dueNanos;
+
+    private PendingPoll(String operationName, long dueNanos) {
+      this.operationName = operationName;
+      this.dueNanos = dueNanos;
+    }
+
+    private boolean isCancelled() {
+      for (SettableApiFuture<Operation> result : results) {
+        if (!result.isCancelled()) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public int compareTo(PendingPoll other) {
+      return Long.compare(dueNanos, other.dueNanos);
+    }
+  }
+}
@@ -29,42 +29,98 @@
  */
 package com.google.api.gax.grpc;
 
+import com.google.api.gax.core.ApiAsyncFunction;
+import com.google.api.gax.core.ApiFunction;
+import com.google.api.gax.core.ApiFuture;
+import com.google.api.gax.core.ApiFutures;
+import com.google.api.gax.core.AsyncPage;
 import com.google.api.gax.core.Page;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.AbstractIterator;
-import com.google.common.collect.Iterators;
+import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 import io.grpc.StatusRuntimeException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.Future;
 
-class PageImpl<RequestT, ResponseT, ResourceT> implements Page<RequestT, ResponseT, ResourceT> {
+class PageImpl<RequestT, ResponseT, ResourceT>
+    implements AsyncPage<RequestT, ResponseT, ResourceT> {
 
   private final UnaryCallable<RequestT, ResponseT> callable;
   private final PagedListDescriptor<RequestT, ResponseT, ResourceT> pageDescriptor;
   private final RequestT request;
   private final CallContext context;
-  private ResponseT response;
+  private final ResponseT response;
+  // Extracted once, since iterating a page and counting its elements are frequent.
+  private final List<ResourceT> resources;
 
   public PageImpl(
       UnaryCallable<RequestT, ResponseT> callable,
       PagedListDescriptor<RequestT, ResponseT, ResourceT> pageDescriptor,
       RequestT request,
       CallContext context) {
+    // Make the API call eagerly
+    this(
+        callable,
+        pageDescriptor,
+        request,
+        context,
+        getUnchecked(callable.futureCall(request, context)));
+  }
+
+  private PageImpl(
+      UnaryCallable<RequestT, ResponseT> callable,
+      PagedListDescriptor<RequestT, ResponseT, ResourceT> pageDescriptor,
+      RequestT request,
+      CallContext context,
+      ResponseT response) {
     this.callable = callable;
     this.pageDescriptor = pageDescriptor;
     this.request = request;
     this.context = context;
+    this.response = response;
+    this.resources = extractResources(pageDescriptor, response);
+  }
 
-    // Make the API call eagerly
-    this.response = getUnchecked(callable.futureCall(request, context));
+  private static <ResponseT, ResourceT> List<ResourceT> extractResources(
+      PagedListDescriptor<?, ResponseT, ResourceT> pageDescriptor, ResponseT response) {
+    Iterable<ResourceT> resources = pageDescriptor.extractResources(response);
+    if (resources instanceof List) {
+      // Repeated fields of protobuf messages are already lists, so they need not be copied.
+      return Collections.unmodifiableList((List<ResourceT>) resources);
+    }
+    return ImmutableList.copyOf(resources);
+  }
+
+  /**
+   * Issues the API call for the given request, and returns a future for the resulting page.
+   */
+  static <RequestT, ResponseT, ResourceT>
+      ApiFuture<AsyncPage<RequestT, ResponseT, ResourceT>> createAsync(
+      final UnaryCallable<RequestT, ResponseT> callable,
+      final PagedListDescriptor<RequestT, ResponseT, ResourceT> pageDescriptor,
+      final RequestT request,
+      final CallContext context) {
+    return ApiFutures.transform(
+        callable.futureCall(request, context),
+        new ApiFunction<ResponseT, AsyncPage<RequestT, ResponseT, ResourceT>>() {
+          @Override
+          public AsyncPage<RequestT, ResponseT, ResourceT> apply(ResponseT response) {
+            return new PageImpl<>(callable, pageDescriptor, request, context, response);
+          }
+        });
   }
 
   @Override
   public Iterator<ResourceT> iterator() {
-    return pageDescriptor.extractResources(response).iterator();
+    return resources.iterator();
   }
 
   @Override
@@ -88,6 +144,17 @@ class PageImpl<RequestT, ResponseT, ResourceT> implements Page<RequestT, Respons
     return new PageImpl<>(callable, pageDescriptor, nextRequest, context);
   }
 
+  @Override
+  public ApiFuture<AsyncPage<RequestT, ResponseT, ResourceT>> getNextPageAsync() {
+    if (!hasNextPage()) {
+      throw new NoSuchElementException(
+          "Could not complete getNextPageAsync operation: there are no more pages to retrieve.");
+    }
+
+    RequestT nextRequest = pageDescriptor.injectToken(request, getNextPageToken());
+    return createAsync(callable, pageDescriptor, nextRequest, context);
+  }
+
   @Override
   public Page<RequestT, ResponseT, ResourceT> getNextPage(int pageSize) {
     if (!hasNextPage()) {
@@ -102,7 +169,12 @@ class PageImpl<RequestT, ResponseT, ResourceT> implements Page<RequestT, Respons
 
   @Override
   public int getPageElementCount() {
-    return Iterators.size(iterator());
+    return resources.size();
+  }
+
+  @Override
+  public List<ResourceT> getPageElements() {
+    return resources;
   }
 
   @Override
@@ -115,6 +187,20 @@ class PageImpl<RequestT, ResponseT, ResourceT> implements Page<RequestT, Respons
     };
   }
 
+  @Override
+  public Iterable<Page<RequestT, ResponseT, ResourceT>> iteratePages(final int prefetchPageCount) {
+    Preconditions.checkArgument(prefetchPageCount >= 0, "prefetchPageCount must be non-negative");
+    if (prefetchPageCount == 0) {
+      return iteratePages();
+    }
+    return new Iterable<Page<RequestT, ResponseT, ResourceT>>() {
+      @Override
+      public Iterator<Page<RequestT, ResponseT, ResourceT>> iterator() {
+        return new PrefetchingPageIterator<>(PageImpl.this, prefetchPageCount);
+      }
+    };
+  }
+
   @Override
   public RequestT getRequestObject() {
     return request;
@@ -161,4 +247,67 @@ class PageImpl<RequestT, ResponseT, ResourceT> implements Page<RequestT, Respons
       return currentPage;
     }
   }
+
+  /**
+   * Iterates over pages while keeping up to prefetchPageCount following pages in flight. Since each
+   * request needs the token of the previous page, the prefetched pages are chained: each one is
+   * requested as soon as the one before it arrives.
+   */
+  private static class PrefetchingPageIterator<RequestT, ResponseT, ResourceT>
+      extends AbstractIterator<Page<RequestT, ResponseT, ResourceT>> {
+    private final int prefetchPageCount;
+    private final Deque<ApiFuture<AsyncPage<RequestT, ResponseT, ResourceT>>> prefetchedPages =
+        new ArrayDeque<>();
+    private AsyncPage<RequestT, ResponseT, ResourceT> currentPage;
+    private boolean firstPageFlag;
+
+    // Resolves to null once there are no more pages.
+    private final ApiAsyncFunction<
+            AsyncPage<RequestT, ResponseT, ResourceT>, AsyncPage<RequestT, ResponseT, ResourceT>>
+        nextPageFunction =
+            new ApiAsyncFunction<
+                AsyncPage<RequestT, ResponseT, ResourceT>,
+                AsyncPage<RequestT, ResponseT, ResourceT>>() {
+              @Override
+              public ApiFuture<AsyncPage<RequestT, ResponseT, ResourceT>> apply(
+                  AsyncPage<RequestT, ResponseT, ResourceT> page) {
+                if (page == null || !page.hasNextPage()) {
+                  return ApiFutures.immediateFuture(null);
+                }
+                return page.getNextPageAsync();
+              }
+            };
+
+    private PrefetchingPageIterator(
+        AsyncPage<RequestT, ResponseT, ResourceT> firstPage, int prefetchPageCount) {
+      this.currentPage = firstPage;
+      this.prefetchPageCount = prefetchPageCount;
+      this.firstPageFlag = true;
+    }
+
+    @Override
+    protected Page<RequestT, ResponseT, ResourceT> computeNext() {
+      if (firstPageFlag) {
+        firstPageFlag = false;
+      } else {
+        currentPage = prefetchedPages.isEmpty() ? null : getUnchecked(prefetchedPages.remove());
+      }
+      if (currentPage == null) {
+        return endOfData();
+      }
+      prefetch();
+      return currentPage;
+    }
+
+    private void prefetch() {
+      ApiFuture<AsyncPage<RequestT, ResponseT, ResourceT>> lastPage =
+          prefetchedPages.isEmpty()
+              ? ApiFutures.immediateFuture(currentPage)
+              : prefetchedPages.getLast();
+      while (prefetchedPages.size() < prefetchPageCount) {
+        lastPage = ApiFutures.transformAsync(lastPage, nextPageFunction);
+        prefetchedPages.add(lastPage);
+      }
+    }
+  }
 }
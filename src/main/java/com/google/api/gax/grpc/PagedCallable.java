@@ -29,15 +29,21 @@
  */
 package com.google.api.gax.grpc;
 
+import com.google.api.gax.core.ApiFunction;
 import com.google.api.gax.core.ApiFuture;
-import com.google.api.gax.core.internal.ListenableFutureToApiFuture;
+import com.google.api.gax.core.ApiFutures;
+import com.google.api.gax.core.AsyncPagedListResponse;
+import com.google.api.gax.core.Page;
 import com.google.common.base.Preconditions;
-import com.google.common.util.concurrent.Futures;
 
 /**
  * Implements the paged functionality used in {@link UnaryCallable}.
  *
  * <p>
+ * The call for the first page is issued without blocking, and the returned future completes once
+ * the first page has arrived, so that failures of the first call are reported by the future.
+ *
+ * <p>
  * Package-private for internal use.
  */
 class PagedCallable<RequestT, ResponseT, PagedListResponseT>
@@ -60,9 +66,19 @@ class PagedCallable<RequestT, ResponseT, PagedListResponseT>
 
   @Override
   public ApiFuture<PagedListResponseT> futureCall(RequestT request, CallContext context) {
-    PagedListResponseT pagedListResponse =
+    final PagedListResponseT pagedListResponse =
         pagedListResponseFactory.createPagedListResponse(
             UnaryCallable.create(callable), request, context);
-    return new ListenableFutureToApiFuture<>(Futures.immediateFuture(pagedListResponse));
+    if (!(pagedListResponse instanceof AsyncPagedListResponse)) {
+      return ApiFutures.immediateFuture(pagedListResponse);
+    }
+    return ApiFutures.transform(
+        ((AsyncPagedListResponse<?, ?, ?>) pagedListResponse).getPageAsync(),
+        new ApiFunction<Page<?, ?, ?>, PagedListResponseT>() {
+          @Override
+          public PagedListResponseT apply(Page<?, ?, ?> firstPage) {
+            return pagedListResponse;
+          }
+        });
   }
 }
@@ -29,9 +29,11 @@
  */
 package com.google.api.gax.grpc;
 
+import com.google.api.gax.core.ApiFuture;
+import com.google.api.gax.core.AsyncPage;
+import com.google.api.gax.core.AsyncPagedListResponse;
 import com.google.api.gax.core.FixedSizeCollection;
 import com.google.api.gax.core.Page;
-import com.google.api.gax.core.PagedListResponse;
 import com.google.api.gax.protobuf.ValidationException;
 import com.google.common.collect.AbstractIterator;
 import java.util.Collections;
@@ -40,22 +42,29 @@ import java.util.Iterator;
 /**
  * This is an implementation of the PagedListResponse interface. It is public so that generated code
  * can extend it and add additional methods, such as resource name type iteration.
+ *
+ * <p>
+ * The first page is fetched lazily: the API call is issued the first time the page is needed, so
+ * constructing a response never blocks, and no call is made if the response is never used.
  */
 public class PagedListResponseImpl<RequestT, ResponseT, ResourceT>
-    implements PagedListResponse<RequestT, ResponseT, ResourceT> {
+    implements AsyncPagedListResponse<RequestT, ResponseT, ResourceT> {
 
-  private RequestT request;
-  private PagedListDescriptor<RequestT, ResponseT, ResourceT> pageDescriptor;
-  private Page<RequestT, ResponseT, ResourceT> currentPage;
+  private final UnaryCallable<RequestT, ResponseT> callable;
+  private final RequestT request;
+  private final PagedListDescriptor<RequestT, ResponseT, ResourceT> pageDescriptor;
+  private final CallContext context;
+  private ApiFuture<AsyncPage<RequestT, ResponseT, ResourceT>> currentPageFuture;
 
   public PagedListResponseImpl(
       UnaryCallable<RequestT, ResponseT> callable,
       PagedListDescriptor<RequestT, ResponseT, ResourceT> pageDescriptor,
       RequestT request,
       CallContext context) {
+    this.callable = callable;
     this.pageDescriptor = pageDescriptor;
     this.request = request;
-    this.currentPage = new PageImpl<>(callable, pageDescriptor, request, context);
+    this.context = context;
   }
 
   @Override
@@ -70,18 +79,43 @@ public class PagedListResponseImpl<RequestT, ResponseT, ResourceT>
   }
 
   @Override
-  public Page<RequestT, ResponseT, ResourceT> getPage() {
-    return currentPage;
+  public Iterable<ResourceT> iterateAllElements(final int prefetchPageCount) {
+    return new Iterable<ResourceT>() {
+
+      @Override
+      public Iterator<ResourceT> iterator() {
+        return new ResourceTIterator<>(
+            PagedListResponseImpl.this.iteratePages(prefetchPageCount));
+      }
+    };
+  }
+
+  @Override
+  public ApiFuture<AsyncPage<RequestT, ResponseT, ResourceT>> getPageAsync() {
+    if (currentPageFuture == null) {
+      currentPageFuture = PageImpl.createAsync(callable, pageDescriptor, request, context);
+    }
+    return currentPageFuture;
+  }
+
+  @Override
+  public AsyncPage<RequestT, ResponseT, ResourceT> getPage() {
+    return PageImpl.getUnchecked(getPageAsync());
   }
 
   @Override
   public Iterable<Page<RequestT, ResponseT, ResourceT>> iteratePages() {
-    return currentPage.iteratePages();
+    return getPage().iteratePages();
+  }
+
+  @Override
+  public Iterable<Page<RequestT, ResponseT, ResourceT>> iteratePages(int prefetchPageCount) {
+    return getPage().iteratePages(prefetchPageCount);
   }
 
   @Override
   public Object getNextPageToken() {
-    return currentPage.getNextPageToken();
+    return getPage().getNextPageToken();
   }
 
   @Override
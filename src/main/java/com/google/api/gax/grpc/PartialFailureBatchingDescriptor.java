@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017, Google Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.google.api.gax.grpc;
+
+import java.util.List;
+
+/**
+ * A BatchingDescriptor for APIs whose batched calls can succeed for some of the batched requests
+ * and fail for others, reporting the failures in the batched response rather than failing the
+ * call as a whole.
+ *
+ * <p>
+ * When a batched call succeeds, the response is split with {@link #splitPartialResponse}, which
+ * leaves out the requests that failed with a retryable error. Only those requests are combined into
+ * a new batched request and sent again after an exponential backoff delay, so that requests which
+ * already succeeded are not resent. Once the retry limit or the total timeout of the retry settings
+ * of the {@link BatcherFactory} is reached, the response to the last attempt is split with
+ * {@link #splitResponse}, reporting the remaining failures to the callers.
+ *
+ * <p>
+ * This is public only for technical reasons, for advanced usage.
+ */
+public interface PartialFailureBatchingDescriptor<RequestT, ResponseT>
+    extends BatchingDescriptor<RequestT, ResponseT> {
+
+  /**
+   * Splits the result from a batched call into an individual setResponse or setException call on
+   * each RequestIssuer, except for the requests which failed with a retryable error. Returns the
+   * positions of these requests within the batch, in ascending order; their RequestIssuers must be
+   * left unset.
+   */
+  List<Integer> splitPartialResponse(
+      ResponseT batchResponse, List<? extends BatchedRequestIssuer<ResponseT>> batch);
+
+  /** Returns the number of times the failed requests of a batch are sent again. */
+  int getMaxPartialFailureRetries();
+}
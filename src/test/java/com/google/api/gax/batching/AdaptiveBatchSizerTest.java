@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017, Google Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.google.api.gax.batching;
+
+import com.google.api.gax.core.FakeApiClock;
+import com.google.common.truth.Truth;
+import java.util.concurrent.TimeUnit;
+import org.joda.time.Duration;
+import org.junit.Test;
+
+public class AdaptiveBatchSizerTest {
+
+  @Test
+  public void testInitialValues() {
+    FakeApiClock clock = new FakeApiClock(0);
+    AdaptiveBatchSizer batchSizer =
+        new AdaptiveBatchSizer(Duration.millis(50), 1000, Duration.millis(100), clock);
+    Truth.assertThat(batchSizer.getElementCountThreshold()).isEqualTo(1000);
+    Truth.assertThat(batchSizer.getDelay()).isEqualTo(Duration.millis(50));
+  }
+
+  @Test
+  public void testAdaptsToArrivalRateAndLatency() {
+    FakeApiClock clock = new FakeApiClock(0);
+    AdaptiveBatchSizer batchSizer =
+        new AdaptiveBatchSizer(Duration.millis(50), 1000, Duration.millis(100), clock);
+
+    // 10 elements per millisecond, with a 50ms budget to wait in.
+    batchSizer.recordElements(1000);
+    clock.setCurrentNanoTime(TimeUnit.MILLISECONDS.toNanos(100));
+    batchSizer.recordElements(0);
+    Truth.assertThat(batchSizer.getElementCountThreshold()).isEqualTo(500);
+    Truth.assertThat(batchSizer.getDelay()).isEqualTo(Duration.millis(50));
+
+    // Batches taking 30ms leave 20ms to wait in.
+    batchSizer.recordBatchLatency(Duration.millis(30));
+    Truth.assertThat(batchSizer.getElementCountThreshold()).isEqualTo(200);
+    Truth.assertThat(batchSizer.getDelay()).isEqualTo(Duration.millis(20));
+  }
+
+  @Test
+  public void testLightLoad() {
+    FakeApiClock clock = new FakeApiClock(0);
+    AdaptiveBatchSizer batchSizer =
+        new AdaptiveBatchSizer(Duration.millis(50), 1000, Duration.millis(100), clock);
+
+    batchSizer.recordElements(1);
+    clock.setCurrentNanoTime(TimeUnit.SECONDS.toNanos(1));
+    batchSizer.recordElements(1);
+    Truth.assertThat(batchSizer.getElementCountThreshold()).isEqualTo(1);
+  }
+
+  @Test
+  public void testBoundedByMaxElementCountAndDelay() {
+    FakeApiClock clock = new FakeApiClock(0);
+    AdaptiveBatchSizer batchSizer =
+        new AdaptiveBatchSizer(Duration.millis(500), 100, Duration.millis(10), clock);
+    Truth.assertThat(batchSizer.getDelay()).isEqualTo(Duration.millis(10));
+
+    batchSizer.recordElements(100000);
+    clock.setCurrentNanoTime(TimeUnit.MILLISECONDS.toNanos(100));
+    batchSizer.recordElements(0);
+    Truth.assertThat(batchSizer.getElementCountThreshold()).isEqualTo(100);
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017, Google Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.google.api.gax.batching;
+
+import com.google.api.gax.core.FakeApiClock;
+import com.google.common.truth.Truth;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.joda.time.Duration;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+public class HashedWheelTimerTest {
+
+  @Test
+  public void testTimeouts() {
+    FakeApiClock clock = new FakeApiClock(0);
+    ScheduledExecutorService executor = Mockito.mock(ScheduledExecutorService.class);
+    Mockito.doReturn(Mockito.mock(ScheduledFuture.class))
+        .when(executor)
+        .scheduleAtFixedRate(
+            Mockito.any(Runnable.class),
+            Mockito.anyLong(),
+            Mockito.anyLong(),
+            Mockito.any(TimeUnit.class));
+    HashedWheelTimer timer = new HashedWheelTimer(executor, Duration.millis(1), 4, clock);
+    final AtomicInteger runCount = new AtomicInteger();
+    Runnable task =
+        new Runnable() {
+          @Override
+          public void run() {
+            runCount.incrementAndGet();
+          }
+        };
+
+    timer.newTimeout(task, 2, TimeUnit.MILLISECONDS);
+    // Longer than a round of the wheel.
+    timer.newTimeout(task, 6, TimeUnit.MILLISECONDS);
+    timer.newTimeout(task, 3, TimeUnit.MILLISECONDS).cancel();
+    ArgumentCaptor<Runnable> tick = ArgumentCaptor.forClass(Runnable.class);
+    Mockito.verify(executor)
+        .scheduleAtFixedRate(
+            tick.capture(),
+            Mockito.eq(1000000L),
+            Mockito.eq(1000000L),
+            Mockito.eq(TimeUnit.NANOSECONDS));
+    // The cancelled timeout is no longer counted.
+    Truth.assertThat(timer.getTimeoutCount()).isEqualTo(2);
+
+    clock.setCurrentNanoTime(TimeUnit.MILLISECONDS.toNanos(1));
+    tick.getValue().run();
+    Truth.assertThat(runCount.get()).isEqualTo(0);
+
+    clock.setCurrentNanoTime(TimeUnit.MILLISECONDS.toNanos(2));
+    tick.getValue().run();
+    Truth.assertThat(runCount.get()).isEqualTo(1);
+
+    clock.setCurrentNanoTime(TimeUnit.MILLISECONDS.toNanos(5));
+    tick.getValue().run();
+    Truth.assertThat(runCount.get()).isEqualTo(1);
+    Truth.assertThat(timer.getTimeoutCount()).isEqualTo(1);
+
+    clock.setCurrentNanoTime(TimeUnit.MILLISECONDS.toNanos(6));
+    tick.getValue().run();
+    Truth.assertThat(runCount.get()).isEqualTo(2);
+    Truth.assertThat(timer.getTimeoutCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testIdleTimerStopsTicking() {
+    FakeApiClock clock = new FakeApiClock(0);
+    ScheduledExecutorService executor = Mockito.mock(ScheduledExecutorService.class);
+    ScheduledFuture<?> tickFuture = Mockito.mock(ScheduledFuture.class);
+    Mockito.doReturn(tickFuture)
+        .when(executor)
+        .scheduleAtFixedRate(
+            Mockito.any(Runnable.class),
+            Mockito.anyLong(),
+            Mockito.anyLong(),
+            Mockito.any(TimeUnit.class));
+    HashedWheelTimer timer = new HashedWheelTimer(executor, Duration.millis(10), 4, clock);
+    Runnable task = Mockito.mock(Runnable.class);
+
+    HashedWheelTimer.Timeout timeout = timer.newTimeout(task, 1, TimeUnit.SECONDS);
+    Truth.assertThat(timer.isTicking()).isTrue();
+    ArgumentCaptor<Runnable> tick = ArgumentCaptor.forClass(Runnable.class);
+    Mockito.verify(executor)
+        .scheduleAtFixedRate(
+            tick.capture(),
+            Mockito.eq(10000000L),
+            Mockito.eq(10000000L),
+            Mockito.eq(TimeUnit.NANOSECONDS));
+
+    // The tick stops at its next run once no timeout is pending, long before the cancelled
+    // timeout's deadline.
+    timeout.cancel();
+    Truth.assertThat(timer.getTimeoutCount()).isEqualTo(0);
+    clock.setCurrentNanoTime(TimeUnit.MILLISECONDS.toNanos(10));
+    tick.getValue().run();
+    Truth.assertThat(timer.isTicking()).isFalse();
+    Mockito.verify(tickFuture).cancel(false);
+
+    // A new timeout starts the tick again.
+    timer.newTimeout(task, 10, TimeUnit.MILLISECONDS);
+    Truth.assertThat(timer.isTicking()).isTrue();
+    Mockito.verify(executor, Mockito.times(2))
+        .scheduleAtFixedRate(
+            tick.capture(),
+            Mockito.anyLong(),
+            Mockito.anyLong(),
+            Mockito.any(TimeUnit.class));
+    clock.setCurrentNanoTime(TimeUnit.MILLISECONDS.toNanos(20));
+    tick.getValue().run();
+    Mockito.verify(task).run();
+    Truth.assertThat(timer.isTicking()).isFalse();
+  }
+}
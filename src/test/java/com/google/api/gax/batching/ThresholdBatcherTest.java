@@ -29,17 +29,26 @@
  */
 package com.google.api.gax.batching;
 
+import com.google.api.gax.core.ApiFuture;
+import com.google.api.gax.core.ApiFutures;
 import com.google.api.gax.core.FlowControlSettings;
 import com.google.api.gax.core.FlowController;
 import com.google.api.gax.core.FlowController.FlowControlException;
 import com.google.api.gax.core.FlowController.LimitExceededBehavior;
+import com.google.api.gax.core.SettableApiFuture;
 import com.google.api.gax.core.TrackedFlowController;
 import com.google.common.truth.Truth;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.joda.time.Duration;
 import org.junit.Rule;
 import org.junit.Test;
@@ -267,6 +276,43 @@ public class ThresholdBatcherTest {
         .isEqualTo(trackedFlowController.getBytesReleased());
   }
 
+  @Test
+  public void testFlowControlCountsTakenOnAdd() throws Exception {
+    final AtomicInteger countCalls = new AtomicInteger();
+    ElementCounter<SimpleBatch> elementCounter =
+        new ElementCounter<SimpleBatch>() {
+          @Override
+          public long count(SimpleBatch batch) {
+            countCalls.incrementAndGet();
+            return batch.getIntegers().size();
+          }
+        };
+    TrackedFlowController flowController =
+        new TrackedFlowController(
+            FlowControlSettings.newBuilder()
+                .setMaxOutstandingElementCount(10)
+                .setLimitExceededBehavior(LimitExceededBehavior.Block)
+                .build());
+    AccumulatingBatchReceiver<SimpleBatch> receiver = new AccumulatingBatchReceiver<>();
+    ThresholdBatcher<SimpleBatch> batcher =
+        createSimpleBatcherBuidler(receiver)
+            .setFlowController(
+                new BatchingFlowController<>(flowController, elementCounter, elementCounter))
+            .build();
+
+    batcher.add(SimpleBatch.fromInteger(3));
+    batcher.add(SimpleBatch.fromInteger(5));
+    batcher.add(SimpleBatch.fromInteger(7));
+    batcher.pushCurrentBatch().get();
+
+    // Each element is counted once for elements and once for bytes; the merged batch is not
+    // counted again when its resources are released.
+    Truth.assertThat(countCalls.get()).isEqualTo(6);
+    Truth.assertThat(flowController.getElementsReserved()).isEqualTo(3);
+    Truth.assertThat(flowController.getElementsReleased()).isEqualTo(3);
+    Truth.assertThat(flowController.getCallsToRelease()).isEqualTo(1);
+  }
+
   @Test
   public void testBatchingFlowControlExceptionRecovery() throws Exception {
     AccumulatingBatchReceiver<SimpleBatch> receiver = new AccumulatingBatchReceiver<>();
@@ -309,4 +355,381 @@ public class ThresholdBatcherTest {
     Truth.assertThat(trackedFlowController.getBytesReserved())
         .isEqualTo(trackedFlowController.getBytesReleased());
   }
+
+  @Test
+  public void testSynchronousReceiverFailureReleasesBatch() throws Exception {
+    ThresholdBatchReceiver<SimpleBatch> receiver =
+        new ThresholdBatchReceiver<SimpleBatch>() {
+          @Override
+          public void validateBatch(SimpleBatch message) {}
+
+          @Override
+          public ApiFuture<?> processBatch(SimpleBatch batch) {
+            throw new IllegalStateException("processBatch failed");
+          }
+        };
+    ThresholdBatcher<SimpleBatch> batcher =
+        ThresholdBatcher.<SimpleBatch>newBuilder()
+            .setThresholds(BatchingThresholds.<SimpleBatch>of(2))
+            .setExecutor(EXECUTOR)
+            .setMaxDelay(Duration.millis(10000))
+            .setReceiver(receiver)
+            .setFlowController(
+                getTrackedIntegerBatchingFlowController(
+                    2, null, LimitExceededBehavior.ThrowException))
+            .setBatchMerger(new SimpleBatchMerger())
+            .build();
+
+    batcher.add(SimpleBatch.fromInteger(3));
+    try {
+      batcher.add(SimpleBatch.fromInteger(5));
+      Truth.assertWithMessage("Failing: expected exception").that(false).isTrue();
+    } catch (IllegalStateException e) {
+    }
+
+    // The resources of both elements of the batch are released, each exactly once.
+    Truth.assertThat(trackedFlowController.getElementsReserved()).isEqualTo(2);
+    Truth.assertThat(trackedFlowController.getElementsReleased()).isEqualTo(2);
+    Truth.assertThat(trackedFlowController.getBytesReleased()).isEqualTo(8);
+    batcher.add(SimpleBatch.fromInteger(7));
+  }
+
+  @Test
+  public void testStripedBatching() throws Exception {
+    final List<SimpleBatch> batches = Collections.synchronizedList(new ArrayList<SimpleBatch>());
+    ThresholdBatchReceiver<SimpleBatch> receiver =
+        new ThresholdBatchReceiver<SimpleBatch>() {
+          @Override
+          public void validateBatch(SimpleBatch message) {}
+
+          @Override
+          public ApiFuture<?> processBatch(SimpleBatch batch) {
+            batches.add(batch);
+            return ApiFutures.<Void>immediateFuture(null);
+          }
+        };
+    final ThresholdBatcher<SimpleBatch> batcher =
+        ThresholdBatcher.<SimpleBatch>newBuilder()
+            .setThresholds(BatchingThresholds.<SimpleBatch>of(10))
+            .setExecutor(EXECUTOR)
+            .setMaxDelay(Duration.millis(10000))
+            .setReceiver(receiver)
+            .setFlowController(
+                ThresholdBatcherTest.<SimpleBatch>getDisabledBatchingFlowController())
+            .setBatchMerger(new SimpleBatchMerger())
+            .setStripeCount(4)
+            .build();
+
+    int threadCount = 8;
+    final int elementsPerThread = 1000;
+    ExecutorService publishers = Executors.newFixedThreadPool(threadCount);
+    List<Future<?>> publishFutures = new ArrayList<>();
+    for (int t = 0; t < threadCount; t++) {
+      publishFutures.add(
+          publishers.submit(
+              new Runnable() {
+                @Override
+                public void run() {
+                  for (int i = 0; i < elementsPerThread; i++) {
+                    try {
+                      batcher.add(SimpleBatch.fromInteger(1));
+                    } catch (FlowControlException e) {
+                      throw new IllegalStateException(e);
+                    }
+                  }
+                }
+              }));
+    }
+    for (Future<?> publishFuture : publishFutures) {
+      publishFuture.get();
+    }
+    publishers.shutdown();
+
+    batcher.pushCurrentBatch().get();
+    Truth.assertThat(batcher.isEmpty()).isTrue();
+
+    int total = 0;
+    synchronized (batches) {
+      for (SimpleBatch batch : batches) {
+        Truth.assertThat(batch.getIntegers().size()).isAtMost(10);
+        total += batch.getIntegers().size();
+      }
+    }
+    Truth.assertThat(total).isEqualTo(threadCount * elementsPerThread);
+  }
+
+  @Test
+  public void testAddAsyncWithEnqueueFlowControl() throws Exception {
+    AccumulatingBatchReceiver<SimpleBatch> receiver = new AccumulatingBatchReceiver<>();
+    ThresholdBatcher<SimpleBatch> batcher =
+        createSimpleBatcherBuidler(receiver)
+            .setThresholds(BatchingThresholds.<SimpleBatch>of(2))
+            .setFlowController(
+                getTrackedIntegerBatchingFlowController(2, null, LimitExceededBehavior.Enqueue))
+            .build();
+
+    ApiFuture<Void> first = batcher.addAsync(SimpleBatch.fromInteger(3));
+    ApiFuture<Void> second = batcher.addAsync(SimpleBatch.fromInteger(5));
+    Truth.assertThat(first.isDone()).isTrue();
+    Truth.assertThat(second.isDone()).isTrue();
+
+    // The first batch was pushed and its resources released when the threshold was reached,
+    // so the next elements are admitted without blocking.
+    ApiFuture<Void> third = batcher.addAsync(SimpleBatch.fromInteger(7));
+    Truth.assertThat(third.isDone()).isTrue();
+
+    batcher.pushCurrentBatch().get();
+    List<List<Integer>> expected = Arrays.asList(Arrays.asList(3, 5), Arrays.asList(7));
+    List<List<Integer>> actual = new ArrayList<>();
+    for (SimpleBatch batch : receiver.getBatches()) {
+      actual.add(batch.getIntegers());
+    }
+    Truth.assertThat(actual).isEqualTo(expected);
+  }
+
+  @Test
+  public void testAddAsyncWaitsForResources() throws Exception {
+    final SettableApiFuture<Void> batchResult = SettableApiFuture.create();
+    final List<SimpleBatch> batches = new ArrayList<>();
+    ThresholdBatchReceiver<SimpleBatch> receiver =
+        new ThresholdBatchReceiver<SimpleBatch>() {
+          @Override
+          public void validateBatch(SimpleBatch message) {}
+
+          @Override
+          public ApiFuture<?> processBatch(SimpleBatch batch) {
+            batches.add(batch);
+            return batchResult;
+          }
+        };
+    ThresholdBatcher<SimpleBatch> batcher =
+        ThresholdBatcher.<SimpleBatch>newBuilder()
+            .setThresholds(BatchingThresholds.<SimpleBatch>of(2))
+            .setExecutor(EXECUTOR)
+            .setMaxDelay(Duration.millis(10000))
+            .setReceiver(receiver)
+            .setFlowController(
+                getTrackedIntegerBatchingFlowController(2, null, LimitExceededBehavior.Enqueue))
+            .setBatchMerger(new SimpleBatchMerger())
+            .build();
+
+    batcher.addAsync(SimpleBatch.fromInteger(3));
+    batcher.addAsync(SimpleBatch.fromInteger(5));
+    ApiFuture<Void> third = batcher.addAsync(SimpleBatch.fromInteger(7));
+    Truth.assertThat(batches.size()).isEqualTo(1);
+    Truth.assertThat(third.isDone()).isFalse();
+    Truth.assertThat(batcher.isEmpty()).isTrue();
+
+    // The element is added from the executor, rather than inside the release.
+    batchResult.set(null);
+    third.get();
+    Truth.assertThat(batcher.isEmpty()).isFalse();
+  }
+
+  @Test
+  public void testFlushWaitsForOutstandingBatches() throws Exception {
+    final List<SettableApiFuture<Void>> batchResults = new ArrayList<>();
+    ThresholdBatchReceiver<SimpleBatch> receiver =
+        new ThresholdBatchReceiver<SimpleBatch>() {
+          @Override
+          public void validateBatch(SimpleBatch message) {}
+
+          @Override
+          public ApiFuture<?> processBatch(SimpleBatch batch) {
+            SettableApiFuture<Void> batchResult = SettableApiFuture.create();
+            batchResults.add(batchResult);
+            return batchResult;
+          }
+        };
+    ThresholdBatcher<SimpleBatch> batcher =
+        ThresholdBatcher.<SimpleBatch>newBuilder()
+            .setThresholds(BatchingThresholds.<SimpleBatch>of(2))
+            .setExecutor(EXECUTOR)
+            .setMaxDelay(Duration.millis(10000))
+            .setReceiver(receiver)
+            .setFlowController(
+                ThresholdBatcherTest.<SimpleBatch>getDisabledBatchingFlowController())
+            .setBatchMerger(new SimpleBatchMerger())
+            .build();
+
+    batcher.add(SimpleBatch.fromInteger(3));
+    batcher.add(SimpleBatch.fromInteger(5));
+    batcher.add(SimpleBatch.fromInteger(7));
+    Truth.assertThat(batchResults.size()).isEqualTo(1);
+
+    ApiFuture<Void> flushFuture = batcher.flush();
+    Truth.assertThat(batchResults.size()).isEqualTo(2);
+    Truth.assertThat(batcher.isEmpty()).isTrue();
+
+    batchResults.get(1).set(null);
+    Truth.assertThat(flushFuture.isDone()).isFalse();
+
+    // A failed batch still counts as processed.
+    batchResults.get(0).setException(new IllegalStateException("batch failed"));
+    Truth.assertThat(flushFuture.isDone()).isTrue();
+    flushFuture.get();
+  }
+
+  @Test
+  public void testCloseRejectsAdds() throws Exception {
+    AccumulatingBatchReceiver<SimpleBatch> receiver = new AccumulatingBatchReceiver<>();
+    ThresholdBatcher<SimpleBatch> batcher = createSimpleBatcherBuidler(receiver).build();
+    batcher.add(SimpleBatch.fromInteger(14));
+    Truth.assertThat(batcher.isClosed()).isFalse();
+
+    batcher.close().get();
+    Truth.assertThat(batcher.isClosed()).isTrue();
+    Truth.assertThat(receiver.getBatches().size()).isEqualTo(1);
+
+    ApiFuture<Void> addFuture = batcher.addAsync(SimpleBatch.fromInteger(15));
+    Truth.assertThat(addFuture.isDone()).isTrue();
+
+    thrown.expect(IllegalStateException.class);
+    batcher.add(SimpleBatch.fromInteger(16));
+  }
+
+  @Test
+  public void testMaxOutstandingBatchesHoldsBatches() throws Exception {
+    final List<SimpleBatch> batches = Collections.synchronizedList(new ArrayList<SimpleBatch>());
+    final List<SettableApiFuture<Void>> batchResults =
+        Collections.synchronizedList(new ArrayList<SettableApiFuture<Void>>());
+    ThresholdBatchReceiver<SimpleBatch> receiver =
+        new ThresholdBatchReceiver<SimpleBatch>() {
+          @Override
+          public void validateBatch(SimpleBatch message) {}
+
+          @Override
+          public ApiFuture<?> processBatch(SimpleBatch batch) {
+            SettableApiFuture<Void> batchResult = SettableApiFuture.create();
+            batches.add(batch);
+            batchResults.add(batchResult);
+            return batchResult;
+          }
+        };
+    ThresholdBatcher<SimpleBatch> batcher =
+        ThresholdBatcher.<SimpleBatch>newBuilder()
+            .setThresholds(BatchingThresholds.<SimpleBatch>of(1))
+            .setExecutor(EXECUTOR)
+            .setMaxDelay(Duration.millis(10000))
+            .setReceiver(receiver)
+            .setFlowController(
+                ThresholdBatcherTest.<SimpleBatch>getDisabledBatchingFlowController())
+            .setBatchMerger(new SimpleBatchMerger())
+            .setMaxOutstandingBatches(1)
+            .setHeldBatchLimits(BatchingThresholds.<SimpleBatch>of(3))
+            .build();
+
+    batcher.add(SimpleBatch.fromInteger(1));
+    batcher.add(SimpleBatch.fromInteger(2));
+    batcher.add(SimpleBatch.fromInteger(3));
+    Truth.assertThat(batches.size()).isEqualTo(1);
+    Truth.assertThat(batcher.isEmpty()).isFalse();
+
+    // Completing the outstanding batch sends the held one in its place.
+    batchResults.get(0).set(null);
+    for (int i = 0; i < 100 && batches.size() < 2; i++) {
+      Thread.sleep(10);
+    }
+    Truth.assertThat(batches.size()).isEqualTo(2);
+    Truth.assertThat(batches.get(1).getIntegers()).isEqualTo(Arrays.asList(2, 3));
+
+    // A held batch reaching the held batch limit is sent regardless.
+    batcher.add(SimpleBatch.fromInteger(4));
+    batcher.add(SimpleBatch.fromInteger(5));
+    Truth.assertThat(batches.size()).isEqualTo(2);
+    batcher.add(SimpleBatch.fromInteger(6));
+    Truth.assertThat(batches.size()).isEqualTo(3);
+    Truth.assertThat(batches.get(2).getIntegers()).isEqualTo(Arrays.asList(4, 5, 6));
+    Truth.assertThat(batcher.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void testFlushExecutor() throws Exception {
+    final List<Runnable> flushTasks = new ArrayList<>();
+    Executor flushExecutor =
+        new Executor() {
+          @Override
+          public void execute(Runnable task) {
+            flushTasks.add(task);
+          }
+        };
+    AccumulatingBatchReceiver<SimpleBatch> receiver = new AccumulatingBatchReceiver<>();
+    ThresholdBatcher<SimpleBatch> batcher =
+        createSimpleBatcherBuidler(receiver)
+            .setThresholds(BatchingThresholds.<SimpleBatch>of(2))
+            .setFlushExecutor(flushExecutor)
+            .build();
+
+    batcher.add(SimpleBatch.fromInteger(3));
+    batcher.add(SimpleBatch.fromInteger(5));
+    // The full batch is handed off rather than sent from the adding thread.
+    Truth.assertThat(batcher.isEmpty()).isTrue();
+    Truth.assertThat(receiver.getBatches()).isEmpty();
+    Truth.assertThat(flushTasks.size()).isEqualTo(1);
+
+    ApiFuture<Void> flushFuture = batcher.flush();
+    Truth.assertThat(flushFuture.isDone()).isFalse();
+
+    flushTasks.get(0).run();
+    Truth.assertThat(receiver.getBatches().size()).isEqualTo(1);
+    Truth.assertThat(receiver.getBatches().get(0).getIntegers()).isEqualTo(Arrays.asList(3, 5));
+    Truth.assertThat(flushFuture.isDone()).isTrue();
+  }
+
+  @Test
+  public void testOrderedBatching() throws Exception {
+    final List<SimpleBatch> batches = Collections.synchronizedList(new ArrayList<SimpleBatch>());
+    final List<SettableApiFuture<Void>> batchResults =
+        Collections.synchronizedList(new ArrayList<SettableApiFuture<Void>>());
+    ThresholdBatchReceiver<SimpleBatch> receiver =
+        new ThresholdBatchReceiver<SimpleBatch>() {
+          @Override
+          public void validateBatch(SimpleBatch message) {}
+
+          @Override
+          public ApiFuture<?> processBatch(SimpleBatch batch) {
+            SettableApiFuture<Void> batchResult = SettableApiFuture.create();
+            batches.add(batch);
+            batchResults.add(batchResult);
+            return batchResult;
+          }
+        };
+    ThresholdBatcher<SimpleBatch> batcher =
+        ThresholdBatcher.<SimpleBatch>newBuilder()
+            .setThresholds(BatchingThresholds.<SimpleBatch>of(2))
+            .setExecutor(EXECUTOR)
+            .setMaxDelay(Duration.millis(10000))
+            .setReceiver(receiver)
+            .setFlowController(
+                ThresholdBatcherTest.<SimpleBatch>getDisabledBatchingFlowController())
+            .setBatchMerger(new SimpleBatchMerger())
+            .setOrdered(true)
+            .build();
+
+    batcher.add(SimpleBatch.fromInteger(1));
+    batcher.add(SimpleBatch.fromInteger(2));
+    batcher.add(SimpleBatch.fromInteger(3));
+    batcher.add(SimpleBatch.fromInteger(4));
+    batcher.add(SimpleBatch.fromInteger(5));
+    // Even an explicit push waits for the batch in flight, and its future waits for the held
+    // batch to be processed.
+    ApiFuture<Void> pushFuture = batcher.pushCurrentBatch();
+    Truth.assertThat(batches.size()).isEqualTo(1);
+    Truth.assertThat(pushFuture.isDone()).isFalse();
+
+    ApiFuture<Void> flushFuture = batcher.flush();
+    batchResults.get(0).set(null);
+    for (int i = 0; i < 100 && batches.size() < 2; i++) {
+      Thread.sleep(10);
+    }
+    Truth.assertThat(batches.size()).isEqualTo(2);
+    Truth.assertThat(batches.get(1).getIntegers()).isEqualTo(Arrays.asList(3, 4, 5));
+    Truth.assertThat(flushFuture.isDone()).isFalse();
+    Truth.assertThat(pushFuture.isDone()).isFalse();
+
+    batchResults.get(1).set(null);
+    Truth.assertThat(pushFuture.isDone()).isTrue();
+    Truth.assertThat(flushFuture.isDone()).isTrue();
+    Truth.assertThat(batcher.isEmpty()).isTrue();
+  }
 }
@@ -29,11 +29,13 @@
  */
 package com.google.api.gax.core;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.google.api.gax.core.FlowController.LimitExceededBehavior;
 import com.google.common.util.concurrent.SettableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import org.junit.Test;
@@ -267,4 +269,69 @@ public class FlowControllerTest {
 
     flowController.reserve(maxElementCount, maxNumBytes);
   }
+
+  @Test
+  public void testReserveAsync_enqueuedUntilRelease() throws Exception {
+    FlowController flowController =
+        new FlowController(
+            FlowControlSettings.newBuilder()
+                .setMaxOutstandingElementCount(10)
+                .setMaxOutstandingRequestBytes(10)
+                .setLimitExceededBehavior(LimitExceededBehavior.Enqueue)
+                .build());
+
+    assertTrue(flowController.reserveAsync(8, 8).isDone());
+    ApiFuture<Void> first = flowController.reserveAsync(5, 1);
+    ApiFuture<Void> second = flowController.reserveAsync(1, 1);
+    // Reservations are granted in order, so the second one waits behind the first one.
+    assertFalse(first.isDone());
+    assertFalse(second.isDone());
+
+    flowController.release(4, 4);
+    assertTrue(first.isDone());
+    assertTrue(second.isDone());
+    first.get();
+    second.get();
+  }
+
+  @Test
+  public void testReserveAsync_cancelled() throws Exception {
+    FlowController flowController =
+        new FlowController(
+            FlowControlSettings.newBuilder()
+                .setMaxOutstandingElementCount(10)
+                .setMaxOutstandingRequestBytes(null)
+                .setLimitExceededBehavior(LimitExceededBehavior.Enqueue)
+                .build());
+
+    flowController.reserve(10, 0);
+    ApiFuture<Void> cancelled = flowController.reserveAsync(10, 0);
+    ApiFuture<Void> waiting = flowController.reserveAsync(10, 0);
+    cancelled.cancel(false);
+
+    flowController.release(10, 0);
+    assertTrue(waiting.isDone());
+  }
+
+  @Test
+  public void testReserveAsync_rejected() throws Exception {
+    FlowController flowController =
+        new FlowController(
+            FlowControlSettings.newBuilder()
+                .setMaxOutstandingElementCount(10)
+                .setMaxOutstandingRequestBytes(10)
+                .setLimitExceededBehavior(LimitExceededBehavior.ThrowException)
+                .build());
+
+    flowController.reserveAsync(1, 1).get();
+    try {
+      flowController.reserveAsync(10, 1).get();
+      fail("Should have failed with a FlowController.FlowControlException");
+    } catch (ExecutionException e) {
+      assertTrue(
+          e.getCause() instanceof FlowController.MaxOutstandingElementCountReachedException);
+    }
+    flowController.release(1, 1);
+    flowController.reserveAsync(10, 1).get();
+  }
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017, Google Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.google.api.gax.core;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.OAuth2Credentials;
+import com.google.common.truth.Truth;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.joda.time.Duration;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+/** Tests for {@link RefreshingCredentials}. */
+@RunWith(JUnit4.class)
+public class RefreshingCredentialsTest {
+  private static final long TOKEN_LIFETIME_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private CountingCredentials credentials;
+  private ScheduledExecutorService executor;
+  private FakeApiClock clock;
+  private RefreshingCredentials refreshingCredentials;
+
+  /** OAuth2Credentials which return a new token for each refresh, or fail if asked to. */
+  private static class CountingCredentials extends OAuth2Credentials {
+    private int refreshCount;
+    private boolean failRefresh;
+
+    CountingCredentials() {
+      super(null);
+    }
+
+    @Override
+    public AccessToken refreshAccessToken() throws IOException {
+      if (failRefresh) {
+        throw new IOException("refresh failed");
+      }
+      refreshCount++;
+      return new AccessToken(
+          "token" + refreshCount, new Date(System.currentTimeMillis() + TOKEN_LIFETIME_MILLIS));
+    }
+  }
+
+  @Before
+  public void setUp() {
+    credentials = new CountingCredentials();
+    executor = mock(ScheduledExecutorService.class);
+    clock = new FakeApiClock(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()));
+    refreshingCredentials =
+        new RefreshingCredentials(credentials, executor, Duration.standardMinutes(5), clock);
+  }
+
+  @Test
+  public void testCachesMetadata() throws Exception {
+    Map<String, List<String>> metadata = refreshingCredentials.getRequestMetadata(null);
+    Truth.assertThat(metadata.get("Authorization"))
+        .isEqualTo(Collections.singletonList("Bearer token1"));
+    Truth.assertThat(refreshingCredentials.getRequestMetadata(null)).isSameAs(metadata);
+    Truth.assertThat(credentials.refreshCount).isEqualTo(1);
+
+    // The next refresh is scheduled five minutes before the token expires.
+    ArgumentCaptor<Long> delay = ArgumentCaptor.forClass(Long.class);
+    verify(executor).schedule(any(Runnable.class), delay.capture(), eq(TimeUnit.MILLISECONDS));
+    Truth.assertThat(delay.getValue()).isAtMost(TimeUnit.MINUTES.toMillis(55));
+    Truth.assertThat(delay.getValue()).isAtLeast(TimeUnit.MINUTES.toMillis(54));
+  }
+
+  @Test
+  public void testRefreshesInBackground() throws Exception {
+    refreshingCredentials.getRequestMetadata(null);
+    ArgumentCaptor<Runnable> refresh = ArgumentCaptor.forClass(Runnable.class);
+    verify(executor).schedule(refresh.capture(), anyLong(), eq(TimeUnit.MILLISECONDS));
+
+    refresh.getValue().run();
+    Truth.assertThat(credentials.refreshCount).isEqualTo(2);
+    Truth.assertThat(refreshingCredentials.getRequestMetadata(null).get("Authorization"))
+        .isEqualTo(Collections.singletonList("Bearer token2"));
+    Truth.assertThat(credentials.refreshCount).isEqualTo(2);
+  }
+
+  @Test
+  public void testRetriesFailedBackgroundRefresh() throws Exception {
+    refreshingCredentials.getRequestMetadata(null);
+    ArgumentCaptor<Runnable> refresh = ArgumentCaptor.forClass(Runnable.class);
+    verify(executor).schedule(refresh.capture(), anyLong(), eq(TimeUnit.MILLISECONDS));
+
+    credentials.failRefresh = true;
+    refresh.getValue().run();
+    verify(executor)
+        .schedule(
+            any(Runnable.class),
+            eq(RefreshingCredentials.RETRY_DELAY_MILLIS),
+            eq(TimeUnit.MILLISECONDS));
+    // The cached token is still served.
+    Truth.assertThat(refreshingCredentials.getRequestMetadata(null).get("Authorization"))
+        .isEqualTo(Collections.singletonList("Bearer token1"));
+  }
+
+  @Test
+  public void testCloseStopsBackgroundRefresh() throws Exception {
+    ScheduledFuture<?> scheduledRefresh = mock(ScheduledFuture.class);
+    Mockito.doReturn(scheduledRefresh)
+        .when(executor)
+        .schedule(any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS));
+    refreshingCredentials.getRequestMetadata(null);
+    ArgumentCaptor<Runnable> refresh = ArgumentCaptor.forClass(Runnable.class);
+    verify(executor).schedule(refresh.capture(), anyLong(), eq(TimeUnit.MILLISECONDS));
+
+    refreshingCredentials.close();
+    verify(scheduledRefresh).cancel(false);
+
+    // A refresh which already started does not refresh the token or schedule another refresh.
+    refresh.getValue().run();
+    Truth.assertThat(credentials.refreshCount).isEqualTo(1);
+    verify(executor, times(1)).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+    // The cached token is still served.
+    Truth.assertThat(refreshingCredentials.getRequestMetadata(null).get("Authorization"))
+        .isEqualTo(Collections.singletonList("Bearer token1"));
+  }
+}
@@ -31,12 +31,34 @@ package com.google.api.gax.grpc;
 
 import com.google.api.gax.batching.PartitionKey;
 import com.google.api.gax.batching.RequestBuilder;
+import com.google.api.gax.core.ApiFuture;
+import com.google.api.gax.core.ApiFutures;
+import com.google.api.gax.core.RetrySettings;
+import com.google.common.truth.Truth;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.joda.time.Duration;
+import org.junit.Assert;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
 
 public class BatchExecutorTest {
+  private static final RetrySettings RETRY_SETTINGS =
+      RetrySettings.newBuilder()
+          .setInitialRetryDelay(Duration.millis(100))
+          .setRetryDelayMultiplier(2)
+          .setMaxRetryDelay(Duration.millis(1000))
+          .setInitialRpcTimeout(Duration.millis(1000))
+          .setRpcTimeoutMultiplier(1)
+          .setMaxRpcTimeout(Duration.millis(1000))
+          .setTotalTimeout(Duration.standardMinutes(1))
+          .build();
 
   BatchingDescriptor<List<Integer>, Integer> integerDescriptor =
       new BatchingDescriptor<List<Integer>, Integer>() {
@@ -86,7 +108,11 @@ public class BatchExecutorTest {
   @Test
   public void testValidate() {
     BatchExecutor<List<Integer>, Integer> executor =
-        new BatchExecutor<List<Integer>, Integer>(integerDescriptor, new PartitionKey(0));
+        new BatchExecutor<List<Integer>, Integer>(
+            integerDescriptor,
+            new PartitionKey(0),
+            Mockito.mock(ScheduledExecutorService.class),
+            RETRY_SETTINGS);
     List<Integer> request = new ArrayList<Integer>();
     request.add(2);
     Batch<List<Integer>, Integer> batchingContextOk =
@@ -97,11 +123,196 @@ public class BatchExecutorTest {
   @Test(expected = IllegalArgumentException.class)
   public void testValidateFailure() {
     BatchExecutor<List<Integer>, Integer> executor =
-        new BatchExecutor<List<Integer>, Integer>(integerDescriptor, new PartitionKey(0));
+        new BatchExecutor<List<Integer>, Integer>(
+            integerDescriptor,
+            new PartitionKey(0),
+            Mockito.mock(ScheduledExecutorService.class),
+            RETRY_SETTINGS);
     List<Integer> request = new ArrayList<>();
     request.add(3);
     Batch<List<Integer>, Integer> batchingContextOk =
         new Batch<>(integerDescriptor, request, null, null);
     executor.validateBatch(batchingContextOk);
   }
+
+  @Test
+  public void testMerge() {
+    Batch<List<Integer>, Integer> batch =
+        new Batch<>(integerDescriptor, Arrays.asList(1, 2), null, null);
+    Truth.assertThat(batch.getRequest()).containsExactly(1, 2).inOrder();
+
+    batch.merge(new Batch<>(integerDescriptor, Arrays.asList(3), null, null));
+    batch.merge(new Batch<>(integerDescriptor, Arrays.asList(4, 5, 6), null, null));
+
+    Truth.assertThat(batch.getRequest()).containsExactly(1, 2, 3, 4, 5, 6).inOrder();
+    Truth.assertThat(batch.getElementCount()).isEqualTo(6);
+    Truth.assertThat(batch.getByteCount()).isEqualTo(6);
+    Truth.assertThat(batch.getRequestIssuerList()).hasSize(3);
+  }
+
+  @Test
+  public void testPartialFailureRetry() throws Exception {
+    // Odd numbers fail on their first attempt and succeed when retried.
+    final List<List<Integer>> sentRequests = new ArrayList<>();
+    FutureCallable<List<Integer>, List<Integer>> flakyCallable =
+        new FutureCallable<List<Integer>, List<Integer>>() {
+          @Override
+          public ApiFuture<List<Integer>> futureCall(List<Integer> request, CallContext context) {
+            boolean retry = !sentRequests.isEmpty();
+            sentRequests.add(request);
+            List<Integer> response = new ArrayList<>();
+            for (Integer i : request) {
+              response.add(i % 2 == 1 && !retry ? -1 : i * 10);
+            }
+            return ApiFutures.immediateFuture(response);
+          }
+        };
+    PartialFailureBatchingDescriptor<List<Integer>, List<Integer>> descriptor =
+        createPartialFailureDescriptor();
+
+    UnaryCallable<List<Integer>, List<Integer>> callable = UnaryCallable.create(flakyCallable);
+    BatchedFuture<List<Integer>> f1 = BatchedFuture.create();
+    BatchedFuture<List<Integer>> f2 = BatchedFuture.create();
+    BatchedFuture<List<Integer>> f3 = BatchedFuture.create();
+    Batch<List<Integer>, List<Integer>> batch =
+        new Batch<>(descriptor, Arrays.asList(2, 4), callable, f1);
+    batch.merge(new Batch<>(descriptor, Arrays.asList(6, 7), callable, f2));
+    batch.merge(new Batch<>(descriptor, Arrays.asList(8), callable, f3));
+
+    ScheduledExecutorService retryExecutor = Mockito.mock(ScheduledExecutorService.class);
+    BatchExecutor<List<Integer>, List<Integer>> executor =
+        new BatchExecutor<>(descriptor, new PartitionKey(0), retryExecutor, RETRY_SETTINGS);
+    ApiFuture<List<Integer>> result = executor.processBatch(batch);
+
+    // The retry waits for a randomized delay of up to the initial retry delay.
+    ArgumentCaptor<Runnable> retry = ArgumentCaptor.forClass(Runnable.class);
+    ArgumentCaptor<Long> delay = ArgumentCaptor.forClass(Long.class);
+    Mockito.verify(retryExecutor)
+        .schedule(retry.capture(), delay.capture(), Mockito.eq(TimeUnit.MILLISECONDS));
+    Truth.assertThat(delay.getValue()).isAtMost(100L);
+    Truth.assertThat(sentRequests).hasSize(1);
+    Truth.assertThat(result.isDone()).isFalse();
+    Truth.assertThat(f1.get()).containsExactly(20, 40).inOrder();
+    Truth.assertThat(f2.isDone()).isFalse();
+
+    retry.getValue().run();
+    result.get();
+    // Only the request which failed is sent again.
+    Truth.assertThat(sentRequests).hasSize(2);
+    Truth.assertThat(sentRequests.get(1)).containsExactly(6, 7).inOrder();
+    Truth.assertThat(f1.get()).containsExactly(20, 40).inOrder();
+    Truth.assertThat(f2.get()).containsExactly(60, 70).inOrder();
+    Truth.assertThat(f3.get()).containsExactly(80);
+  }
+
+  @Test
+  public void testPartialFailureDescriptorThrows() throws Exception {
+    FutureCallable<List<Integer>, List<Integer>> callable =
+        new FutureCallable<List<Integer>, List<Integer>>() {
+          @Override
+          public ApiFuture<List<Integer>> futureCall(List<Integer> request, CallContext context) {
+            // Too short a response, which the descriptor fails to split.
+            return ApiFutures.<List<Integer>>immediateFuture(new ArrayList<Integer>());
+          }
+        };
+    BatchedFuture<List<Integer>> f1 = BatchedFuture.create();
+    BatchedFuture<List<Integer>> f2 = BatchedFuture.create();
+    PartialFailureBatchingDescriptor<List<Integer>, List<Integer>> descriptor =
+        createPartialFailureDescriptor();
+    Batch<List<Integer>, List<Integer>> batch =
+        new Batch<>(descriptor, Arrays.asList(2), UnaryCallable.create(callable), f1);
+    batch.merge(new Batch<>(descriptor, Arrays.asList(4), UnaryCallable.create(callable), f2));
+
+    BatchExecutor<List<Integer>, List<Integer>> executor =
+        new BatchExecutor<>(
+            descriptor,
+            new PartitionKey(0),
+            Mockito.mock(ScheduledExecutorService.class),
+            RETRY_SETTINGS);
+    ApiFuture<List<Integer>> result = executor.processBatch(batch);
+
+    // The batch and all of its requests fail, rather than never completing.
+    Truth.assertThat(result.isDone()).isTrue();
+    Truth.assertThat(f1.isDone()).isTrue();
+    Truth.assertThat(f2.isDone()).isTrue();
+    try {
+      f2.get();
+      Assert.fail("Expected the request to fail");
+    } catch (ExecutionException e) {
+      Truth.assertThat(e.getCause()).isInstanceOf(IndexOutOfBoundsException.class);
+    }
+  }
+
+  private PartialFailureBatchingDescriptor<List<Integer>, List<Integer>>
+      createPartialFailureDescriptor() {
+    return new PartialFailureBatchingDescriptor<List<Integer>, List<Integer>>() {
+      @Override
+      public PartitionKey getBatchPartitionKey(List<Integer> request) {
+        return new PartitionKey(0);
+      }
+
+      @Override
+      public RequestBuilder<List<Integer>> getRequestBuilder() {
+        return integerDescriptor.getRequestBuilder();
+      }
+
+      @Override
+      public List<Integer> splitPartialResponse(
+          List<Integer> batchResponse, List<? extends BatchedRequestIssuer<List<Integer>>> batch) {
+        List<Integer> failedPositions = new ArrayList<>();
+        int index = 0;
+        for (int i = 0; i < batch.size(); i++) {
+          List<Integer> response = getResponse(batchResponse, index, batch.get(i));
+          index += response.size();
+          if (response.contains(-1)) {
+            failedPositions.add(i);
+          } else {
+            batch.get(i).setResponse(response);
+          }
+        }
+        return failedPositions;
+      }
+
+      @Override
+      public int getMaxPartialFailureRetries() {
+        return 1;
+      }
+
+      @Override
+      public void splitResponse(
+          List<Integer> batchResponse,
+          Collection<? extends BatchedRequestIssuer<List<Integer>>> batch) {
+        int index = 0;
+        for (BatchedRequestIssuer<List<Integer>> responder : batch) {
+          List<Integer> response = getResponse(batchResponse, index, responder);
+          index += response.size();
+          responder.setResponse(response);
+        }
+      }
+
+      @Override
+      public void splitException(
+          Throwable throwable, Collection<? extends BatchedRequestIssuer<List<Integer>>> batch) {
+        for (BatchedRequestIssuer<List<Integer>> responder : batch) {
+          responder.setException(throwable);
+        }
+      }
+
+      @Override
+      public long countElements(List<Integer> request) {
+        return request.size();
+      }
+
+      @Override
+      public long countBytes(List<Integer> request) {
+        return request.size();
+      }
+
+      private List<Integer> getResponse(
+          List<Integer> batchResponse, int index, BatchedRequestIssuer<List<Integer>> issuer) {
+        return new ArrayList<>(
+            batchResponse.subList(index, index + (int) issuer.getMessageCount()));
+      }
+    };
+  }
 }
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2017, Google Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.google.api.gax.grpc;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.api.gax.grpc.InstantiatingChannelProvider.ChannelSelectionStrategy;
+import com.google.common.truth.Truth;
+import io.grpc.CallOptions;
+import io.grpc.ClientCall;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.joda.time.Duration;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+@RunWith(JUnit4.class)
+public class ChannelPoolTest {
+  private List<ManagedChannel> channels;
+  private List<ManagedChannel> shutdownChannels;
+  private ChannelPool.ChannelFactory channelFactory;
+  private MethodDescriptor<String, Integer> method;
+  private ScheduledFuture<?> resizeFuture;
+  private ScheduledFuture<?> timeoutFuture;
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public void setUp() {
+    channels = new ArrayList<>();
+    shutdownChannels = new ArrayList<>();
+    channelFactory =
+        new ChannelPool.ChannelFactory() {
+          @Override
+          public ManagedChannel createChannel() throws IOException {
+            final ManagedChannel channel = mock(ManagedChannel.class);
+            when(channel.newCall(
+                    Mockito.<MethodDescriptor<String, Integer>>any(), any(CallOptions.class)))
+                .thenReturn(mock(ClientCall.class));
+            when(channel.shutdown())
+                .thenAnswer(
+                    new Answer<ManagedChannel>() {
+                      @Override
+                      public ManagedChannel answer(InvocationOnMock invocation) {
+                        shutdownChannels.add(channel);
+                        return channel;
+                      }
+                    });
+            channels.add(channel);
+            return channel;
+          }
+        };
+    method = mock(MethodDescriptor.class);
+    resizeFuture = mock(ScheduledFuture.class);
+    timeoutFuture = mock(ScheduledFuture.class);
+  }
+
+  @Test
+  public void testRoundRobin() throws Exception {
+    ChannelPool pool = new ChannelPool(3, channelFactory, ChannelSelectionStrategy.RoundRobin);
+    Truth.assertThat(pool.getPoolSize()).isEqualTo(3);
+    for (int i = 0; i < 6; i++) {
+      pool.newCall(method, CallOptions.DEFAULT);
+    }
+    for (ManagedChannel channel : channels) {
+      verify(channel, Mockito.times(2)).newCall(method, CallOptions.DEFAULT);
+    }
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testLeastOutstandingCalls() throws Exception {
+    ChannelPool pool =
+        new ChannelPool(2, channelFactory, ChannelSelectionStrategy.LeastOutstandingCalls);
+    ClientCall.Listener<Integer> listener = mock(ClientCall.Listener.class);
+
+    ClientCall<String, Integer> first = pool.newCall(method, CallOptions.DEFAULT);
+    first.start(listener, new Metadata());
+    ClientCall<String, Integer> second = pool.newCall(method, CallOptions.DEFAULT);
+    second.start(listener, new Metadata());
+    Truth.assertThat(pool.getOutstandingCalls(0)).isEqualTo(1);
+    Truth.assertThat(pool.getOutstandingCalls(1)).isEqualTo(1);
+
+    // Close the call on the second channel; the next call must go there rather than round robin
+    // back to the first channel.
+    ClientCall<String, Integer> secondDelegate =
+        channels.get(1).newCall(method, CallOptions.DEFAULT);
+    ArgumentCaptor<ClientCall.Listener<Integer>> captor = newListenerCaptor();
+    verify(secondDelegate).start(captor.capture(), any(Metadata.class));
+    captor.getValue().onClose(Status.OK, new Metadata());
+    Truth.assertThat(pool.getOutstandingCalls(1)).isEqualTo(0);
+    verify(listener).onClose(Mockito.eq(Status.OK), any(Metadata.class));
+
+    pool.newCall(method, CallOptions.DEFAULT).start(listener, new Metadata());
+    Truth.assertThat(pool.getOutstandingCalls(0)).isEqualTo(1);
+    Truth.assertThat(pool.getOutstandingCalls(1)).isEqualTo(1);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testResize() throws Exception {
+    ScheduledExecutorService executor = createExecutor();
+    ChannelPool pool =
+        new ChannelPool(
+            1, 3, 2, channelFactory, ChannelSelectionStrategy.RoundRobin, executor, null);
+    ArgumentCaptor<Runnable> resize = ArgumentCaptor.forClass(Runnable.class);
+    verify(executor)
+        .scheduleAtFixedRate(
+            resize.capture(),
+            Mockito.eq(ChannelPool.RESIZE_INTERVAL_NANOS),
+            Mockito.eq(ChannelPool.RESIZE_INTERVAL_NANOS),
+            Mockito.eq(TimeUnit.NANOSECONDS));
+    ClientCall.Listener<Integer> listener = mock(ClientCall.Listener.class);
+    Truth.assertThat(pool.getPoolSize()).isEqualTo(1);
+
+    for (int i = 0; i < 5; i++) {
+      pool.newCall(method, CallOptions.DEFAULT).start(listener, new Metadata());
+    }
+    Truth.assertThat(pool.getPoolSize()).isEqualTo(1);
+
+    // Five outstanding calls need three channels of two calls each.
+    resize.getValue().run();
+    Truth.assertThat(pool.getPoolSize()).isEqualTo(3);
+
+    // Once the calls complete, the pool shrinks by one channel per resize, without any new calls.
+    // The retired channels have no outstanding calls, and are shut down at once.
+    ClientCall<String, Integer> delegate = channels.get(0).newCall(method, CallOptions.DEFAULT);
+    ArgumentCaptor<ClientCall.Listener<Integer>> captor = newListenerCaptor();
+    verify(delegate, Mockito.times(5)).start(captor.capture(), any(Metadata.class));
+    for (ClientCall.Listener<Integer> callListener : captor.getAllValues()) {
+      callListener.onClose(Status.OK, new Metadata());
+    }
+    resize.getValue().run();
+    Truth.assertThat(pool.getPoolSize()).isEqualTo(2);
+    Truth.assertThat(pool.getRetiredChannelCount()).isEqualTo(0);
+    Truth.assertThat(shutdownChannels).hasSize(1);
+
+    resize.getValue().run();
+    Truth.assertThat(pool.getPoolSize()).isEqualTo(1);
+    Truth.assertThat(shutdownChannels).hasSize(2);
+  }
+
+  @Test
+  public void testRetiredChannelShutsDownOnceCallsComplete() throws Exception {
+    ScheduledExecutorService executor = createExecutor();
+    ChannelPool pool =
+        new ChannelPool(
+            1,
+            2,
+            2,
+            channelFactory,
+            ChannelSelectionStrategy.LeastOutstandingCalls,
+            executor,
+            null);
+
+    // Calls count as outstanding from when they are created, even before they start.
+    ClientCall<String, Integer> first = pool.newCall(method, CallOptions.DEFAULT);
+    ClientCall<String, Integer> second = pool.newCall(method, CallOptions.DEFAULT);
+    ClientCall<String, Integer> third = pool.newCall(method, CallOptions.DEFAULT);
+    pool.resize();
+    Truth.assertThat(pool.getPoolSize()).isEqualTo(2);
+    ClientCall<String, Integer> fourth = pool.newCall(method, CallOptions.DEFAULT);
+    Truth.assertThat(pool.getOutstandingCalls(1)).isEqualTo(1);
+
+    // Cancelling calls before they start releases them.
+    first.cancel("Cancelled", null);
+    second.cancel("Cancelled", null);
+    pool.resize();
+    Truth.assertThat(pool.getPoolSize()).isEqualTo(1);
+    Truth.assertThat(pool.getRetiredChannelCount()).isEqualTo(1);
+    Truth.assertThat(shutdownChannels).isEmpty();
+
+    // The retired channel is shut down once its last call completes.
+    boolean firstChannelRetired = pool.getChannels().get(0) != channels.get(0);
+    (firstChannelRetired ? third : fourth).cancel("Cancelled", null);
+    Truth.assertThat(pool.getRetiredChannelCount()).isEqualTo(0);
+    Truth.assertThat(shutdownChannels).containsExactly(channels.get(firstChannelRetired ? 0 : 1));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testResizeWarmsUpNewChannels() throws Exception {
+    ScheduledExecutorService executor = createWarmUpExecutor();
+    ChannelPool pool =
+        new ChannelPool(
+            1,
+            3,
+            1,
+            channelFactory,
+            ChannelSelectionStrategy.RoundRobin,
+            executor,
+            Duration.standardSeconds(10));
+
+    pool.newCall(method, CallOptions.DEFAULT);
+    pool.newCall(method, CallOptions.DEFAULT);
+    pool.resize();
+
+    // The new channel is warmed up before it joins the pool, without blocking the resize.
+    verify(channels.get(1))
+        .newCall(Mockito.eq(ChannelWarmer.HEALTH_CHECK_METHOD), any(CallOptions.class));
+    ClientCall<byte[], byte[]> warmUpCall =
+        channels.get(1).newCall(ChannelWarmer.HEALTH_CHECK_METHOD, CallOptions.DEFAULT);
+    ArgumentCaptor<ClientCall.Listener<byte[]>> captor =
+        ArgumentCaptor.forClass(
+            (Class<ClientCall.Listener<byte[]>>) (Class<?>) ClientCall.Listener.class);
+    verify(warmUpCall).start(captor.capture(), any(Metadata.class));
+    Truth.assertThat(pool.getPoolSize()).isEqualTo(1);
+
+    // A resize during the warm-up counts the pending channel, and only adds the missing one.
+    pool.newCall(method, CallOptions.DEFAULT);
+    pool.resize();
+    Truth.assertThat(channels).hasSize(3);
+    Truth.assertThat(pool.getPoolSize()).isEqualTo(1);
+
+    captor.getValue().onClose(Status.UNIMPLEMENTED, new Metadata());
+    Truth.assertThat(pool.getPoolSize()).isEqualTo(2);
+    verify(timeoutFuture).cancel(false);
+  }
+
+  @Test
+  public void testResizeAddsChannelsWhenWarmUpTimesOut() throws Exception {
+    ScheduledExecutorService executor = createWarmUpExecutor();
+    ChannelPool pool =
+        new ChannelPool(
+            1,
+            3,
+            1,
+            channelFactory,
+            ChannelSelectionStrategy.RoundRobin,
+            executor,
+            Duration.millis(1));
+
+    pool.newCall(method, CallOptions.DEFAULT);
+    pool.newCall(method, CallOptions.DEFAULT);
+    pool.resize();
+    Truth.assertThat(pool.getPoolSize()).isEqualTo(1);
+
+    // The warm-up call never completes, so the channel joins the pool when the timeout expires.
+    ArgumentCaptor<Runnable> timeout = ArgumentCaptor.forClass(Runnable.class);
+    verify(executor)
+        .schedule(timeout.capture(), Mockito.eq(1L), Mockito.eq(TimeUnit.MILLISECONDS));
+    timeout.getValue().run();
+    Truth.assertThat(pool.getPoolSize()).isEqualTo(2);
+
+    // A channel still warming up when the pool is shut down is shut down instead of added.
+    pool.newCall(method, CallOptions.DEFAULT);
+    pool.resize();
+    pool.shutdown();
+    verify(executor, Mockito.times(2))
+        .schedule(timeout.capture(), Mockito.eq(1L), Mockito.eq(TimeUnit.MILLISECONDS));
+    timeout.getValue().run();
+    Truth.assertThat(channels).hasSize(3);
+    Truth.assertThat(shutdownChannels).containsExactlyElementsIn(channels);
+  }
+
+  @Test
+  public void testShutdownStopsResizing() throws Exception {
+    ScheduledExecutorService executor = createExecutor();
+    ChannelPool pool =
+        new ChannelPool(
+            1, 2, 2, channelFactory, ChannelSelectionStrategy.RoundRobin, executor, null);
+    pool.shutdown();
+    verify(resizeFuture).cancel(false);
+  }
+
+  @Test
+  public void testShutdown() throws Exception {
+    ChannelPool pool = new ChannelPool(2, channelFactory, ChannelSelectionStrategy.RoundRobin);
+    pool.shutdown();
+    for (ManagedChannel channel : channels) {
+      verify(channel).shutdown();
+      when(channel.isShutdown()).thenReturn(true);
+    }
+    Truth.assertThat(pool.isShutdown()).isTrue();
+  }
+
+  private ScheduledExecutorService createExecutor() {
+    ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+    Mockito.doReturn(resizeFuture)
+        .when(executor)
+        .scheduleAtFixedRate(
+            any(Runnable.class), Mockito.anyLong(), Mockito.anyLong(), any(TimeUnit.class));
+    return executor;
+  }
+
+  // Runs the warm-up calls at once, and schedules the warm-up timeouts without running them.
+  private ScheduledExecutorService createWarmUpExecutor() {
+    ScheduledExecutorService executor = createExecutor();
+    Mockito.doAnswer(
+            new Answer<Void>() {
+              @Override
+              public Void answer(InvocationOnMock invocation) {
+                ((Runnable) invocation.getArguments()[0]).run();
+                return null;
+              }
+            })
+        .when(executor)
+        .execute(any(Runnable.class));
+    Mockito.doReturn(timeoutFuture)
+        .when(executor)
+        .schedule(any(Runnable.class), Mockito.anyLong(), any(TimeUnit.class));
+    return executor;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static ArgumentCaptor<ClientCall.Listener<Integer>> newListenerCaptor() {
+    return ArgumentCaptor.forClass(
+        (Class<ClientCall.Listener<Integer>>) (Class<?>) ClientCall.Listener.class);
+  }
+}
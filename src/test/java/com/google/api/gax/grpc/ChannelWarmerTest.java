@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017, Google Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.google.api.gax.grpc;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.api.gax.core.ApiFuture;
+import com.google.common.truth.Truth;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import java.util.Arrays;
+import org.joda.time.Duration;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+@RunWith(JUnit4.class)
+public class ChannelWarmerTest {
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testWarmUp() {
+    Channel channel = mock(Channel.class);
+    ClientCall<byte[], byte[]> call = mock(ClientCall.class);
+    when(channel.newCall(Mockito.eq(ChannelWarmer.HEALTH_CHECK_METHOD), any(CallOptions.class)))
+        .thenReturn(call);
+    doAnswer(
+            new Answer<Void>() {
+              @Override
+              public Void answer(InvocationOnMock invocation) {
+                ClientCall.Listener<byte[]> listener =
+                    (ClientCall.Listener<byte[]>) invocation.getArguments()[0];
+                listener.onClose(Status.UNIMPLEMENTED, new Metadata());
+                return null;
+              }
+            })
+        .when(call)
+        .start(any(ClientCall.Listener.class), any(Metadata.class));
+
+    long startMillis = System.currentTimeMillis();
+    ChannelWarmer.warmUp(
+        Arrays.asList(channel, channel),
+        Duration.standardMinutes(1),
+        MoreExecutors.directExecutor());
+    Truth.assertThat(System.currentTimeMillis() - startMillis).isLessThan(30000L);
+    verify(call, Mockito.times(2)).sendMessage(any(byte[].class));
+    verify(call, Mockito.times(2)).halfClose();
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testWarmUpTimeout() {
+    Channel channel = mock(Channel.class);
+    ClientCall<byte[], byte[]> call = mock(ClientCall.class);
+    when(channel.newCall(Mockito.eq(ChannelWarmer.HEALTH_CHECK_METHOD), any(CallOptions.class)))
+        .thenReturn(call);
+
+    // The call never completes, so the warm-up returns when the timeout expires.
+    ChannelWarmer.warmUp(
+        Arrays.asList(channel), Duration.millis(10), MoreExecutors.directExecutor());
+    verify(call).halfClose();
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testStartWarmUp() throws Exception {
+    Channel channel = mock(Channel.class);
+    ClientCall<byte[], byte[]> call = mock(ClientCall.class);
+    when(channel.newCall(Mockito.eq(ChannelWarmer.HEALTH_CHECK_METHOD), any(CallOptions.class)))
+        .thenReturn(call);
+
+    ApiFuture<Void> warmUpFuture =
+        ChannelWarmer.startWarmUp(
+            Arrays.asList(channel), Duration.standardMinutes(1), MoreExecutors.directExecutor());
+    ArgumentCaptor<ClientCall.Listener<byte[]>> captor =
+        ArgumentCaptor.forClass(
+            (Class<ClientCall.Listener<byte[]>>) (Class<?>) ClientCall.Listener.class);
+    verify(call).start(captor.capture(), any(Metadata.class));
+    Truth.assertThat(warmUpFuture.isDone()).isFalse();
+
+    captor.getValue().onClose(Status.UNIMPLEMENTED, new Metadata());
+    Truth.assertThat(warmUpFuture.isDone()).isTrue();
+    warmUpFuture.get();
+  }
+}
@@ -36,6 +36,8 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
 import io.grpc.CallOptions;
 import io.grpc.Channel;
 import io.grpc.ClientCall;
@@ -91,4 +93,27 @@ public class HeaderInterceptorTest {
     verify(call).start(same(listener), captor.capture());
     assertEquals(data, captor.getValue().get(headerKey));
   }
+
+  @Test
+  public void testInterceptorAdditionalHeaders() {
+    final Metadata.Key<String> headerKey =
+        Metadata.Key.of("x-goog-api-client", Metadata.ASCII_STRING_MARSHALLER);
+    final Metadata.Key<String> additionalKey =
+        Metadata.Key.of("x-goog-request-params", Metadata.ASCII_STRING_MARSHALLER);
+    HeaderInterceptor interceptor =
+        new HeaderInterceptor("abcd", ImmutableMap.of("x-goog-request-params", "name=foo"));
+    Channel intercepted = ClientInterceptors.intercept(channel, interceptor);
+    @SuppressWarnings("unchecked")
+    ClientCall.Listener<Integer> listener = mock(ClientCall.Listener.class);
+    // Each call gets its own copy of the precomputed headers.
+    intercepted.newCall(method, CallOptions.DEFAULT).start(listener, new Metadata());
+    intercepted.newCall(method, CallOptions.DEFAULT).start(listener, new Metadata());
+    ArgumentCaptor<Metadata> captor = ArgumentCaptor.forClass(Metadata.class);
+    verify(call, Mockito.times(2)).start(same(listener), captor.capture());
+    for (Metadata headers : captor.getAllValues()) {
+      assertEquals("abcd", headers.get(headerKey));
+      assertEquals("name=foo", headers.get(additionalKey));
+      assertEquals(1, Iterables.size(headers.getAll(headerKey)));
+    }
+  }
 }
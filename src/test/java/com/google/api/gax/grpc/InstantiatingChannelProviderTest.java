@@ -31,11 +31,28 @@ package com.google.api.gax.grpc;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 
+import com.google.api.gax.core.FixedCredentialsProvider;
+import com.google.api.gax.core.RefreshingCredentials;
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.OAuth2Credentials;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.ManagedChannel;
+import java.util.Date;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
+import org.joda.time.Duration;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
 
 @RunWith(JUnit4.class)
 public class InstantiatingChannelProviderTest {
@@ -60,6 +77,87 @@ public class InstantiatingChannelProviderTest {
     InstantiatingChannelProvider.newBuilder().setEndpoint("localhost:abcd");
   }
 
+  @Test
+  public void testPoolSize() {
+    InstantiatingChannelProvider.Builder builder = InstantiatingChannelProvider.newBuilder();
+    assertEquals(1, builder.getPoolSize());
+
+    InstantiatingChannelProvider provider =
+        builder
+            .setPoolSize(4)
+            .setChannelSelectionStrategy(
+                InstantiatingChannelProvider.ChannelSelectionStrategy.LeastOutstandingCalls)
+            .build();
+    assertEquals(4, provider.toBuilder().getPoolSize());
+    assertEquals(
+        InstantiatingChannelProvider.ChannelSelectionStrategy.LeastOutstandingCalls,
+        provider.getChannelSelectionStrategy());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPoolSizeNotPositive() {
+    InstantiatingChannelProvider.newBuilder().setPoolSize(0);
+  }
+
+  @Test
+  public void testMaxPoolSize() {
+    InstantiatingChannelProvider provider =
+        InstantiatingChannelProvider.newBuilder().setPoolSize(2).build();
+    assertEquals(2, provider.getMaxPoolSize());
+
+    provider = provider.toBuilder().setMaxPoolSize(8).build();
+    assertEquals(2, provider.getPoolSize());
+    assertEquals(8, provider.getMaxPoolSize());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMaxPoolSizeBelowPoolSize() {
+    InstantiatingChannelProvider.newBuilder().setPoolSize(4).setMaxPoolSize(2).build();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCredentialsRefreshMarginRequiresScheduledExecutor() throws Exception {
+    InstantiatingChannelProvider.newBuilder()
+        .setEndpoint("localhost:8080")
+        .setCredentialsProvider(
+            FixedCredentialsProvider.create(new OAuth2Credentials(new AccessToken("token", null))))
+        .setCredentialsRefreshMargin(Duration.standardMinutes(5))
+        .build()
+        .getChannel(MoreExecutors.directExecutor());
+  }
+
+  @Test
+  public void testShutdownStopsCredentialsRefresh() throws Exception {
+    ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+    ScheduledFuture<?> scheduledRefresh = mock(ScheduledFuture.class);
+    Mockito.doReturn(scheduledRefresh)
+        .when(executor)
+        .schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+    AccessToken accessToken =
+        new AccessToken("token", new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)));
+    RefreshingCredentials credentials =
+        new RefreshingCredentials(
+            new OAuth2Credentials(accessToken), executor, Duration.standardMinutes(5));
+    credentials.getRequestMetadata(null);
+
+    ManagedChannel delegate = mock(ManagedChannel.class);
+    ManagedChannel channel = new RefreshingCredentialsChannel(delegate, credentials);
+    assertEquals(channel, channel.shutdown());
+    verify(scheduledRefresh).cancel(false);
+    verify(delegate).shutdown();
+  }
+
+  @Test
+  public void testHeaders() {
+    InstantiatingChannelProvider provider =
+        InstantiatingChannelProvider.newBuilder()
+            .setHeaders(ImmutableMap.of("x-goog-request-params", "name=foo"))
+            .build();
+    assertEquals(
+        ImmutableMap.of("x-goog-request-params", "name=foo"),
+        provider.toBuilder().build().getHeaders());
+  }
+
   @Test
   public void testServiceHeaderDefault() {
     InstantiatingChannelProvider provider = InstantiatingChannelProvider.newBuilder().build();
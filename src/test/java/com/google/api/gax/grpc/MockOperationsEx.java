@@ -29,7 +29,9 @@
  */
 package com.google.api.gax.grpc;
 
+import com.google.api.gax.core.ApiFuture;
 import com.google.api.gax.testing.MockGrpcService;
+import com.google.longrunning.Operation;
 import com.google.protobuf.GeneratedMessageV3;
 import io.grpc.ServerServiceDefinition;
 import java.util.List;
@@ -60,6 +62,10 @@ public class MockOperationsEx implements MockGrpcService {
     serviceImpl.addGetOperationResponse(response);
   }
 
+  public void addDeferredResponse(ApiFuture<Operation> response) {
+    serviceImpl.addDeferredGetOperationResponse(response);
+  }
+
   @Override
   public void addException(Exception error) {
     serviceImpl.addGetOperationError(error);
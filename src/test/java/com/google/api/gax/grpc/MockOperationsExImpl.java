@@ -29,6 +29,9 @@
  */
 package com.google.api.gax.grpc;
 
+import com.google.api.gax.core.ApiFuture;
+import com.google.api.gax.core.ApiFutureCallback;
+import com.google.api.gax.core.ApiFutures;
 import com.google.longrunning.CancelOperationRequest;
 import com.google.longrunning.DeleteOperationRequest;
 import com.google.longrunning.GetOperationRequest;
@@ -65,6 +68,11 @@ public class MockOperationsExImpl extends OperationsImplBase {
     this.getOperationResponses.add(response);
   }
 
+  /** Adds a response which is sent once the given future completes. */
+  public void addDeferredGetOperationResponse(ApiFuture<Operation> response) {
+    this.getOperationResponses.add(response);
+  }
+
   public void addGetOperationError(Throwable error) {
     this.getOperationResponses.add(error);
   }
@@ -75,15 +83,35 @@ public class MockOperationsExImpl extends OperationsImplBase {
   }
 
   @Override
+  @SuppressWarnings("unchecked")
   public void getOperation(
-      GetOperationRequest request, StreamObserver<Operation> responseObserver) {
-    requests.add(request);
-    Object response = getOperationResponses.remove();
+      GetOperationRequest request, final StreamObserver<Operation> responseObserver) {
+    Object response;
+    // Deferred responses let several calls be outstanding at the same time.
+    synchronized (requests) {
+      requests.add(request);
+      response = getOperationResponses.remove();
+    }
     if (response instanceof Throwable) {
       responseObserver.onError((Throwable) response);
     } else if (response instanceof GeneratedMessageV3) {
       responseObserver.onNext((Operation) response);
       responseObserver.onCompleted();
+    } else if (response instanceof ApiFuture) {
+      ApiFutures.addCallback(
+          (ApiFuture<Operation>) response,
+          new ApiFutureCallback<Operation>() {
+            @Override
+            public void onSuccess(Operation operation) {
+              responseObserver.onNext(operation);
+              responseObserver.onCompleted();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+              responseObserver.onError(t);
+            }
+          });
     }
   }
 
@@ -29,11 +29,17 @@
  */
 package com.google.api.gax.grpc;
 
+import com.google.api.gax.core.ApiFutures;
+import com.google.api.gax.core.FakeApiClock;
+import com.google.api.gax.core.NanoClock;
+import com.google.api.gax.core.RetrySettings;
 import com.google.api.gax.core.SettableApiFuture;
+import com.google.api.gax.retrying.ExponentialRetryAlgorithm;
 import com.google.api.gax.testing.MockGrpcService;
 import com.google.api.gax.testing.MockServiceHelper;
 import com.google.common.truth.Truth;
 import com.google.longrunning.CancelOperationRequest;
+import com.google.longrunning.GetOperationRequest;
 import com.google.longrunning.Operation;
 import com.google.longrunning.OperationsClient;
 import com.google.longrunning.OperationsSettings;
@@ -44,10 +50,12 @@ import com.google.type.Money;
 import io.grpc.Status;
 import io.grpc.Status.Code;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CancellationException;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
@@ -288,6 +296,100 @@ public class OperationFutureTest {
     opFuture.awaitAsyncCompletion(3, TimeUnit.SECONDS);
   }
 
+  @Test
+  public void testOperationDoneWithBackoff() throws Exception {
+    Color expectedResult = Color.getDefaultInstance();
+    String opName = "testOperationDoneWithBackoff";
+
+    Operation operationNotDone = Operation.newBuilder().setName(opName).setDone(false).build();
+    mockOperations.addResponse(operationNotDone.toBuilder().build());
+    mockOperations.addResponse(operationNotDone.toBuilder().build());
+    mockOperations.addResponse(
+        Operation.newBuilder()
+            .setName(opName)
+            .setDone(true)
+            .setResponse(Any.pack(expectedResult))
+            .build());
+
+    SettableApiFuture<Operation> startOperationFuture = SettableApiFuture.create();
+    OperationFuture<Color> opFuture =
+        OperationFuture.create(
+            operationsClient,
+            startOperationFuture,
+            executor,
+            Color.class,
+            new ExponentialRetryAlgorithm(
+                pollingSettings(Duration.standardMinutes(1)), NanoClock.getDefaultClock()));
+
+    startOperationFuture.set(operationNotDone);
+
+    Truth.assertThat(opFuture.get(3, TimeUnit.SECONDS)).isEqualTo(expectedResult);
+    Truth.assertThat(mockOperations.getRequests()).hasSize(3);
+    opFuture.awaitAsyncCompletion(3, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testFirstPollAfterInitialRetryDelay() throws Exception {
+    Color expectedResult = Color.getDefaultInstance();
+    String opName = "testFirstPollAfterInitialRetryDelay";
+    mockOperations.addResponse(
+        Operation.newBuilder()
+            .setName(opName)
+            .setDone(true)
+            .setResponse(Any.pack(expectedResult))
+            .build());
+    RetrySettings pollingSettings =
+        pollingSettings(Duration.standardMinutes(1))
+            .toBuilder()
+            .setInitialRetryDelay(Duration.millis(200))
+            .setMaxRetryDelay(Duration.millis(200))
+            .build();
+
+    SettableApiFuture<Operation> startOperationFuture = SettableApiFuture.create();
+    OperationFuture<Color> opFuture =
+        OperationFuture.create(
+            operationsClient,
+            startOperationFuture,
+            executor,
+            Color.class,
+            new ExponentialRetryAlgorithm(pollingSettings, NanoClock.getDefaultClock()));
+
+    long startNanos = System.nanoTime();
+    startOperationFuture.set(Operation.newBuilder().setName(opName).setDone(false).build());
+    Truth.assertThat(opFuture.get(3, TimeUnit.SECONDS)).isEqualTo(expectedResult);
+    // The first poll is not randomized below the initial retry delay.
+    Truth.assertThat(System.nanoTime() - startNanos).isAtLeast(TimeUnit.MILLISECONDS.toNanos(200));
+    opFuture.awaitAsyncCompletion(3, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testPollingTimeout() throws Exception {
+    FakeApiClock clock = new FakeApiClock(0);
+    SettableApiFuture<Operation> startOperationFuture = SettableApiFuture.create();
+    OperationFuture<Color> opFuture =
+        OperationFuture.create(
+            operationsClient,
+            startOperationFuture,
+            executor,
+            Color.class,
+            new ExponentialRetryAlgorithm(pollingSettings(Duration.standardMinutes(1)), clock));
+
+    clock.setCurrentNanoTime(TimeUnit.MINUTES.toNanos(2));
+    startOperationFuture.set(
+        Operation.newBuilder().setName("testPollingTimeout").setDone(false).build());
+
+    ApiException gotException = null;
+    try {
+      opFuture.get();
+    } catch (ExecutionException e) {
+      gotException = (ApiException) e.getCause();
+    }
+    Truth.assertThat(gotException).isNotNull();
+    Truth.assertThat(gotException.getStatusCode()).isEqualTo(Code.DEADLINE_EXCEEDED);
+    Truth.assertThat(mockOperations.getRequests()).isEmpty();
+    opFuture.awaitAsyncCompletion(3, TimeUnit.SECONDS);
+  }
+
   @Test
   public void testCancelImmediately() throws Exception {
     SettableApiFuture<Operation> startOperationFuture = SettableApiFuture.create();
@@ -306,24 +408,26 @@ public class OperationFutureTest {
     Truth.assertThat(gotException).isNotNull();
     Truth.assertThat(opFuture.isDone()).isTrue();
     Truth.assertThat(opFuture.isCancelled()).isTrue();
+    Truth.assertThat(startOperationFuture.isCancelled()).isTrue();
 
     opFuture.awaitAsyncCompletion(3, TimeUnit.SECONDS);
   }
 
-  private static class LatchCountDownWaiter extends OperationFuture.Waiter {
-    private final CountDownLatch waitStartedLatch;
-    private final CountDownLatch endWaitLatch;
-
-    public LatchCountDownWaiter(CountDownLatch waitStartedLatch, CountDownLatch endWaitLatch) {
-      this.waitStartedLatch = waitStartedLatch;
-      this.endWaitLatch = endWaitLatch;
-    }
+  @Test
+  public void testCancelImmediatelyWithoutInterrupt() throws Exception {
+    SettableApiFuture<Operation> startOperationFuture = SettableApiFuture.create();
+    OperationFuture<Color> opFuture =
+        OperationFuture.create(operationsClient, startOperationFuture, executor, Color.class);
 
-    public void wait(Duration duration) throws InterruptedException {
-      System.err.println("LatchCountDownWaiter wait");
-      waitStartedLatch.countDown();
-      endWaitLatch.await();
-    }
+    Truth.assertThat(opFuture.cancel(false)).isTrue();
+    Truth.assertThat(opFuture.isCancelled()).isTrue();
+    // The call which starts the operation is left running, and the operation is not cancelled on
+    // the server once it starts.
+    Truth.assertThat(startOperationFuture.isCancelled()).isFalse();
+    startOperationFuture.set(
+        Operation.newBuilder().setName("testCancelImmediatelyWithoutInterrupt").build());
+    opFuture.awaitAsyncCompletion(3, TimeUnit.SECONDS);
+    Truth.assertThat(mockOperations.getRequests()).isEmpty();
   }
 
   @Test
@@ -331,24 +435,20 @@ public class OperationFutureTest {
     String opName = "testCancelDuringWait";
     Operation firstOperationResult = Operation.newBuilder().setName(opName).setDone(false).build();
 
-    CountDownLatch waitStartedLatch = new CountDownLatch(1);
-    CountDownLatch foreverLatch = new CountDownLatch(1);
-
     SettableApiFuture<Operation> startOperationFuture = SettableApiFuture.create();
-    OperationFuture.Waiter waiter = new LatchCountDownWaiter(waitStartedLatch, foreverLatch);
     OperationFuture<Color> opFuture =
         OperationFuture.create(
             operationsClient,
             startOperationFuture,
             executor,
             Color.class,
-            Duration.millis(0),
-            waiter);
+            Duration.standardHours(1));
 
     Truth.assertThat(opFuture.isDone()).isFalse();
-    CancellationHelpers.cancelInThreadAfterLatchCountDown(opFuture, waitStartedLatch);
 
+    // The first poll is now scheduled far in the future.
     startOperationFuture.set(firstOperationResult);
+    Truth.assertThat(opFuture.cancel(true)).isTrue();
 
     CancellationException gotException = null;
     try {
@@ -363,8 +463,127 @@ public class OperationFutureTest {
     opFuture.awaitAsyncCompletion(3, TimeUnit.SECONDS);
 
     List<GeneratedMessageV3> requestsIssued = mockOperations.getRequests();
-    Truth.assertThat(requestsIssued.get(requestsIssued.size() - 1))
-        .isInstanceOf(CancelOperationRequest.class);
+    Truth.assertThat(requestsIssued).hasSize(1);
+    Truth.assertThat(requestsIssued.get(0)).isInstanceOf(CancelOperationRequest.class);
+  }
+
+  @Test
+  public void testManyOperationsOnSingleThread() throws Exception {
+    int operationCount = 100;
+    Color expectedResult = Color.getDefaultInstance();
+    List<SettableApiFuture<Operation>> startOperationFutures = new ArrayList<>();
+    List<OperationFuture<Color>> opFutures = new ArrayList<>();
+    for (int i = 0; i < operationCount; i++) {
+      String opName = "testManyOperationsOnSingleThread" + i;
+      mockOperations.addResponse(
+          Operation.newBuilder()
+              .setName(opName)
+              .setDone(true)
+              .setResponse(Any.pack(expectedResult))
+              .build());
+      SettableApiFuture<Operation> startOperationFuture = SettableApiFuture.create();
+      startOperationFutures.add(startOperationFuture);
+      opFutures.add(
+          OperationFuture.create(
+              operationsClient,
+              startOperationFuture,
+              executor,
+              Color.class,
+              Duration.millis(10)));
+    }
+    // All operations are pending at the same time on an executor with a single thread.
+    for (int i = 0; i < operationCount; i++) {
+      startOperationFutures
+          .get(i)
+          .set(
+              Operation.newBuilder()
+                  .setName("testManyOperationsOnSingleThread" + i)
+                  .setDone(false)
+                  .build());
+    }
+    for (OperationFuture<Color> opFuture : opFutures) {
+      Truth.assertThat(opFuture.get(3, TimeUnit.SECONDS)).isEqualTo(expectedResult);
+    }
+  }
+
+  @Test
+  public void testSharedPoller() throws Exception {
+    int operationCount = 10;
+    Color expectedResult = Color.getDefaultInstance();
+    OperationPoller poller =
+        new OperationPoller(operationsClient, executor, Duration.millis(5), 2);
+    List<SettableApiFuture<Operation>> startOperationFutures = new ArrayList<>();
+    List<OperationFuture<Color>> opFutures = new ArrayList<>();
+    for (int i = 0; i < operationCount; i++) {
+      mockOperations.addResponse(
+          Operation.newBuilder()
+              .setName("testSharedPoller")
+              .setDone(true)
+              .setResponse(Any.pack(expectedResult))
+              .build());
+      SettableApiFuture<Operation> startOperationFuture = SettableApiFuture.create();
+      startOperationFutures.add(startOperationFuture);
+      opFutures.add(
+          OperationFuture.create(poller, startOperationFuture, Color.class, Duration.millis(50)));
+    }
+    // All futures track the same operation, so their polls are coalesced into a single call.
+    for (SettableApiFuture<Operation> startOperationFuture : startOperationFutures) {
+      startOperationFuture.set(
+          Operation.newBuilder().setName("testSharedPoller").setDone(false).build());
+    }
+    for (OperationFuture<Color> opFuture : opFutures) {
+      Truth.assertThat(opFuture.get(3, TimeUnit.SECONDS)).isEqualTo(expectedResult);
+    }
+    Truth.assertThat(mockOperations.getRequests()).hasSize(1);
+    Truth.assertThat(poller.getPendingPollCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testSharedPollerWithDistinctOperations() throws Exception {
+    int operationCount = 3;
+    int futuresPerOperation = 3;
+    Color expectedResult = Color.getDefaultInstance();
+    OperationPoller poller =
+        new OperationPoller(operationsClient, executor, Duration.millis(5), 2);
+    List<SettableApiFuture<Operation>> responses = new ArrayList<>();
+    for (int i = 0; i < operationCount; i++) {
+      SettableApiFuture<Operation> response = SettableApiFuture.create();
+      responses.add(response);
+      mockOperations.addDeferredResponse(response);
+    }
+    List<OperationFuture<Color>> opFutures = new ArrayList<>();
+    Set<String> opNames = new HashSet<>();
+    for (int i = 0; i < operationCount; i++) {
+      String opName = "testSharedPollerWithDistinctOperations" + i;
+      opNames.add(opName);
+      for (int j = 0; j < futuresPerOperation; j++) {
+        opFutures.add(
+            OperationFuture.create(
+                poller,
+                ApiFutures.immediateFuture(
+                    Operation.newBuilder().setName(opName).setDone(false).build()),
+                Color.class,
+                Duration.millis(50)));
+      }
+    }
+
+    // The polls of each operation are coalesced, and at most two of them are issued at a time.
+    awaitRequestCount(2);
+    Thread.sleep(100);
+    Truth.assertThat(getRequestNames()).hasSize(2);
+    Truth.assertThat(poller.getPendingPollCount()).isEqualTo(1);
+
+    Operation doneOperation =
+        Operation.newBuilder().setDone(true).setResponse(Any.pack(expectedResult)).build();
+    responses.get(0).set(doneOperation);
+    awaitRequestCount(3);
+    responses.get(1).set(doneOperation);
+    responses.get(2).set(doneOperation);
+    for (OperationFuture<Color> opFuture : opFutures) {
+      Truth.assertThat(opFuture.get(3, TimeUnit.SECONDS)).isEqualTo(expectedResult);
+    }
+    Truth.assertThat(getRequestNames()).containsExactlyElementsIn(opNames);
+    Truth.assertThat(poller.getPendingPollCount()).isEqualTo(0);
   }
 
   @Test
@@ -399,4 +618,35 @@ public class OperationFutureTest {
 
     opFuture.awaitAsyncCompletion(3, TimeUnit.SECONDS);
   }
+
+  private void awaitRequestCount(int count) throws InterruptedException {
+    long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+    while (getRequestNames().size() < count && System.nanoTime() < deadlineNanos) {
+      Thread.sleep(5);
+    }
+    Truth.assertThat(getRequestNames()).hasSize(count);
+  }
+
+  private List<String> getRequestNames() {
+    List<GeneratedMessageV3> requests = mockOperations.getRequests();
+    List<String> names = new ArrayList<>();
+    synchronized (requests) {
+      for (GeneratedMessageV3 request : requests) {
+        names.add(((GetOperationRequest) request).getName());
+      }
+    }
+    return names;
+  }
+
+  private static RetrySettings pollingSettings(Duration totalTimeout) {
+    return RetrySettings.newBuilder()
+        .setInitialRetryDelay(Duration.millis(1))
+        .setRetryDelayMultiplier(2)
+        .setMaxRetryDelay(Duration.millis(10))
+        .setTotalTimeout(totalTimeout)
+        .setInitialRpcTimeout(Duration.ZERO)
+        .setRpcTimeoutMultiplier(1)
+        .setMaxRpcTimeout(Duration.ZERO)
+        .build();
+  }
 }
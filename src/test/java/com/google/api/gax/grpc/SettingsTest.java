@@ -45,6 +45,7 @@ import com.google.common.truth.Truth;
 import io.grpc.MethodDescriptor;
 import io.grpc.Status;
 import java.io.IOException;
+import java.util.concurrent.Executor;
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.joda.time.Duration;
 import org.junit.Rule;
@@ -448,6 +449,19 @@ public class SettingsTest {
     assertIsReflectionEqual(settingsA, settingsB);
   }
 
+  @Test
+  public void batchingCallSettingsFlushExecutor() throws IOException {
+    Executor flushExecutor = Mockito.mock(Executor.class);
+    FakeSettings.Builder builder = FakeSettings.Builder.createDefault();
+    Truth.assertThat(builder.fakeMethodBatching().getFlushExecutor()).isNull();
+    builder.fakeMethodBatching().setFlushExecutor(flushExecutor);
+    FakeSettings settings = builder.build();
+
+    Truth.assertThat(settings.fakeMethodBatching().getFlushExecutor()).isSameAs(flushExecutor);
+    Truth.assertThat(settings.toBuilder().fakeMethodBatching().getFlushExecutor())
+        .isSameAs(flushExecutor);
+  }
+
   @Test
   public void callSettingsTimeoutNoRetries() throws IOException {
     Duration timeout = Duration.millis(60000);
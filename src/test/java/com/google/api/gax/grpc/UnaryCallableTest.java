@@ -32,16 +32,20 @@ package com.google.api.gax.grpc;
 import com.google.api.gax.batching.BatchingSettings;
 import com.google.api.gax.batching.PartitionKey;
 import com.google.api.gax.batching.RequestBuilder;
+import com.google.api.gax.batching.ThresholdBatcher;
 import com.google.api.gax.core.ApiFuture;
 import com.google.api.gax.core.ApiFutures;
+import com.google.api.gax.core.AsyncPage;
 import com.google.api.gax.core.FakeApiClock;
 import com.google.api.gax.core.FixedSizeCollection;
 import com.google.api.gax.core.FlowControlSettings;
 import com.google.api.gax.core.FlowController.LimitExceededBehavior;
 import com.google.api.gax.core.Page;
 import com.google.api.gax.core.RetrySettings;
+import com.google.api.gax.core.SettableApiFuture;
 import com.google.api.gax.core.TrackedFlowController;
 import com.google.api.gax.protobuf.ValidationException;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.truth.Truth;
 import com.google.common.util.concurrent.Futures;
@@ -53,10 +57,13 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.joda.time.Duration;
 import org.junit.After;
 import org.junit.Assert;
@@ -512,6 +519,96 @@ public class UnaryCallableTest {
     Truth.assertThat(page.getNextPage()).containsExactly(3, 4).inOrder();
   }
 
+  @Test
+  public void pagedPageElements() {
+    Mockito.when(callIntList.futureCall((Integer) Mockito.any(), (CallContext) Mockito.any()))
+        .thenReturn(immediateFuture(Arrays.asList(0, 1, 2)))
+        .thenReturn(immediateFuture(Collections.<Integer>emptyList()));
+    AsyncPage<Integer, List<Integer>, Integer> page =
+        UnaryCallable.<Integer, List<Integer>>create(callIntList)
+            .paged(new PagedFactory())
+            .call(0)
+            .getPage();
+
+    Truth.assertThat(page.getPageElementCount()).isEqualTo(3);
+    Truth.assertThat(page.getPageElements()).containsExactly(0, 1, 2).inOrder();
+    Truth.assertThat(page.getPageElements()).isSameAs(page.getPageElements());
+  }
+
+  @Test
+  public void pagedByPageAsync() throws Exception {
+    Mockito.when(callIntList.futureCall((Integer) Mockito.any(), (CallContext) Mockito.any()))
+        .thenReturn(immediateFuture(Arrays.asList(0, 1, 2)))
+        .thenReturn(immediateFuture(Arrays.asList(3, 4)))
+        .thenReturn(immediateFuture(Collections.<Integer>emptyList()));
+    AsyncPage<Integer, List<Integer>, Integer> page =
+        UnaryCallable.<Integer, List<Integer>>create(callIntList)
+            .paged(new PagedFactory())
+            .call(0)
+            .getPage();
+
+    AsyncPage<Integer, List<Integer>, Integer> nextPage = page.getNextPageAsync().get();
+    Truth.assertThat(nextPage).containsExactly(3, 4).inOrder();
+    Truth.assertThat(nextPage.getNextPageAsync().get()).isEmpty();
+  }
+
+  @Test
+  public void pagedWithPrefetch() {
+    Mockito.when(callIntList.futureCall((Integer) Mockito.any(), (CallContext) Mockito.any()))
+        .thenReturn(immediateFuture(Arrays.asList(0, 1, 2)))
+        .thenReturn(immediateFuture(Arrays.asList(3, 4)))
+        .thenReturn(immediateFuture(Arrays.asList(5, 6)))
+        .thenReturn(immediateFuture(Collections.<Integer>emptyList()));
+    Iterator<Integer> elements =
+        UnaryCallable.<Integer, List<Integer>>create(callIntList)
+            .paged(new PagedFactory())
+            .call(0)
+            .iterateAllElements(2)
+            .iterator();
+
+    Truth.assertThat(elements.next()).isEqualTo(0);
+    // The two pages following the first one are already requested.
+    Mockito.verify(callIntList, Mockito.times(3))
+        .futureCall((Integer) Mockito.any(), (CallContext) Mockito.any());
+    Truth.assertThat(ImmutableList.copyOf(elements)).containsExactly(1, 2, 3, 4, 5, 6).inOrder();
+    Mockito.verify(callIntList, Mockito.times(4))
+        .futureCall((Integer) Mockito.any(), (CallContext) Mockito.any());
+  }
+
+  @Test
+  public void pagedFirstPageIsLazy() throws Exception {
+    Mockito.when(callIntList.futureCall((Integer) Mockito.any(), (CallContext) Mockito.any()))
+        .thenReturn(immediateFuture(Arrays.asList(0, 1, 2)));
+    PagedListResponse response =
+        new PagedListResponse(
+            UnaryCallable.<Integer, List<Integer>>create(callIntList),
+            new StreamingDescriptor(),
+            0,
+            CallContext.createDefault());
+    Mockito.verify(callIntList, Mockito.never())
+        .futureCall((Integer) Mockito.any(), (CallContext) Mockito.any());
+
+    Truth.assertThat(response.getPageAsync().get()).containsExactly(0, 1, 2).inOrder();
+    Truth.assertThat(response.getPage()).isSameAs(response.getPageAsync().get());
+    Mockito.verify(callIntList, Mockito.times(1))
+        .futureCall((Integer) Mockito.any(), (CallContext) Mockito.any());
+  }
+
+  @Test
+  public void pagedFutureCallDoesNotBlock() throws Exception {
+    SettableApiFuture<List<Integer>> firstPageFuture = SettableApiFuture.create();
+    Mockito.when(callIntList.futureCall((Integer) Mockito.any(), (CallContext) Mockito.any()))
+        .thenReturn(firstPageFuture);
+    ApiFuture<PagedListResponse> responseFuture =
+        UnaryCallable.<Integer, List<Integer>>create(callIntList)
+            .paged(new PagedFactory())
+            .futureCall(0);
+    Truth.assertThat(responseFuture.isDone()).isFalse();
+
+    firstPageFuture.set(Arrays.asList(0, 1, 2));
+    Truth.assertThat(responseFuture.get().getPage()).containsExactly(0, 1, 2).inOrder();
+  }
+
   @Test
   public void pagedByFixedSizeCollection() {
     Mockito.when(callIntList.futureCall((Integer) Mockito.any(), (CallContext) Mockito.any()))
@@ -526,6 +623,7 @@ public class UnaryCallableTest {
             .expandToFixedSizeCollection(5);
 
     Truth.assertThat(fixedSizeCollection).containsExactly(0, 1, 2, 3, 4).inOrder();
+    Truth.assertThat(fixedSizeCollection.getCollectionSize()).isEqualTo(5);
     Truth.assertThat(fixedSizeCollection.getNextCollection()).containsExactly(5, 6, 7).inOrder();
   }
 
@@ -672,6 +770,150 @@ public class UnaryCallableTest {
     Truth.assertThat(f2.get()).isEqualTo(Arrays.asList(9, 16));
   }
 
+  @Test
+  public void batchingCountsBytesOnlyWhenLimited() throws Exception {
+    BatchingSettings.Builder batchingSettingsBuilder =
+        BatchingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardSeconds(1))
+            .setElementCountThreshold(2L);
+    BatcherFactory<LabeledIntList, List<Integer>> unlimitedFactory =
+        new BatcherFactory<>(
+            SQUARER_BATCHING_DESC, batchingSettingsBuilder.build(), batchingExecutor);
+    Truth.assertThat(unlimitedFactory.isByteCountNeeded()).isFalse();
+
+    BatcherFactory<LabeledIntList, List<Integer>> limitedFactory =
+        new BatcherFactory<>(
+            SQUARER_BATCHING_DESC,
+            batchingSettingsBuilder.setRequestByteThreshold(100L).build(),
+            batchingExecutor);
+    Truth.assertThat(limitedFactory.isByteCountNeeded()).isTrue();
+  }
+
+  @Test
+  public void batchingEvictsLeastRecentlyUsedPartition() throws Exception {
+    BatchingSettings batchingSettings =
+        BatchingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardHours(1))
+            .setElementCountThreshold(10L)
+            .setMaxPartitionCount(1)
+            .build();
+    BatcherFactory<LabeledIntList, List<Integer>> batcherFactory =
+        new BatcherFactory<>(SQUARER_BATCHING_DESC, batchingSettings, batchingExecutor);
+
+    UnaryCallable<LabeledIntList, List<Integer>> callable =
+        UnaryCallable.<LabeledIntList, List<Integer>>create(callLabeledIntSquarer)
+            .batching(SQUARER_BATCHING_DESC, batcherFactory);
+    ApiFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1, 2));
+    Truth.assertThat(f1.isDone()).isFalse();
+    // Creating the batcher for a second partition evicts and flushes the first one.
+    ApiFuture<List<Integer>> f2 = callable.futureCall(new LabeledIntList("two", 3, 4));
+    Truth.assertThat(f1.get(3, TimeUnit.SECONDS)).isEqualTo(Arrays.asList(1, 4));
+    Truth.assertThat(f2.isDone()).isFalse();
+    Truth.assertThat(batcherFactory.getPartitionCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void batchingClosesEvictedBatchers() throws Exception {
+    BatchingSettings batchingSettings =
+        BatchingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardHours(1))
+            .setElementCountThreshold(10L)
+            .setMaxPartitionCount(1)
+            .build();
+    BatcherFactory<LabeledIntList, List<Integer>> batcherFactory =
+        new BatcherFactory<>(SQUARER_BATCHING_DESC, batchingSettings, batchingExecutor);
+
+    UnaryCallable<LabeledIntList, List<Integer>> callable =
+        UnaryCallable.<LabeledIntList, List<Integer>>create(callLabeledIntSquarer)
+            .batching(SQUARER_BATCHING_DESC, batcherFactory);
+    ThresholdBatcher<Batch<LabeledIntList, List<Integer>>> evictedBatcher =
+        batcherFactory.getPushingBatcher(new PartitionKey("one"));
+    ApiFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("two", 1, 2));
+    Truth.assertThat(batcherFactory.isClosed()).isFalse();
+    try {
+      evictedBatcher.add(null);
+      Assert.fail("Expected the evicted batcher to be closed");
+    } catch (IllegalStateException expected) {
+      // Callers holding the evicted batcher retry with a new one.
+    }
+    // The request for the evicted partition goes to a new batcher, evicting the second one.
+    ApiFuture<List<Integer>> f2 = callable.futureCall(new LabeledIntList("one", 3, 4));
+    Truth.assertThat(f1.get(3, TimeUnit.SECONDS)).isEqualTo(Arrays.asList(1, 4));
+    batcherFactory.close().get(3, TimeUnit.SECONDS);
+    Truth.assertThat(f2.get()).isEqualTo(Arrays.asList(9, 16));
+  }
+
+  @Test
+  public void batchingKeepsRecentlyUsedPartition() throws Exception {
+    BatchingSettings batchingSettings =
+        BatchingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardHours(1))
+            .setElementCountThreshold(10L)
+            .setMaxPartitionCount(2)
+            .build();
+    BatcherFactory<LabeledIntList, List<Integer>> batcherFactory =
+        new BatcherFactory<>(SQUARER_BATCHING_DESC, batchingSettings, batchingExecutor);
+
+    UnaryCallable<LabeledIntList, List<Integer>> callable =
+        UnaryCallable.<LabeledIntList, List<Integer>>create(callLabeledIntSquarer)
+            .batching(SQUARER_BATCHING_DESC, batcherFactory);
+    ApiFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1, 2));
+    ApiFuture<List<Integer>> f2 = callable.futureCall(new LabeledIntList("two", 3, 4));
+    // Using the first partition again makes the second one the least recently used.
+    ApiFuture<List<Integer>> f3 = callable.futureCall(new LabeledIntList("one", 5));
+    ApiFuture<List<Integer>> f4 = callable.futureCall(new LabeledIntList("three", 6));
+    Truth.assertThat(f2.get(3, TimeUnit.SECONDS)).isEqualTo(Arrays.asList(9, 16));
+    Truth.assertThat(f1.isDone()).isFalse();
+    Truth.assertThat(f3.isDone()).isFalse();
+    Truth.assertThat(f4.isDone()).isFalse();
+    Truth.assertThat(batcherFactory.getPartitionCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void batchingEvictsIdlePartitions() throws Exception {
+    BatchingSettings batchingSettings =
+        BatchingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardHours(1))
+            .setElementCountThreshold(10L)
+            .setPartitionIdleTimeout(Duration.millis(10))
+            .build();
+    BatcherFactory<LabeledIntList, List<Integer>> batcherFactory =
+        new BatcherFactory<>(SQUARER_BATCHING_DESC, batchingSettings, batchingExecutor);
+
+    UnaryCallable<LabeledIntList, List<Integer>> callable =
+        UnaryCallable.<LabeledIntList, List<Integer>>create(callLabeledIntSquarer)
+            .batching(SQUARER_BATCHING_DESC, batcherFactory);
+    ApiFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1, 2));
+    ApiFuture<List<Integer>> f2 = callable.futureCall(new LabeledIntList("two", 3, 4));
+    Truth.assertThat(f1.get(3, TimeUnit.SECONDS)).isEqualTo(Arrays.asList(1, 4));
+    Truth.assertThat(f2.get(3, TimeUnit.SECONDS)).isEqualTo(Arrays.asList(9, 16));
+    Truth.assertThat(batcherFactory.getPartitionCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void batchingCloseDrainsAllPartitions() throws Exception {
+    BatchingSettings batchingSettings =
+        BatchingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardHours(1))
+            .setElementCountThreshold(10L)
+            .build();
+    BatcherFactory<LabeledIntList, List<Integer>> batcherFactory =
+        new BatcherFactory<>(SQUARER_BATCHING_DESC, batchingSettings, batchingExecutor);
+
+    UnaryCallable<LabeledIntList, List<Integer>> callable =
+        UnaryCallable.<LabeledIntList, List<Integer>>create(callLabeledIntSquarer)
+            .batching(SQUARER_BATCHING_DESC, batcherFactory);
+    ApiFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1, 2));
+    ApiFuture<List<Integer>> f2 = callable.futureCall(new LabeledIntList("two", 3, 4));
+    batcherFactory.close().get(3, TimeUnit.SECONDS);
+    Truth.assertThat(f1.isDone()).isTrue();
+    Truth.assertThat(f2.isDone()).isTrue();
+    Truth.assertThat(f2.get()).isEqualTo(Arrays.asList(9, 16));
+
+    thrown.expect(IllegalStateException.class);
+    callable.futureCall(new LabeledIntList("one", 5));
+  }
+
   @Test
   public void batchingWithFlowControl() throws Exception {
     BatchingSettings batchingSettings =
@@ -723,6 +965,130 @@ public class UnaryCallableTest {
     Truth.assertThat(trackedFlowController.getCallsToRelease()).isEqualTo(1);
   }
 
+  @Test
+  public void batchingWithEnqueueFlowControl() throws Exception {
+    BatchingSettings batchingSettings =
+        BatchingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardSeconds(1))
+            .setElementCountThreshold(2L)
+            .setFlowControlSettings(
+                FlowControlSettings.newBuilder()
+                    .setLimitExceededBehavior(LimitExceededBehavior.Enqueue)
+                    .setMaxOutstandingElementCount(2)
+                    .build())
+            .build();
+    BatcherFactory<LabeledIntList, List<Integer>> batcherFactory =
+        new BatcherFactory<>(SQUARER_BATCHING_DESC, batchingSettings, batchingExecutor);
+
+    UnaryCallable<LabeledIntList, List<Integer>> callable =
+        UnaryCallable.create(callLabeledIntSquarer).batching(SQUARER_BATCHING_DESC, batcherFactory);
+    ApiFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1, 2));
+    ApiFuture<List<Integer>> f2 = callable.futureCall(new LabeledIntList("one", 3, 4));
+    ApiFuture<List<Integer>> f3 = callable.futureCall(new LabeledIntList("one", 5, 6));
+    Truth.assertThat(f1.get()).isEqualTo(Arrays.asList(1, 4));
+    Truth.assertThat(f2.get()).isEqualTo(Arrays.asList(9, 16));
+    Truth.assertThat(f3.get()).isEqualTo(Arrays.asList(25, 36));
+  }
+
+  // Delegates to SQUARER_BATCHING_DESC, but throws an IllegalStateException for every partition key
+  // requested after the first one, which is requested by BatchingCallable itself.
+  private static BatchingDescriptor<LabeledIntList, List<Integer>> newFailingValidationDescriptor(
+      final AtomicInteger partitionKeyCount) {
+    return new BatchingDescriptor<LabeledIntList, List<Integer>>() {
+      @Override
+      public PartitionKey getBatchPartitionKey(LabeledIntList request) {
+        if (partitionKeyCount.incrementAndGet() > 1) {
+          throw new IllegalStateException("invalid request");
+        }
+        return SQUARER_BATCHING_DESC.getBatchPartitionKey(request);
+      }
+
+      @Override
+      public RequestBuilder<LabeledIntList> getRequestBuilder() {
+        return SQUARER_BATCHING_DESC.getRequestBuilder();
+      }
+
+      @Override
+      public void splitResponse(
+          List<Integer> batchResponse,
+          Collection<? extends BatchedRequestIssuer<List<Integer>>> batch) {
+        SQUARER_BATCHING_DESC.splitResponse(batchResponse, batch);
+      }
+
+      @Override
+      public void splitException(
+          Throwable throwable, Collection<? extends BatchedRequestIssuer<List<Integer>>> batch) {
+        SQUARER_BATCHING_DESC.splitException(throwable, batch);
+      }
+
+      @Override
+      public long countElements(LabeledIntList request) {
+        return SQUARER_BATCHING_DESC.countElements(request);
+      }
+
+      @Override
+      public long countBytes(LabeledIntList request) {
+        return SQUARER_BATCHING_DESC.countBytes(request);
+      }
+    };
+  }
+
+  @Test
+  public void batchingPropagatesIllegalStateException() throws Exception {
+    BatchingSettings batchingSettings =
+        BatchingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardSeconds(1))
+            .setElementCountThreshold(2L)
+            .build();
+    AtomicInteger partitionKeyCount = new AtomicInteger();
+    BatchingDescriptor<LabeledIntList, List<Integer>> descriptor =
+        newFailingValidationDescriptor(partitionKeyCount);
+    BatcherFactory<LabeledIntList, List<Integer>> batcherFactory =
+        new BatcherFactory<>(descriptor, batchingSettings, batchingExecutor);
+
+    UnaryCallable<LabeledIntList, List<Integer>> callable =
+        UnaryCallable.create(callLabeledIntSquarer).batching(descriptor, batcherFactory);
+    try {
+      callable.futureCall(new LabeledIntList("one", 1, 2));
+      Assert.fail("Expected the IllegalStateException of the descriptor");
+    } catch (IllegalStateException expected) {
+      Truth.assertThat(expected).hasMessage("invalid request");
+    }
+    // The request is not retried, since the batcher it was rejected by is still open.
+    Truth.assertThat(partitionKeyCount.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void batchingWithEnqueueFlowControlPropagatesIllegalStateException() throws Exception {
+    BatchingSettings batchingSettings =
+        BatchingSettings.newBuilder()
+            .setDelayThreshold(Duration.standardSeconds(1))
+            .setElementCountThreshold(2L)
+            .setFlowControlSettings(
+                FlowControlSettings.newBuilder()
+                    .setLimitExceededBehavior(LimitExceededBehavior.Enqueue)
+                    .setMaxOutstandingElementCount(2)
+                    .build())
+            .build();
+    AtomicInteger partitionKeyCount = new AtomicInteger();
+    BatchingDescriptor<LabeledIntList, List<Integer>> descriptor =
+        newFailingValidationDescriptor(partitionKeyCount);
+    BatcherFactory<LabeledIntList, List<Integer>> batcherFactory =
+        new BatcherFactory<>(descriptor, batchingSettings, batchingExecutor);
+
+    UnaryCallable<LabeledIntList, List<Integer>> callable =
+        UnaryCallable.create(callLabeledIntSquarer).batching(descriptor, batcherFactory);
+    ApiFuture<List<Integer>> f1 = callable.futureCall(new LabeledIntList("one", 1, 2));
+    try {
+      f1.get(3, TimeUnit.SECONDS);
+      Assert.fail("Expected the IllegalStateException of the descriptor");
+    } catch (ExecutionException expected) {
+      Truth.assertThat(expected.getCause()).isInstanceOf(IllegalStateException.class);
+      Truth.assertThat(expected.getCause()).hasMessage("invalid request");
+    }
+    Truth.assertThat(partitionKeyCount.get()).isEqualTo(2);
+  }
+
   private static BatchingDescriptor<LabeledIntList, List<Integer>> DISABLED_BATCHING_DESC =
       new BatchingDescriptor<LabeledIntList, List<Integer>>() {
 